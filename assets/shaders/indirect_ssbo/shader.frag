@@ -1,5 +1,7 @@
 #version 460
 
+layout (constant_id = 0) const bool ALPHA_DISCARD = true;
+
 layout (binding = 1) uniform sampler2D u_texture;
 
 layout (location = 0) out vec4 outColor;
@@ -10,7 +12,7 @@ layout (location = 0) in FragData {
 
 void main() {
 	vec4 color = texture(u_texture, inData.texCoord);
-	if (color.a < 0.001) {
+	if (ALPHA_DISCARD && color.a < 0.001) {
 		discard;
 	}
 	else {
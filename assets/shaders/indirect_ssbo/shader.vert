@@ -12,7 +12,7 @@ layout (location = 0) out FragData {
 	vec2 texCoord;
 } outData;
 
-layout (binding = 0) uniform UniformBufferObject {
+layout (push_constant) uniform PushConstants {
 	vec2 resolution;
 } inData;
 
@@ -20,8 +20,13 @@ layout (std430, set = 0, binding = 2) readonly buffer SSBO {
 	vec2 pos[];
 } ssbo;
 
+// ids of instances which passed GPU culling
+layout (std430, set = 0, binding = 3) readonly buffer VisibleInstances {
+	uint id[];
+} visible;
+
 void main() {
-	vec2 pos = ssbo.pos[gl_InstanceIndex];
+	vec2 pos = ssbo.pos[visible.id[gl_InstanceIndex]];
 	float x = (aVert.x + pos.x) / (inData.resolution.x * 0.5) - 1.0;
 	float y = (aVert.y + pos.y) / (inData.resolution.y * 0.5) - 1.0;
 	gl_Position = vec4(x, -y, 0.0, 1.0);
@@ -0,0 +1,112 @@
+package ua.rawfish2d.vklib;
+
+import lombok.Getter;
+
+/**
+ * Sorted list of non overlapping [start, end) byte ranges which were changed since last upload.
+ * Touching and overlapping ranges are merged, when there are more than MAX_RANGES ranges the two closest ones are merged.
+ */
+public class DirtyRanges {
+	public static final int MAX_RANGES = 64;
+	private final int[] starts = new int[MAX_RANGES + 1];
+	private final int[] ends = new int[MAX_RANGES + 1];
+	@Getter
+	private int count = 0;
+
+	public void add(int offset, int size) {
+		if (size <= 0) {
+			return;
+		}
+		int start = offset;
+		int end = offset + size;
+		// fast path for sequential writes
+		if (count == 0 || start > ends[count - 1]) {
+			starts[count] = start;
+			ends[count] = end;
+			count++;
+			collapse();
+			return;
+		}
+		if (start >= starts[count - 1]) {
+			ends[count - 1] = Math.max(ends[count - 1], end);
+			return;
+		}
+
+		// first range which ends at or after start (touching ranges are merged too)
+		int first = 0;
+		while (ends[first] < start) {
+			first++;
+		}
+		int last = first;
+		while (last < count && starts[last] <= end) {
+			start = Math.min(start, starts[last]);
+			end = Math.max(end, ends[last]);
+			last++;
+		}
+		final int merged = last - first;
+		if (merged == 0) {
+			// insert new range before first
+			System.arraycopy(starts, first, starts, first + 1, count - first);
+			System.arraycopy(ends, first, ends, first + 1, count - first);
+			count++;
+		} else if (merged > 1) {
+			System.arraycopy(starts, last, starts, first + 1, count - last);
+			System.arraycopy(ends, last, ends, first + 1, count - last);
+			count -= merged - 1;
+		}
+		starts[first] = start;
+		ends[first] = end;
+		collapse();
+	}
+
+	// merges two neighbour ranges with the smallest gap between them
+	private void collapse() {
+		if (count <= MAX_RANGES) {
+			return;
+		}
+		int best = 0;
+		for (int index = 1; index < count - 1; ++index) {
+			if (starts[index + 1] - ends[index] < starts[best + 1] - ends[best]) {
+				best = index;
+			}
+		}
+		ends[best] = ends[best + 1];
+		System.arraycopy(starts, best + 2, starts, best + 1, count - best - 2);
+		System.arraycopy(ends, best + 2, ends, best + 1, count - best - 2);
+		count--;
+	}
+
+	public int getOffset(int index) {
+		return starts[index];
+	}
+
+	public int getSize(int index) {
+		return ends[index] - starts[index];
+	}
+
+	public int getTotalBytes() {
+		int total = 0;
+		for (int index = 0; index < count; ++index) {
+			total += ends[index] - starts[index];
+		}
+		return total;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	// start of first range
+	public int getMinOffset() {
+		return starts[0];
+	}
+
+	// end of last range
+	public int getMaxEnd() {
+		return ends[count - 1];
+	}
+
+	public void clear() {
+		count = 0;
+	}
+}
@@ -0,0 +1,191 @@
+package ua.rawfish2d.vklib;
+
+import lombok.Getter;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import ua.rawfish2d.vklib.init.VkComputePipeline;
+import ua.rawfish2d.vklib.init.VkDeviceInstance;
+import ua.rawfish2d.vklib.init.descriptor.DescriptorSetUpdate;
+import ua.rawfish2d.vklib.init.descriptor.VkDescriptorSetLayout;
+import ua.rawfish2d.vklib.utils.VkHelper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.*;
+import static org.lwjgl.vulkan.VK12.vkCmdDrawIndexedIndirectCount;
+import static org.lwjgl.vulkan.VK13.*;
+
+/**
+ * GPU culling of instances which are positioned by vec2 pos[] SSBO.
+ * Draws are described once on CPU (like IndirectBuffer commands), every frame compute pass tests instance positions
+ * against viewport, writes ids of visible instances into getVisibleInstancesBuffer() and writes indirect commands
+ * only for draws which have visible instances. Vertex shader must read its instance as visible.id[gl_InstanceIndex].
+ * Order of instances inside one draw is not preserved.
+ */
+public class GpuCuller {
+	private static final String SHADER_PATH = "assets/shaders/culling/cull.comp";
+	private static final int WORKGROUP_SIZE = 64;
+	// VkDrawIndexedIndirectCommand and draw template have the same size
+	private static final int COMMAND_STRIDE = 5 * Integer.BYTES;
+	// vec4 bounds, uint instanceCount, uint drawCount, uint pass
+	private static final int PUSH_CONSTANTS_SIZE = 4 * Float.BYTES + 3 * Integer.BYTES;
+	private final VkDeviceInstance vkDeviceInstance;
+	private final int maxInstances;
+	private final int maxDraws;
+	private final VkComputePipeline computePipeline;
+	private final VkBuffer templateBuffer;
+	private final VkBuffer counterBuffer;
+	@Getter
+	private final VkBuffer visibleInstancesBuffer;
+	private final VkBuffer indirectCommandBuffer;
+	private final VkBuffer drawCountBuffer;
+	private final long vkDescriptorSet;
+	@Getter
+	private int draws = 0;
+	private int instanceCount = 0;
+
+	/**
+	 * @param positions SSBO with vec2 position of every instance
+	 */
+	public GpuCuller(VkDeviceInstance vkDeviceInstance, VkBuffer positions, int maxInstances, int maxDraws) {
+		this.vkDeviceInstance = vkDeviceInstance;
+		this.maxInstances = maxInstances;
+		this.maxDraws = maxDraws;
+
+		final VkDescriptorSetLayout descriptorSetLayout = new VkDescriptorSetLayout();
+		descriptorSetLayout.addLayout()
+				.add(0, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_COMPUTE_BIT)
+				.add(1, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_COMPUTE_BIT)
+				.add(2, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_COMPUTE_BIT)
+				.add(3, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_COMPUTE_BIT)
+				.add(4, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_COMPUTE_BIT)
+				.add(5, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_COMPUTE_BIT);
+		descriptorSetLayout.createDescriptorSetLayout(vkDeviceInstance);
+		computePipeline = new VkComputePipeline()
+				.setComputeShader(SHADER_PATH)
+				.setDescriptorSetLayout(descriptorSetLayout)
+				.addPushConstantRange(0, PUSH_CONSTANTS_SIZE)
+				.workgroupSize(WORKGROUP_SIZE, 1, 1)
+				.create(vkDeviceInstance);
+
+		templateBuffer = new VkBuffer();
+		templateBuffer.createBuffer(vkDeviceInstance, maxDraws * COMMAND_STRIDE, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT);
+		// staged, addDraw() can rewrite templates while frames in flight still read them
+		templateBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+		templateBuffer.makeStagingBuffer(vkDeviceInstance);
+		counterBuffer = createDeviceBuffer(maxDraws * Integer.BYTES, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT);
+		visibleInstancesBuffer = createDeviceBuffer(maxInstances * Integer.BYTES, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT);
+		indirectCommandBuffer = createDeviceBuffer(maxDraws * COMMAND_STRIDE, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT);
+		drawCountBuffer = createDeviceBuffer(Integer.BYTES, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT);
+
+		final List<DescriptorSetUpdate> descriptorSetUpdates = new ArrayList<>();
+		descriptorSetUpdates.add(DescriptorSetUpdate.buffer(0, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, positions.getHandle(), 0, VK_WHOLE_SIZE));
+		descriptorSetUpdates.add(DescriptorSetUpdate.buffer(1, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, templateBuffer.getHandle(), 0, VK_WHOLE_SIZE));
+		descriptorSetUpdates.add(DescriptorSetUpdate.buffer(2, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, counterBuffer.getHandle(), 0, VK_WHOLE_SIZE));
+		descriptorSetUpdates.add(DescriptorSetUpdate.buffer(3, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, visibleInstancesBuffer.getHandle(), 0, VK_WHOLE_SIZE));
+		descriptorSetUpdates.add(DescriptorSetUpdate.buffer(4, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, indirectCommandBuffer.getHandle(), 0, VK_WHOLE_SIZE));
+		descriptorSetUpdates.add(DescriptorSetUpdate.buffer(5, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, drawCountBuffer.getHandle(), 0, VK_WHOLE_SIZE));
+		vkDescriptorSet = computePipeline.allocateDescriptorSet(vkDeviceInstance, descriptorSetUpdates);
+	}
+
+	private VkBuffer createDeviceBuffer(int size, int usageFlags) {
+		final VkBuffer vkBuffer = new VkBuffer();
+		vkBuffer.createBuffer(vkDeviceInstance, size, usageFlags);
+		vkBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+		return vkBuffer;
+	}
+
+	public void reset() {
+		draws = 0;
+		instanceCount = 0;
+	}
+
+	/**
+	 * Same as IndirectBuffer.addIndirectCommand, instances [firstInstance, firstInstance + instanceCount)
+	 * of positions SSBO are drawn by this draw if they are visible
+	 */
+	public void addDraw(int indexCount, int instanceCount, int firstIndex, int vertexOffset, int firstInstance) {
+		if (draws >= maxDraws) {
+			System.out.printf("Max draw count reached! %d / %d\n", draws, maxDraws);
+			return;
+		}
+		if (firstInstance + instanceCount > maxInstances) {
+			throw new RuntimeException("Draw instances are out of range! " + (firstInstance + instanceCount) + " / " + maxInstances);
+		}
+		final ByteBuffer buffer = templateBuffer.getBuffer(vkDeviceInstance);
+		buffer.putInt(draws * COMMAND_STRIDE, indexCount)
+				.putInt(draws * COMMAND_STRIDE + 4, firstIndex)
+				.putInt(draws * COMMAND_STRIDE + 8, vertexOffset)
+				.putInt(draws * COMMAND_STRIDE + 12, firstInstance)
+				.putInt(draws * COMMAND_STRIDE + 16, instanceCount);
+		draws++;
+		this.instanceCount = Math.max(this.instanceCount, firstInstance + instanceCount);
+	}
+
+	public void upload(UploadService uploadService) {
+		uploadService.uploadBuffer(templateBuffer, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT, VK_ACCESS_2_SHADER_STORAGE_READ_BIT);
+	}
+
+	/**
+	 * Records culling pass, must be recorded outside of rendering and after positions are uploaded.
+	 * Instance is visible if its position is inside [minX, maxX] x [minY, maxY], expand bounds by object size
+	 */
+	public void cull(VkCommandBuffer commandBuffer, float minX, float minY, float maxX, float maxY) {
+		// previous frame can still draw from these buffers, positions could have been written by transfer
+		VkHelper.memoryBarrier2(commandBuffer,
+				VK_ACCESS_2_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_2_ALL_TRANSFER_BIT | VK_PIPELINE_STAGE_2_DRAW_INDIRECT_BIT | VK_PIPELINE_STAGE_2_VERTEX_SHADER_BIT,
+				VK_ACCESS_2_TRANSFER_WRITE_BIT | VK_ACCESS_2_SHADER_STORAGE_READ_BIT, VK_PIPELINE_STAGE_2_CLEAR_BIT | VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT);
+		vkCmdFillBuffer(commandBuffer, counterBuffer.getHandle(), 0, VK_WHOLE_SIZE, 0);
+		vkCmdFillBuffer(commandBuffer, drawCountBuffer.getHandle(), 0, VK_WHOLE_SIZE, 0);
+		// without draw indirect count every command is drawn, commands of culled draws must have 0 instances
+		vkCmdFillBuffer(commandBuffer, indirectCommandBuffer.getHandle(), 0, VK_WHOLE_SIZE, 0);
+		VkHelper.memoryBarrier2(commandBuffer,
+				VK_ACCESS_2_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_2_CLEAR_BIT,
+				VK_ACCESS_2_SHADER_STORAGE_READ_BIT | VK_ACCESS_2_SHADER_STORAGE_WRITE_BIT, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT);
+
+		computePipeline.bindPipeline(commandBuffer);
+		computePipeline.bindDescriptorSet(commandBuffer, vkDescriptorSet);
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final ByteBuffer pushConstants = stack.malloc(PUSH_CONSTANTS_SIZE);
+			pushConstants.putFloat(0, minX).putFloat(4, minY).putFloat(8, maxX).putFloat(12, maxY)
+					.putInt(16, instanceCount)
+					.putInt(20, draws)
+					.putInt(24, 0);
+			computePipeline.pushConstants(commandBuffer, 0, pushConstants);
+			computePipeline.dispatchThreads(commandBuffer, instanceCount);
+
+			VkHelper.memoryBarrier2(commandBuffer,
+					VK_ACCESS_2_SHADER_STORAGE_WRITE_BIT, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT,
+					VK_ACCESS_2_SHADER_STORAGE_READ_BIT | VK_ACCESS_2_SHADER_STORAGE_WRITE_BIT, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT);
+
+			pushConstants.putInt(24, 1);
+			computePipeline.pushConstants(commandBuffer, 0, pushConstants);
+			computePipeline.dispatch(commandBuffer, 1, 1, 1);
+		}
+		VkHelper.memoryBarrier2(commandBuffer,
+				VK_ACCESS_2_SHADER_STORAGE_WRITE_BIT, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT,
+				VK_ACCESS_2_INDIRECT_COMMAND_READ_BIT | VK_ACCESS_2_SHADER_STORAGE_READ_BIT, VK_PIPELINE_STAGE_2_DRAW_INDIRECT_BIT | VK_PIPELINE_STAGE_2_VERTEX_SHADER_BIT);
+	}
+
+	/**
+	 * Draws visible instances, with vkCmdDrawIndexedIndirectCount if device supports it
+	 */
+	public void draw(VkCommandBuffer commandBuffer) {
+		if (vkDeviceInstance.isDrawIndirectCount()) {
+			vkCmdDrawIndexedIndirectCount(commandBuffer, indirectCommandBuffer.getHandle(), 0, drawCountBuffer.getHandle(), 0, draws, COMMAND_STRIDE);
+		} else {
+			vkCmdDrawIndexedIndirect(commandBuffer, indirectCommandBuffer.getHandle(), 0, draws, COMMAND_STRIDE);
+		}
+	}
+
+	public void destroy() {
+		computePipeline.destroy(vkDeviceInstance);
+		templateBuffer.destroyAndFreeMemory(vkDeviceInstance);
+		counterBuffer.destroyAndFreeMemory(vkDeviceInstance);
+		visibleInstancesBuffer.destroyAndFreeMemory(vkDeviceInstance);
+		indirectCommandBuffer.destroyAndFreeMemory(vkDeviceInstance);
+		drawCountBuffer.destroyAndFreeMemory(vkDeviceInstance);
+	}
+}
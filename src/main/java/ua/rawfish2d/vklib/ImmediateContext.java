@@ -0,0 +1,118 @@
+package ua.rawfish2d.vklib;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+import ua.rawfish2d.vklib.init.VkDeviceInstance;
+import ua.rawfish2d.vklib.init.data.VkQueueInfo;
+import ua.rawfish2d.vklib.utils.VkHelper;
+import ua.rawfish2d.vklib.utils.VkTranslate;
+
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Collects one-shot commands (layout transitions, copies) into a single graphics queue command buffer.
+ * flush() submits everything at once and waits for a fence instead of vkQueueWaitIdle after every command.
+ * Command buffers are reset and reused instead of being allocated every time.
+ */
+public class ImmediateContext {
+	private final VkDeviceInstance vkDeviceInstance;
+	private final VkDevice vkLogicalDevice;
+	private final VkQueue vkQueue;
+	private final long vkCommandPool;
+	private final long vkFence;
+	private final ArrayDeque<VkCommandBuffer> freeCommandBuffers = new ArrayDeque<>();
+	// buffers which are destroyed after next flush()
+	private final List<VkBuffer> pendingBuffers = new ArrayList<>();
+	private VkCommandBuffer commandBuffer = null;
+
+	public ImmediateContext(VkDeviceInstance vkDeviceInstance) {
+		this.vkDeviceInstance = vkDeviceInstance;
+		this.vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
+		final VkQueueInfo queueInfo = vkDeviceInstance.getVkGraphicsQueue();
+		this.vkQueue = queueInfo.getQueue();
+		this.vkCommandPool = VkHelper.createCommandPool(vkLogicalDevice, queueInfo.getIndexInfo().queueIndex());
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkFenceCreateInfo fenceCreateInfo = VkFenceCreateInfo.calloc(stack)
+					.sType$Default();
+			final LongBuffer pFence = stack.mallocLong(1);
+			final int result = vkCreateFence(vkLogicalDevice, fenceCreateInfo, null, pFence);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create fence! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			vkFence = pFence.get(0);
+		}
+	}
+
+	/**
+	 * @return command buffer which is submitted by next flush()
+	 */
+	public VkCommandBuffer getCommandBuffer() {
+		if (commandBuffer == null) {
+			commandBuffer = freeCommandBuffers.isEmpty() ? VkHelper.createCommandBuffer(vkLogicalDevice, vkCommandPool) : freeCommandBuffers.pop();
+			try (MemoryStack stack = MemoryStack.stackPush()) {
+				final VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.calloc(stack)
+						.sType$Default()
+						.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+				vkBeginCommandBuffer(commandBuffer, beginInfo);
+			}
+		}
+		return commandBuffer;
+	}
+
+	public void transitionImageLayout(long vkImage, int vkOldLayout, int vkNewLayout) {
+		VkHelper.transitionImageLayout(getCommandBuffer(), vkImage, vkOldLayout, vkNewLayout);
+	}
+
+	public void copyBufferToImage(VkBuffer buffer, long vkImage, int width, int height) {
+		VkHelper.copyBufferToImage(getCommandBuffer(), buffer, vkImage, width, height);
+	}
+
+	/**
+	 * Destroys buffer (e.g. staging buffer) after next flush()
+	 */
+	public void destroyAfterFlush(VkBuffer buffer) {
+		pendingBuffers.add(buffer);
+	}
+
+	/**
+	 * Submits recorded commands and waits until they are finished
+	 */
+	public void flush() {
+		if (commandBuffer == null) {
+			return;
+		}
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			vkEndCommandBuffer(commandBuffer);
+			final VkSubmitInfo submitInfo = VkSubmitInfo.calloc(stack)
+					.sType$Default()
+					.pCommandBuffers(stack.pointers(commandBuffer));
+
+			final int result = vkQueueSubmit(vkQueue, submitInfo, vkFence);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to submit immediate commands! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			vkWaitForFences(vkLogicalDevice, vkFence, true, 0xFFFFFFFFFFFFFFFFL);
+			vkResetFences(vkLogicalDevice, vkFence);
+		}
+		vkResetCommandBuffer(commandBuffer, 0);
+		freeCommandBuffers.push(commandBuffer);
+		commandBuffer = null;
+
+		for (VkBuffer buffer : pendingBuffers) {
+			buffer.destroyAndFreeMemory(vkDeviceInstance);
+		}
+		pendingBuffers.clear();
+	}
+
+	public void destroy() {
+		flush();
+		vkDestroyFence(vkLogicalDevice, vkFence, null);
+		// frees all command buffers too
+		vkDestroyCommandPool(vkLogicalDevice, vkCommandPool, null);
+	}
+}
@@ -8,6 +8,7 @@ import ua.rawfish2d.vklib.init.VkDeviceInstance;
 import java.nio.IntBuffer;
 
 import static org.lwjgl.vulkan.VK10.*;
+import static org.lwjgl.vulkan.VK13.*;
 
 @RequiredArgsConstructor
 public class IndirectBuffer {
@@ -28,8 +29,9 @@ public class IndirectBuffer {
 		System.out.printf("Creating indirect buffer:\n");
 		vkBuffer.createBuffer(vkDeviceInstance, bufferSize, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT);
 		if (stagingBuffer) {
+			// not allocateMappedOrStaged, commands are rewritten every frame while frames in flight still read them
 			vkBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
-			vkBuffer.makeStagingBuffer(vkDeviceInstance, VK_BUFFER_USAGE_TRANSFER_SRC_BIT);
+			vkBuffer.makeStagingBuffer(vkDeviceInstance);
 		} else {
 			vkBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT); // no staging buffer
 		}
@@ -46,12 +48,9 @@ public class IndirectBuffer {
 			System.out.printf("Max command count reached! %d / %d\n", commands, commandsMax);
 			return;
 		}
-		final IntBuffer intBuffer;
-		if (useStagingBuffer) {
-			intBuffer = buffer.getStagingBuffer(vkDeviceInstance).asIntBuffer();
-		} else {
-			intBuffer = buffer.getBuffer(vkDeviceInstance).asIntBuffer();
-		}
+		// points to staging buffer or to host visible memory
+		final IntBuffer intBuffer = buffer.getBuffer(vkDeviceInstance).asIntBuffer();
+		buffer.markDirty(index * Integer.BYTES, 5 * Integer.BYTES);
 		intBuffer
 				.put(index++, indices) // indices
 				.put(index++, instanceCount) // instance count
@@ -66,11 +65,18 @@ public class IndirectBuffer {
 			return;
 		}
 
-		buffer.uploadFromStagingBuffer(commandBuffer);
+		buffer.uploadDirtyRanges(commandBuffer);
 		buffer.indirectBufferBarrier(commandBuffer);
 		// TODO needs barrier
 	}
 
+	public void upload(UploadService uploadService) {
+		if (!useStagingBuffer) {
+			return;
+		}
+		uploadService.uploadBuffer(buffer, VK_PIPELINE_STAGE_2_DRAW_INDIRECT_BIT, VK_ACCESS_2_INDIRECT_COMMAND_READ_BIT);
+	}
+
 	public long getBufferHandle() {
 		return buffer.getHandle();
 	}
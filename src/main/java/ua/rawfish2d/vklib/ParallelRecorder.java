@@ -0,0 +1,147 @@
+package ua.rawfish2d.vklib;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+import ua.rawfish2d.vklib.init.VkDeviceInstance;
+import ua.rawfish2d.vklib.init.data.CommandAllocator;
+import ua.rawfish2d.vklib.utils.VkHelper;
+import ua.rawfish2d.vklib.utils.VkTranslate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static org.lwjgl.vulkan.KHRDynamicRendering.VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_RENDERING_INFO_KHR;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Records draw commands on several threads into secondary command buffers which inherit dynamic rendering state
+ * of the primary command buffer. Every thread has its own command pool for every frame in flight,
+ * pools are reset once per frame instead of freeing command buffers.
+ * Primary command buffer must be inside VkDeviceInstance.beginRendering(commandBuffer, true).
+ */
+public class ParallelRecorder {
+	private final VkDeviceInstance vkDeviceInstance;
+	private final VkDevice vkLogicalDevice;
+	private final int threadCount;
+	private final ExecutorService executor;
+	// [frame in flight][thread]
+	private final CommandAllocator[][] commandAllocators;
+	// frame number when pools of current FrameInFlight were reset
+	private long resetFrameNumber = 0;
+
+	public ParallelRecorder(VkDeviceInstance vkDeviceInstance, int threadCount) {
+		this.vkDeviceInstance = vkDeviceInstance;
+		this.vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
+		this.threadCount = threadCount;
+		this.executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+			final Thread thread = new Thread(runnable, "VkRecorder");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		final int frameCount = vkDeviceInstance.getFrameInFlights().size();
+		final int queueIndex = vkDeviceInstance.getVkGraphicsQueue().getIndexInfo().queueIndex();
+		commandAllocators = new CommandAllocator[frameCount][threadCount];
+		for (int frame = 0; frame < frameCount; ++frame) {
+			for (int thread = 0; thread < threadCount; ++thread) {
+				commandAllocators[frame][thread] = new CommandAllocator(vkLogicalDevice, queueIndex, VK_COMMAND_BUFFER_LEVEL_SECONDARY);
+			}
+		}
+		System.out.printf("❇️ Parallel recorder: %d threads x %d frames\n", threadCount, frameCount);
+	}
+
+	/**
+	 * Records every task into its own secondary command buffer on worker threads and executes them in primaryCommandBuffer
+	 * in the same order as tasks. Each task gets command buffer with viewport and scissor already set.
+	 * Blocks until all tasks are recorded.
+	 */
+	public void record(VkCommandBuffer primaryCommandBuffer, List<Consumer<VkCommandBuffer>> tasks) {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		final int frame = vkDeviceInstance.getCurrentFrame();
+		resetPools(frame);
+
+		final VkCommandBuffer[] secondaryCommandBuffers = new VkCommandBuffer[tasks.size()];
+		final List<Future<?>> futures = new ArrayList<>(threadCount);
+		for (int thread = 0; thread < threadCount; ++thread) {
+			final int threadIndex = thread;
+			futures.add(executor.submit(() -> {
+				// tasks of one thread are recorded sequentially, so command pool is never used by two threads at once
+				for (int index = threadIndex; index < tasks.size(); index += threadCount) {
+					final VkCommandBuffer commandBuffer = commandAllocators[frame][threadIndex].obtain();
+					beginSecondary(commandBuffer);
+					tasks.get(index).accept(commandBuffer);
+					VkHelper.endCommandBuffer(commandBuffer);
+					secondaryCommandBuffers[index] = commandBuffer;
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException("Failed to record secondary command buffer!", e);
+			}
+		}
+
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final PointerBuffer pCommandBuffers = stack.mallocPointer(secondaryCommandBuffers.length);
+			for (VkCommandBuffer commandBuffer : secondaryCommandBuffers) {
+				pCommandBuffers.put(commandBuffer);
+			}
+			pCommandBuffers.flip();
+			vkCmdExecuteCommands(primaryCommandBuffer, pCommandBuffers);
+		}
+	}
+
+	private void resetPools(int frame) {
+		final long frameNumber = vkDeviceInstance.getCurrentFrameNumber();
+		if (resetFrameNumber == frameNumber) {
+			return;
+		}
+		resetFrameNumber = frameNumber;
+		// FrameInFlight was already waited for in acquireImage, so its command buffers are not in use
+		for (CommandAllocator commandAllocator : commandAllocators[frame]) {
+			commandAllocator.reset();
+		}
+	}
+
+	private void beginSecondary(VkCommandBuffer commandBuffer) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkCommandBufferInheritanceRenderingInfoKHR renderingInfo = VkCommandBufferInheritanceRenderingInfoKHR.calloc(stack)
+					.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_RENDERING_INFO_KHR)
+					.pColorAttachmentFormats(stack.ints(vkDeviceInstance.getVkSwapChainImageFormat()))
+					.rasterizationSamples(VK_SAMPLE_COUNT_1_BIT);
+			final VkCommandBufferInheritanceInfo inheritanceInfo = VkCommandBufferInheritanceInfo.calloc(stack)
+					.sType$Default()
+					.pNext(renderingInfo.address());
+			final VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.calloc(stack)
+					.sType$Default()
+					.flags(VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT | VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT)
+					.pInheritanceInfo(inheritanceInfo);
+			final int result = vkBeginCommandBuffer(commandBuffer, beginInfo);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to begin secondary command buffer! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+		}
+		// dynamic state is not inherited
+		vkDeviceInstance.setViewport(commandBuffer);
+		vkDeviceInstance.setScissor(commandBuffer);
+	}
+
+	public void destroy() {
+		executor.shutdown();
+		for (CommandAllocator[] frameAllocators : commandAllocators) {
+			for (CommandAllocator commandAllocator : frameAllocators) {
+				commandAllocator.destroy();
+			}
+		}
+	}
+}
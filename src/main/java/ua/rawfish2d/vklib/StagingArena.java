@@ -0,0 +1,133 @@
+package ua.rawfish2d.vklib;
+
+import lombok.Getter;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkBufferCopy;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import ua.rawfish2d.vklib.init.VkDeviceInstance;
+import ua.rawfish2d.vklib.utils.VkHelper;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * One persistently mapped host visible buffer which is split into equal partitions, one for every frame in flight.
+ * Uploads are linearly sub-allocated from partition of current frame,
+ * partition is reclaimed in VkDeviceInstance.acquireImage() after fence of that frame was signaled.
+ */
+public class StagingArena {
+	public static final long DEFAULT_FRAME_SIZE = 4L * 1024L * 1024L;
+	// keeps copy source offsets friendly for buffer to image copies too
+	private static final long ALIGNMENT = 16;
+	private final VkBuffer vkBuffer;
+	@Getter
+	private final long frameSize;
+	private final long mappedPointer;
+	private int frameIndex = 0;
+	// offset inside current partition
+	private long head = 0;
+
+	public StagingArena(VkDeviceInstance vkDeviceInstance, long frameSize, int frameCount) {
+		this.frameSize = frameSize;
+		this.vkBuffer = new VkBuffer();
+		System.out.printf("❇️ Creating staging arena: %s x %d\n", VkHelper.humanReadableByteCountBin(frameSize), frameCount);
+		vkBuffer.createBuffer(vkDeviceInstance, Math.toIntExact(frameSize * frameCount), VK_BUFFER_USAGE_TRANSFER_SRC_BIT);
+		vkBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+		this.mappedPointer = MemoryUtil.memAddress(vkBuffer.getBuffer(vkDeviceInstance));
+	}
+
+	/**
+	 * Switches to partition of frameIndex and reclaims it. Fence of that frame must be already signaled.
+	 */
+	public void beginFrame(int frameIndex) {
+		this.frameIndex = frameIndex;
+		this.head = 0;
+	}
+
+	/**
+	 * @return offset inside staging buffer
+	 */
+	public long allocate(long size) {
+		final long offset = (head + ALIGNMENT - 1) & -ALIGNMENT;
+		if (offset + size > frameSize) {
+			throw new RuntimeException(String.format("Staging arena is out of memory! Requested: %d free: %d (increase stagingArenaSize)", size, frameSize - offset));
+		}
+		head = offset + size;
+		return frameSize * frameIndex + offset;
+	}
+
+	/**
+	 * Copies size bytes from src (starting from srcOffset) into staging memory and records copy into dstBuffer at dstOffset
+	 */
+	public void upload(VkCommandBuffer commandBuffer, ByteBuffer src, int srcOffset, long dstBuffer, long dstOffset, int size) {
+		final long stagingOffset = allocate(size);
+		MemoryUtil.memCopy(MemoryUtil.memAddress(src, srcOffset), getAddress(stagingOffset), size);
+		copy(commandBuffer, stagingOffset, dstBuffer, dstOffset, size);
+	}
+
+	/**
+	 * @return address of staging memory at offset returned by allocate(), data can be written straight into it
+	 * until partition of current frame is reclaimed
+	 */
+	public long getAddress(long stagingOffset) {
+		return mappedPointer + stagingOffset;
+	}
+
+	/**
+	 * Records copy of size bytes of staging memory at stagingOffset into dstBuffer at dstOffset
+	 */
+	public void copy(VkCommandBuffer commandBuffer, long stagingOffset, long dstBuffer, long dstOffset, long size) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkBufferCopy.Buffer copyRegion = VkBufferCopy.calloc(1, stack)
+					.srcOffset(stagingOffset)
+					.dstOffset(dstOffset)
+					.size(size);
+			vkCmdCopyBuffer(commandBuffer, vkBuffer.getHandle(), dstBuffer, copyRegion);
+		}
+	}
+
+	/**
+	 * Copies every dirty range of src into staging memory and records one vkCmdCopyBuffer with a region for each range.
+	 * Ranges have the same offsets in src and dstBuffer
+	 */
+	public void upload(VkCommandBuffer commandBuffer, ByteBuffer src, long dstBuffer, DirtyRanges dirtyRanges) {
+		final int rangeCount = dirtyRanges.getCount();
+		if (rangeCount == 0) {
+			return;
+		}
+		final long stagingOffset = allocate(dirtyRanges.getTotalBytes());
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkBufferCopy.Buffer copyRegions = VkBufferCopy.calloc(rangeCount, stack);
+			packDirtyRanges(src, dirtyRanges, mappedPointer, stagingOffset, copyRegions);
+			vkCmdCopyBuffer(commandBuffer, vkBuffer.getHandle(), dstBuffer, copyRegions);
+		}
+	}
+
+	/**
+	 * Copies dirty ranges of src one after another into staging memory (stagingPointer + stagingOffset)
+	 * and fills one copy region for every range, copyRegions must have room for dirtyRanges.getCount() regions
+	 */
+	public static void packDirtyRanges(ByteBuffer src, DirtyRanges dirtyRanges, long stagingPointer, long stagingOffset, VkBufferCopy.Buffer copyRegions) {
+		final int rangeCount = dirtyRanges.getCount();
+		for (int index = 0; index < rangeCount; ++index) {
+			final int offset = dirtyRanges.getOffset(index);
+			final int size = dirtyRanges.getSize(index);
+			MemoryUtil.memCopy(MemoryUtil.memAddress(src, offset), stagingPointer + stagingOffset, size);
+			copyRegions.get(index)
+					.srcOffset(stagingOffset)
+					.dstOffset(offset)
+					.size(size);
+			stagingOffset += size;
+		}
+	}
+
+	public long getHandle() {
+		return vkBuffer.getHandle();
+	}
+
+	public void destroy(VkDeviceInstance vkDeviceInstance) {
+		vkBuffer.destroyAndFreeMemory(vkDeviceInstance);
+	}
+}
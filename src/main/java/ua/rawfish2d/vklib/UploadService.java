@@ -0,0 +1,455 @@
+package ua.rawfish2d.vklib;
+
+import lombok.Getter;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+import ua.rawfish2d.vklib.init.VkDeviceInstance;
+import ua.rawfish2d.vklib.init.data.VkQueueInfo;
+import ua.rawfish2d.vklib.utils.VkHelper;
+import ua.rawfish2d.vklib.utils.VkTranslate;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.KHRSynchronization2.*;
+import static org.lwjgl.vulkan.VK10.*;
+import static org.lwjgl.vulkan.VK12.*;
+import static org.lwjgl.vulkan.VK13.*;
+
+/**
+ * Records uploads into command buffers of transfer queue and submits them without waiting.
+ * Every submit signals timeline semaphore, graphics submit in VkDeviceInstance waits for it.
+ * When transfer and graphics queue families are different, ownership of resources is released here and acquired
+ * in VkDeviceInstance.startRecording().
+ * Uploads are submitted by flush() which is called in VkDeviceInstance.acquireImage(), so resource uploaded
+ * during frame can be used starting from next frame (or call flush() before startRecording()).
+ * Data is staged in one persistently mapped ring buffer, space used by a batch is reclaimed when timeline semaphore
+ * reaches value of that batch. Uploads bigger than the ring get their own temporary staging buffer.
+ * Not thread safe, use it from the render thread.
+ */
+public class UploadService {
+	public static final long DEFAULT_RING_SIZE = 16L * 1024L * 1024L;
+	// keeps copy source offsets friendly for buffer to image copies too
+	private static final long ALIGNMENT = 16;
+	private final VkDeviceInstance vkDeviceInstance;
+	private final VkDevice vkLogicalDevice;
+	private final VkQueue vkTransferQueue;
+	private final int transferFamily;
+	private final int graphicsFamily;
+	private final long vkCommandPool;
+	// command buffers of finished batches, reset and reused instead of allocating new ones
+	private final ArrayDeque<VkCommandBuffer> freeCommandBuffers = new ArrayDeque<>();
+	@Getter
+	private final long vkTimelineSemaphore;
+	// value which will be signaled by next flush()
+	private long nextValue = 1;
+	// batches which were submitted but maybe not finished yet
+	private final List<Batch> submittedBatches = new ArrayList<>();
+	private Batch currentBatch = null;
+	// ownership acquire barriers for graphics queue
+	private final List<BufferAcquire> bufferAcquires = new ArrayList<>();
+	private final List<ImageAcquire> imageAcquires = new ArrayList<>();
+	// highest flushed value which graphics queue didn't wait for yet
+	private long pendingWaitValue = 0;
+	private final VkBuffer ringBuffer;
+	private final long ringSize;
+	private final long ringPointer;
+	// monotonic byte positions, offset inside ring is position % ringSize
+	private long ringHead = 0;
+	private long ringTail = 0;
+
+	public UploadService(VkDeviceInstance vkDeviceInstance, long ringSize) {
+		this.vkDeviceInstance = vkDeviceInstance;
+		this.vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
+		final VkQueueInfo transferQueueInfo = vkDeviceInstance.getVkTransferQueue();
+		this.vkTransferQueue = transferQueueInfo.getQueue();
+		this.transferFamily = transferQueueInfo.getIndexInfo().queueIndex();
+		this.graphicsFamily = vkDeviceInstance.getVkGraphicsQueue().getIndexInfo().queueIndex();
+		// own pool, so other threads can keep using command pool of the queue
+		this.vkCommandPool = VkHelper.createCommandPool(vkLogicalDevice, transferFamily);
+
+		this.vkTimelineSemaphore = VkHelper.createTimelineSemaphore(vkLogicalDevice);
+
+		this.ringSize = (ringSize + ALIGNMENT - 1) & -ALIGNMENT;
+		this.ringBuffer = new VkBuffer();
+		ringBuffer.createBuffer(vkDeviceInstance, Math.toIntExact(this.ringSize), VK_BUFFER_USAGE_TRANSFER_SRC_BIT);
+		ringBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+		this.ringPointer = memAddress(ringBuffer.getBuffer(vkDeviceInstance));
+		System.out.printf("❇️ Upload service: transfer family: %d | graphics family: %d | staging ring: %s\n",
+				transferFamily, graphicsFamily, VkHelper.humanReadableByteCountBin(this.ringSize));
+	}
+
+	private boolean needsOwnershipTransfer() {
+		return transferFamily != graphicsFamily;
+	}
+
+	/**
+	 * @return transfer command buffer of current batch, it's submitted by flush()
+	 */
+	public VkCommandBuffer getCommandBuffer() {
+		if (currentBatch == null) {
+			currentBatch = new Batch(freeCommandBuffers.isEmpty() ? VkHelper.createCommandBuffer(vkLogicalDevice, vkCommandPool) : freeCommandBuffers.pop());
+			VkHelper.beginCommandBuffer(currentBatch.commandBuffer);
+		}
+		return currentBatch.commandBuffer;
+	}
+
+	/**
+	 * Copies [offset, offset + size) range of src into dstBuffer at the same offset.
+	 * Data is copied into staging memory immediately, so src can be changed right after this call.
+	 * dstStage and dstAccess describe how graphics queue is going to use the buffer.
+	 */
+	public void uploadBuffer(long dstBuffer, ByteBuffer src, int offset, int size, long dstStage, long dstAccess) {
+		if (size <= 0) {
+			return;
+		}
+		// staging can flush current batch when ring is full, so command buffer is taken after it
+		final StagingRange staging = stage(src, offset, size);
+		final VkCommandBuffer commandBuffer = getCommandBuffer();
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkBufferCopy.Buffer copyRegion = VkBufferCopy.calloc(1, stack)
+					.srcOffset(staging.offset())
+					.dstOffset(offset)
+					.size(size);
+			vkCmdCopyBuffer(commandBuffer, staging.vkBuffer(), dstBuffer, copyRegion);
+		}
+		releaseBuffer(dstBuffer, offset, size, dstStage, dstAccess);
+	}
+
+	/**
+	 * Uploads whole staging buffer of vkBuffer, does nothing for buffers without staging buffer (mapped memory)
+	 */
+	public void uploadBuffer(VkBuffer vkBuffer, long dstStage, long dstAccess) {
+		final ByteBuffer stagingBuffer = vkBuffer.getStagingBuffer(vkDeviceInstance);
+		if (stagingBuffer == null) {
+			return;
+		}
+		uploadBuffer(vkBuffer.getHandle(), stagingBuffer, 0, vkBuffer.getBufferSize(), dstStage, dstAccess);
+	}
+
+	/**
+	 * Copies tightly packed pixels into mip level 0 of image and transitions it into SHADER_READ_ONLY_OPTIMAL layout.
+	 * Image contents before the upload are discarded.
+	 */
+	public void uploadImage(long vkImage, int width, int height, ByteBuffer pixels, long dstStage, long dstAccess) {
+		final StagingRange staging = stage(pixels, 0, pixels.remaining());
+		final VkCommandBuffer commandBuffer = getCommandBuffer();
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			imageBarrier(stack, commandBuffer, vkImage,
+					VK_IMAGE_LAYOUT_UNDEFINED, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
+					VK_PIPELINE_STAGE_2_NONE, 0,
+					VK_PIPELINE_STAGE_2_ALL_TRANSFER_BIT, VK_ACCESS_2_TRANSFER_WRITE_BIT,
+					VK_QUEUE_FAMILY_IGNORED, VK_QUEUE_FAMILY_IGNORED);
+
+			final VkBufferImageCopy.Buffer vkBufferImageCopy = VkBufferImageCopy.calloc(1, stack)
+					.bufferOffset(staging.offset())
+					.bufferRowLength(0)
+					.bufferImageHeight(0);
+			vkBufferImageCopy.imageOffset().set(0, 0, 0);
+			vkBufferImageCopy.imageExtent().set(width, height, 1);
+			vkBufferImageCopy.imageSubresource()
+					.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+					.mipLevel(0)
+					.baseArrayLayer(0)
+					.layerCount(1);
+			vkCmdCopyBufferToImage(commandBuffer, staging.vkBuffer(), vkImage, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, vkBufferImageCopy);
+
+			// release (or just transition when families are the same), semaphore wait makes writes visible
+			final boolean transfer = needsOwnershipTransfer();
+			imageBarrier(stack, commandBuffer, vkImage,
+					VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL,
+					VK_PIPELINE_STAGE_2_ALL_TRANSFER_BIT, VK_ACCESS_2_TRANSFER_WRITE_BIT,
+					VK_PIPELINE_STAGE_2_NONE, 0,
+					transfer ? transferFamily : VK_QUEUE_FAMILY_IGNORED,
+					transfer ? graphicsFamily : VK_QUEUE_FAMILY_IGNORED);
+			if (transfer) {
+				currentBatch.imageAcquires.add(new ImageAcquire(vkImage, dstStage, dstAccess));
+			}
+		}
+	}
+
+	// copies data into staging ring, or into temporary staging buffer when it doesn't fit into the ring
+	private StagingRange stage(ByteBuffer src, int offset, int size) {
+		if (size > ringSize) {
+			final VkBuffer stagingBuffer = new VkBuffer();
+			stagingBuffer.createBuffer(vkDeviceInstance, size, VK_BUFFER_USAGE_TRANSFER_SRC_BIT);
+			stagingBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+			memCopy(memAddress(src, offset), memAddress(stagingBuffer.getBuffer(vkDeviceInstance)), size);
+			getCommandBuffer();
+			currentBatch.stagingBuffers.add(stagingBuffer);
+			return new StagingRange(stagingBuffer.getHandle(), 0);
+		}
+		final long ringOffset = allocateRing(size);
+		memCopy(memAddress(src, offset), ringPointer + ringOffset, size);
+		return new StagingRange(ringBuffer.getHandle(), ringOffset);
+	}
+
+	/**
+	 * @return offset inside ring buffer, blocks until older batches free enough space
+	 */
+	private long allocateRing(long size) {
+		while (true) {
+			long start = (ringHead + ALIGNMENT - 1) & -ALIGNMENT;
+			final long inRing = start % ringSize;
+			if (inRing + size > ringSize) {
+				// allocation can't wrap around, skip the end of the ring
+				start += ringSize - inRing;
+			}
+			if (ringHead == ringTail) {
+				// nothing in the ring is in use, skipped space doesn't have to be reclaimed
+				ringTail = start;
+			}
+			if (start + size - ringTail <= ringSize) {
+				ringHead = start + size;
+				return start % ringSize;
+			}
+			if (!submittedBatches.isEmpty()) {
+				waitForValue(submittedBatches.get(0).value);
+				collect();
+			} else {
+				// whole ring is used by current batch
+				flush();
+			}
+		}
+	}
+
+	private void releaseBuffer(long vkBuffer, long offset, long size, long dstStage, long dstAccess) {
+		if (!needsOwnershipTransfer()) {
+			return;
+		}
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkBufferMemoryBarrier2KHR.Buffer barrier = VkBufferMemoryBarrier2KHR.calloc(1, stack);
+			barrier.get(0)
+					.sType$Default()
+					.srcStageMask(VK_PIPELINE_STAGE_2_ALL_TRANSFER_BIT)
+					.srcAccessMask(VK_ACCESS_2_TRANSFER_WRITE_BIT)
+					.dstStageMask(VK_PIPELINE_STAGE_2_NONE)
+					.dstAccessMask(0)
+					.srcQueueFamilyIndex(transferFamily)
+					.dstQueueFamilyIndex(graphicsFamily)
+					.buffer(vkBuffer)
+					.offset(offset)
+					.size(size);
+			final VkDependencyInfoKHR dependencyInfo = VkDependencyInfoKHR.calloc(stack)
+					.sType$Default()
+					.pBufferMemoryBarriers(barrier);
+			vkCmdPipelineBarrier2KHR(currentBatch.commandBuffer, dependencyInfo);
+		}
+		currentBatch.bufferAcquires.add(new BufferAcquire(vkBuffer, offset, size, dstStage, dstAccess));
+	}
+
+	private void imageBarrier(MemoryStack stack, VkCommandBuffer commandBuffer, long vkImage, int oldLayout, int newLayout,
+							  long srcStage, long srcAccess, long dstStage, long dstAccess, int srcFamily, int dstFamily) {
+		final VkImageMemoryBarrier2KHR.Buffer barrier = VkImageMemoryBarrier2KHR.calloc(1, stack);
+		barrier.get(0)
+				.sType$Default()
+				.srcStageMask(srcStage)
+				.srcAccessMask(srcAccess)
+				.dstStageMask(dstStage)
+				.dstAccessMask(dstAccess)
+				.oldLayout(oldLayout)
+				.newLayout(newLayout)
+				.srcQueueFamilyIndex(srcFamily)
+				.dstQueueFamilyIndex(dstFamily)
+				.image(vkImage);
+		barrier.get(0).subresourceRange()
+				.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+				.baseMipLevel(0)
+				.levelCount(1)
+				.baseArrayLayer(0)
+				.layerCount(1);
+		final VkDependencyInfoKHR dependencyInfo = VkDependencyInfoKHR.calloc(stack)
+				.sType$Default()
+				.pImageMemoryBarriers(barrier);
+		vkCmdPipelineBarrier2KHR(commandBuffer, dependencyInfo);
+	}
+
+	/**
+	 * Submits current batch to transfer queue without waiting for it
+	 */
+	public void flush() {
+		collect();
+		if (currentBatch == null) {
+			return;
+		}
+		final Batch batch = currentBatch;
+		currentBatch = null;
+		VkHelper.endCommandBuffer(batch.commandBuffer);
+		batch.value = nextValue++;
+		batch.ringEnd = ringHead;
+
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkCommandBufferSubmitInfoKHR.Buffer commandBufferInfo = VkCommandBufferSubmitInfoKHR.calloc(1, stack);
+			commandBufferInfo.get(0)
+					.sType$Default()
+					.commandBuffer(batch.commandBuffer);
+			final VkSemaphoreSubmitInfoKHR.Buffer signalInfo = VkSemaphoreSubmitInfoKHR.calloc(1, stack);
+			signalInfo.get(0)
+					.sType$Default()
+					.semaphore(vkTimelineSemaphore)
+					.value(batch.value)
+					.stageMask(VK_PIPELINE_STAGE_2_ALL_COMMANDS_BIT);
+			final VkSubmitInfo2KHR.Buffer submitInfo = VkSubmitInfo2KHR.calloc(1, stack);
+			submitInfo.get(0)
+					.sType$Default()
+					.pCommandBufferInfos(commandBufferInfo)
+					.pSignalSemaphoreInfos(signalInfo);
+
+			final int result = vkQueueSubmit2KHR(vkTransferQueue, submitInfo, VK_NULL_HANDLE);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to submit upload command buffer! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+		}
+		bufferAcquires.addAll(batch.bufferAcquires);
+		imageAcquires.addAll(batch.imageAcquires);
+		pendingWaitValue = batch.value;
+		submittedBatches.add(batch);
+	}
+
+	/**
+	 * Records ownership acquire barriers for everything flushed so far into graphics command buffer
+	 * and returns timeline value which graphics submit must wait for (0 if nothing to wait for)
+	 */
+	public long recordAcquireBarriers(VkCommandBuffer graphicsCommandBuffer) {
+		if (!bufferAcquires.isEmpty() || !imageAcquires.isEmpty()) {
+			try (MemoryStack stack = MemoryStack.stackPush()) {
+				final VkBufferMemoryBarrier2KHR.Buffer bufferBarriers = VkBufferMemoryBarrier2KHR.calloc(bufferAcquires.size(), stack);
+				for (int index = 0; index < bufferAcquires.size(); ++index) {
+					final BufferAcquire acquire = bufferAcquires.get(index);
+					bufferBarriers.get(index)
+							.sType$Default()
+							.srcStageMask(VK_PIPELINE_STAGE_2_NONE)
+							.srcAccessMask(0)
+							.dstStageMask(acquire.dstStage)
+							.dstAccessMask(acquire.dstAccess)
+							.srcQueueFamilyIndex(transferFamily)
+							.dstQueueFamilyIndex(graphicsFamily)
+							.buffer(acquire.vkBuffer)
+							.offset(acquire.offset)
+							.size(acquire.size);
+				}
+				final VkImageMemoryBarrier2KHR.Buffer imageBarriers = VkImageMemoryBarrier2KHR.calloc(imageAcquires.size(), stack);
+				for (int index = 0; index < imageAcquires.size(); ++index) {
+					final ImageAcquire acquire = imageAcquires.get(index);
+					imageBarriers.get(index)
+							.sType$Default()
+							.srcStageMask(VK_PIPELINE_STAGE_2_NONE)
+							.srcAccessMask(0)
+							.dstStageMask(acquire.dstStage)
+							.dstAccessMask(acquire.dstAccess)
+							.oldLayout(VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL)
+							.newLayout(VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL)
+							.srcQueueFamilyIndex(transferFamily)
+							.dstQueueFamilyIndex(graphicsFamily)
+							.image(acquire.vkImage);
+					imageBarriers.get(index).subresourceRange()
+							.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+							.baseMipLevel(0)
+							.levelCount(1)
+							.baseArrayLayer(0)
+							.layerCount(1);
+				}
+				final VkDependencyInfoKHR dependencyInfo = VkDependencyInfoKHR.calloc(stack)
+						.sType$Default()
+						.pBufferMemoryBarriers(bufferBarriers)
+						.pImageMemoryBarriers(imageBarriers);
+				vkCmdPipelineBarrier2KHR(graphicsCommandBuffer, dependencyInfo);
+			}
+			bufferAcquires.clear();
+			imageAcquires.clear();
+		}
+		final long waitValue = pendingWaitValue;
+		pendingWaitValue = 0;
+		return waitValue;
+	}
+
+	/**
+	 * Frees command buffers and staging buffers of finished batches
+	 */
+	public void collect() {
+		if (submittedBatches.isEmpty()) {
+			return;
+		}
+		final long completedValue = getCompletedValue();
+		while (!submittedBatches.isEmpty() && submittedBatches.get(0).value <= completedValue) {
+			freeBatch(submittedBatches.removeFirst());
+		}
+	}
+
+	public long getCompletedValue() {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final LongBuffer pValue = stack.mallocLong(1);
+			vkGetSemaphoreCounterValue(vkLogicalDevice, vkTimelineSemaphore, pValue);
+			return pValue.get(0);
+		}
+	}
+
+	/**
+	 * Flushes and blocks until everything is uploaded
+	 */
+	public void waitIdle() {
+		flush();
+		if (submittedBatches.isEmpty()) {
+			return;
+		}
+		waitForValue(nextValue - 1);
+		collect();
+	}
+
+	private void waitForValue(long value) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkSemaphoreWaitInfo waitInfo = VkSemaphoreWaitInfo.calloc(stack)
+					.sType$Default()
+					.semaphoreCount(1)
+					.pSemaphores(stack.longs(vkTimelineSemaphore))
+					.pValues(stack.longs(value));
+			vkWaitSemaphores(vkLogicalDevice, waitInfo, 0xFFFFFFFFFFFFFFFFL);
+		}
+	}
+
+	private void freeBatch(Batch batch) {
+		vkResetCommandBuffer(batch.commandBuffer, 0);
+		freeCommandBuffers.push(batch.commandBuffer);
+		for (VkBuffer stagingBuffer : batch.stagingBuffers) {
+			stagingBuffer.destroyAndFreeMemory(vkDeviceInstance);
+		}
+		// batches finish in submit order, so everything staged before the end of this batch is free
+		ringTail = Math.max(ringTail, batch.ringEnd);
+	}
+
+	public void destroy() {
+		waitIdle();
+		vkDestroySemaphore(vkLogicalDevice, vkTimelineSemaphore, null);
+		ringBuffer.destroyAndFreeMemory(vkDeviceInstance);
+		// frees all command buffers too
+		vkDestroyCommandPool(vkLogicalDevice, vkCommandPool, null);
+	}
+
+	private static class Batch {
+		private final VkCommandBuffer commandBuffer;
+		// temporary staging buffers of uploads which don't fit into the ring
+		private final List<VkBuffer> stagingBuffers = new ArrayList<>();
+		// ring position after last upload of this batch
+		private long ringEnd = 0;
+		private final List<BufferAcquire> bufferAcquires = new ArrayList<>();
+		private final List<ImageAcquire> imageAcquires = new ArrayList<>();
+		private long value = 0;
+
+		private Batch(VkCommandBuffer commandBuffer) {
+			this.commandBuffer = commandBuffer;
+		}
+	}
+
+	private record StagingRange(long vkBuffer, long offset) {
+	}
+
+	private record BufferAcquire(long vkBuffer, long offset, long size, long dstStage, long dstAccess) {
+	}
+
+	private record ImageAcquire(long vkImage, long dstStage, long dstAccess) {
+	}
+}
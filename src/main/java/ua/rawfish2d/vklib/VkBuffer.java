@@ -2,31 +2,37 @@ package ua.rawfish2d.vklib;
 
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
-import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 import ua.rawfish2d.vklib.init.VkDeviceInstance;
+import ua.rawfish2d.vklib.memory.MemoryAllocation;
 import ua.rawfish2d.vklib.utils.VkHelper;
 import ua.rawfish2d.vklib.utils.VkTranslate;
 
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
 
-import static org.lwjgl.system.MemoryUtil.memByteBuffer;
+import static org.lwjgl.system.MemoryUtil.*;
 import static org.lwjgl.vulkan.VK10.*;
 
 @RequiredArgsConstructor
 public class VkBuffer {
 	private long vkBuffer;
-	private long vkBufferMemory;
+	private MemoryAllocation memoryAllocation;
 	@Getter
 	private int bufferSize;
-	private long mappedBufferPointer = 0;
 	private ByteBuffer buffer;
-	private VkBuffer vkStagingBuffer = null;
+	// host side copy of buffer contents, gets copied into StagingArena on upload
+	private ByteBuffer stagingBuffer = null;
+	private StagingArena stagingArena = null;
+	private final DirtyRanges dirtyRanges = new DirtyRanges();
+	// range written by last upload, barriers only cover it
+	private int barrierOffset = 0;
+	private int barrierSize = 0;
 
 	public void createBuffer(VkDeviceInstance vkDeviceInstance, int bufferSize, int usageFlags) {
 		this.bufferSize = bufferSize;
+		this.barrierSize = bufferSize;
 
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			System.out.printf("Buffer size: %d\n", bufferSize);
@@ -48,27 +54,27 @@ public class VkBuffer {
 	}
 
 	public void allocateMemory(VkDeviceInstance vkDeviceInstance, int memoryFlags) {
-		try (MemoryStack stack = MemoryStack.stackPush()) {
-			// check available memory types
-			final VkMemoryRequirements memRequirements = VkMemoryRequirements.malloc(stack);
-			vkGetBufferMemoryRequirements(vkDeviceInstance.getVkLogicalDevice(), vkBuffer, memRequirements);
-
-			final int memoryType = VkHelper.findMemoryType(vkDeviceInstance.getVkPhysicalDevice(), memRequirements.memoryTypeBits(), memoryFlags, stack);
-
-			// allocate memory
-			final VkMemoryAllocateInfo allocInfo = VkMemoryAllocateInfo.calloc(stack)
-					.sType$Default()
-					.allocationSize(bufferSize)
-					.memoryTypeIndex(memoryType);
+		// allocates memory and attaches/binds it to buffer
+		memoryAllocation = vkDeviceInstance.getMemoryAllocator().allocateForBuffer(vkBuffer, memoryFlags);
+	}
 
-			final LongBuffer pVertexBufferMemory = stack.mallocLong(1);
-			if (vkAllocateMemory(vkDeviceInstance.getVkLogicalDevice(), allocInfo, null, pVertexBufferMemory) != VK_SUCCESS) {
-				throw new RuntimeException("Failed to allocate vertex buffer memory!");
-			}
-			vkBufferMemory = pVertexBufferMemory.get(0);
+	/**
+	 * Allocates DEVICE_LOCAL | HOST_VISIBLE memory if device has it so CPU writes go straight to the GPU,
+	 * otherwise allocates DEVICE_LOCAL memory and staging buffer.
+	 * In both cases write through getBuffer() and call upload methods, they do nothing when memory is mapped.
+	 * Only use it for buffers which are not read by GPU while CPU writes them (e.g. one buffer per frame in flight)
+	 */
+	public void allocateMappedOrStaged(VkDeviceInstance vkDeviceInstance) {
+		if (vkDeviceInstance.isHostVisibleDeviceMemory()) {
+			allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT | VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+		} else {
+			allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+			makeStagingBuffer(vkDeviceInstance);
 		}
-		// attach/bind memory to vertex buffer
-		vkBindBufferMemory(vkDeviceInstance.getVkLogicalDevice(), vkBuffer, vkBufferMemory, 0);
+	}
+
+	public boolean isHostVisible() {
+		return memoryAllocation.getMappedPointer() != 0;
 	}
 
 	public long getHandle() {
@@ -76,7 +82,11 @@ public class VkBuffer {
 	}
 
 	public long getMemoryHandle() {
-		return vkBufferMemory;
+		return memoryAllocation.getMemory();
+	}
+
+	public long getMemoryOffset() {
+		return memoryAllocation.getOffset();
 	}
 
 	public void bindVertexBuffer(VkCommandBuffer commandBuffer) {
@@ -96,56 +106,98 @@ public class VkBuffer {
 	}
 
 	public ByteBuffer getStagingBuffer(VkDeviceInstance vkDeviceInstance) {
-		return vkStagingBuffer.getBuffer(vkDeviceInstance);
+		return stagingBuffer;
 	}
 
 	public ByteBuffer getBuffer(VkDeviceInstance vkDeviceInstance) {
-		if (mappedBufferPointer == 0) {
-			// map memory and get buffer
-			try (MemoryStack stack = MemoryStack.stackPush()) {
-				final PointerBuffer pData = stack.mallocPointer(1);
-				vkMapMemory(vkDeviceInstance.getVkLogicalDevice(), vkBufferMemory, 0, bufferSize, 0, pData);
-				mappedBufferPointer = pData.get(0);
+		if (buffer == null) {
+			// host visible memory is persistently mapped by allocator
+			final long mappedPointer = memoryAllocation.getMappedPointer();
+			if (mappedPointer == 0) {
+				if (stagingBuffer != null) {
+					return stagingBuffer;
+				}
+				throw new RuntimeException("Buffer memory is not host visible!");
 			}
-			buffer = memByteBuffer(mappedBufferPointer, bufferSize);
+			buffer = memByteBuffer(mappedPointer, bufferSize);
 		}
 		return buffer;
 	}
 
-	public void makeStagingBuffer(VkDeviceInstance vkDeviceInstance, int usageFlags) {
-		if (vkStagingBuffer != null) {
+	/**
+	 * Staging buffer lives in regular heap memory, device memory is only used by shared StagingArena during upload
+	 */
+	public void makeStagingBuffer(VkDeviceInstance vkDeviceInstance) {
+		if (stagingBuffer != null) {
 			return;
 		}
-		vkStagingBuffer = new VkBuffer();
 		System.out.printf("Creating staging buffer:\n");
-		vkStagingBuffer.createBuffer(vkDeviceInstance, bufferSize, usageFlags);
-		vkStagingBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+		stagingBuffer = memCalloc(bufferSize);
+		stagingArena = vkDeviceInstance.getStagingArena();
 	}
 
 	public void deleteStagingBuffer(VkDeviceInstance vkDeviceInstance) {
-		if (vkStagingBuffer != null) {
-			vkStagingBuffer.destroyAndFreeMemory(vkDeviceInstance);
-			vkStagingBuffer = null;
+		if (stagingBuffer != null) {
+			memFree(stagingBuffer);
+			stagingBuffer = null;
+			stagingArena = null;
 		}
 	}
 
 	public void destroyAndFreeMemory(VkDeviceInstance vkDeviceInstance) {
 		deleteStagingBuffer(vkDeviceInstance);
-		if (mappedBufferPointer != 0) {
-			vkUnmapMemory(vkDeviceInstance.getVkLogicalDevice(), vkBufferMemory);
-		}
 		vkDestroyBuffer(vkDeviceInstance.getVkLogicalDevice(), vkBuffer, null);
-		vkFreeMemory(vkDeviceInstance.getVkLogicalDevice(), vkBufferMemory, null);
+		vkDeviceInstance.getMemoryAllocator().free(memoryAllocation);
+		memoryAllocation = null;
+		buffer = null;
+	}
+
+	/**
+	 * Marks [offset, offset + size) range of staging buffer as changed, it will be uploaded by uploadDirtyRanges
+	 */
+	public void markDirty(int offset, int size) {
+		dirtyRanges.add(offset, size);
+	}
+
+	public void markAllDirty() {
+		dirtyRanges.add(0, bufferSize);
 	}
 
 	public void uploadFromStagingBuffer(VkCommandBuffer commandBuffer) {
-		try (MemoryStack stack = MemoryStack.stackPush()) {
-			final VkBufferCopy.Buffer copyRegion = VkBufferCopy.calloc(1, stack)
-					.srcOffset(0)
-					.dstOffset(0)
-					.size(bufferSize);
-			vkCmdCopyBuffer(commandBuffer, vkStagingBuffer.vkBuffer, vkBuffer, copyRegion);
+		uploadFromStagingBuffer(commandBuffer, 0, bufferSize);
+	}
+
+	/**
+	 * Uploads only [offset, offset + size) range of staging buffer
+	 */
+	public void uploadFromStagingBuffer(VkCommandBuffer commandBuffer, int offset, int size) {
+		dirtyRanges.clear();
+		barrierOffset = offset;
+		barrierSize = size;
+		if (stagingBuffer == null && isHostVisible()) {
+			// CPU already wrote into buffer memory, queue submit makes host writes visible
+			barrierSize = 0;
+			return;
+		}
+		if (size <= 0) {
+			return;
 		}
+		stagingArena.upload(commandBuffer, stagingBuffer, offset, vkBuffer, offset, size);
+	}
+
+	/**
+	 * Uploads only ranges marked with markDirty, all of them are copied with a single vkCmdCopyBuffer
+	 */
+	public void uploadDirtyRanges(VkCommandBuffer commandBuffer) {
+		if (dirtyRanges.isEmpty() || (stagingBuffer == null && isHostVisible())) {
+			dirtyRanges.clear();
+			barrierSize = 0;
+			return;
+		}
+		barrierOffset = dirtyRanges.getMinOffset();
+		barrierSize = dirtyRanges.getMaxEnd() - barrierOffset;
+		stagingArena.upload(commandBuffer, stagingBuffer, vkBuffer, dirtyRanges);
+		dirtyRanges.clear();
 	}
 
 	public static void gigaBarrier(VkCommandBuffer commandBuffer) {
@@ -169,36 +221,104 @@ public class VkBuffer {
 	}
 
 	public void vertexBufferBarrier(VkCommandBuffer commandBuffer) {
+		if (barrierSize <= 0) {
+			return;
+		}
 		VkHelper.bufferMemoryBarrier2(commandBuffer,
-				vkBuffer, bufferSize,
+				vkBuffer, barrierOffset, barrierSize,
 				VK_ACCESS_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT,
 				VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT, VK_PIPELINE_STAGE_VERTEX_INPUT_BIT);
 	}
 
 	public void indexBufferBarrier(VkCommandBuffer commandBuffer) {
+		if (barrierSize <= 0) {
+			return;
+		}
 		VkHelper.bufferMemoryBarrier2(commandBuffer,
-				vkBuffer, bufferSize,
+				vkBuffer, barrierOffset, barrierSize,
 				VK_ACCESS_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT,
 				VK_ACCESS_INDEX_READ_BIT, VK_PIPELINE_STAGE_VERTEX_INPUT_BIT);
 	}
 
 	public void indirectBufferBarrier(VkCommandBuffer commandBuffer) {
+		if (barrierSize <= 0) {
+			return;
+		}
 		VkHelper.bufferMemoryBarrier2(commandBuffer,
-				vkBuffer, bufferSize,
+				vkBuffer, barrierOffset, barrierSize,
 				VK_ACCESS_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT,
 				VK_ACCESS_INDIRECT_COMMAND_READ_BIT, VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT);
 	}
 
 	public void ssboBarrier(VkCommandBuffer commandBuffer) {
+		if (barrierSize <= 0) {
+			return;
+		}
 		VkHelper.bufferMemoryBarrier2(commandBuffer,
-				vkBuffer, bufferSize,
+				vkBuffer, barrierOffset, barrierSize,
 				VK_ACCESS_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT,
 				VK_ACCESS_SHADER_READ_BIT, VK_PIPELINE_STAGE_VERTEX_SHADER_BIT);
 	}
 
+	/**
+	 * Whole buffer was written by compute shader and will be read or written by next dispatch
+	 */
+	public void computeToComputeBarrier(VkCommandBuffer commandBuffer) {
+		VkHelper.bufferMemoryBarrier2(commandBuffer,
+				vkBuffer, 0, bufferSize,
+				VK_ACCESS_SHADER_WRITE_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT,
+				VK_ACCESS_SHADER_READ_BIT | VK_ACCESS_SHADER_WRITE_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT);
+	}
+
+	/**
+	 * Whole buffer was written by compute shader and will be read as SSBO by vertex shader
+	 */
+	public void computeToVertexShaderBarrier(VkCommandBuffer commandBuffer) {
+		VkHelper.bufferMemoryBarrier2(commandBuffer,
+				vkBuffer, 0, bufferSize,
+				VK_ACCESS_SHADER_WRITE_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT,
+				VK_ACCESS_SHADER_READ_BIT, VK_PIPELINE_STAGE_VERTEX_SHADER_BIT);
+	}
+
+	/**
+	 * Whole buffer was written by compute shader and will be read as vertex buffer
+	 */
+	public void computeToVertexInputBarrier(VkCommandBuffer commandBuffer) {
+		VkHelper.bufferMemoryBarrier2(commandBuffer,
+				vkBuffer, 0, bufferSize,
+				VK_ACCESS_SHADER_WRITE_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT,
+				VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT, VK_PIPELINE_STAGE_VERTEX_INPUT_BIT);
+	}
+
+	/**
+	 * Whole buffer was written by compute shader and will be read by indirect draw or dispatch
+	 */
+	public void computeToIndirectBarrier(VkCommandBuffer commandBuffer) {
+		VkHelper.bufferMemoryBarrier2(commandBuffer,
+				vkBuffer, 0, bufferSize,
+				VK_ACCESS_SHADER_WRITE_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT,
+				VK_ACCESS_INDIRECT_COMMAND_READ_BIT, VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT);
+	}
+
+	/**
+	 * Range of last upload will be read by compute shader
+	 */
+	public void transferToComputeBarrier(VkCommandBuffer commandBuffer) {
+		if (barrierSize <= 0) {
+			return;
+		}
+		VkHelper.bufferMemoryBarrier2(commandBuffer,
+				vkBuffer, barrierOffset, barrierSize,
+				VK_ACCESS_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT,
+				VK_ACCESS_SHADER_READ_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT);
+	}
+
 	public void uniformBarrier(VkCommandBuffer commandBuffer) {
+		if (barrierSize <= 0) {
+			return;
+		}
 		VkHelper.bufferMemoryBarrier2(commandBuffer,
-				vkBuffer, bufferSize,
+				vkBuffer, barrierOffset, barrierSize,
 				VK_ACCESS_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT,
 				VK_ACCESS_UNIFORM_READ_BIT, VK_PIPELINE_STAGE_VERTEX_SHADER_BIT);
 	}
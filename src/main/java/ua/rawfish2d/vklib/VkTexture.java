@@ -5,9 +5,9 @@ import org.lwjgl.stb.STBImage;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 import ua.rawfish2d.vklib.init.VkDeviceInstance;
-import ua.rawfish2d.vklib.init.data.VkQueueInfo;
 import ua.rawfish2d.vklib.init.enums.TextureFiltering;
 import ua.rawfish2d.vklib.init.enums.TextureWrap;
+import ua.rawfish2d.vklib.memory.MemoryAllocation;
 import ua.rawfish2d.vklib.utils.VkHelper;
 import ua.rawfish2d.vklib.utils.VkTranslate;
 
@@ -17,25 +17,54 @@ import java.nio.LongBuffer;
 import java.util.Locale;
 
 import static org.lwjgl.vulkan.VK10.*;
+import static org.lwjgl.vulkan.VK13.VK_ACCESS_2_SHADER_SAMPLED_READ_BIT;
+import static org.lwjgl.vulkan.VK13.VK_PIPELINE_STAGE_2_FRAGMENT_SHADER_BIT;
 
 public class VkTexture {
 	private int width = 0;
 	private int height = 0;
 	private int vkFormat = VK_FORMAT_R8G8B8A8_UNORM; // VK_FORMAT_R8G8B8A8_SRGB makes texture appear darker for some reason
 	private long vkTextureImage;
-	private long vkTextureImageMemory;
+	private MemoryAllocation vkTextureImageMemory;
 	@Getter
 	private long vkTextureImageView;
 	@Getter
 	private long vkTextureSampler;
 
 	public void loadAndCreateImage(final String filename, VkDeviceInstance vkDeviceInstance) {
-		final VkDevice vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
-		final VkPhysicalDevice vkPhysicalDevice = vkDeviceInstance.getVkPhysicalDevice();
-		final VkQueueInfo queueInfo = vkDeviceInstance.getVkGraphicsQueue();
-		final VkQueue vkGraphicsQueue = queueInfo.getQueue();
-		long vkCommandPool = queueInfo.getVkCommandPool();
+		final ByteBuffer image = loadPixelsAndCreateImage(filename, vkDeviceInstance);
+		// pixels are copied into staging memory right away, upload itself runs on transfer queue
+		System.out.printf("Uploading texture: %dx%d\n", width, height);
+		vkDeviceInstance.getUploadService().uploadImage(vkTextureImage, width, height, image,
+				VK_PIPELINE_STAGE_2_FRAGMENT_SHADER_BIT, VK_ACCESS_2_SHADER_SAMPLED_READ_BIT);
+		STBImage.stbi_image_free(image);
+
+		createImageViewAndSampler(vkDeviceInstance);
+	}
+
+	/**
+	 * Records layout transitions and copy into immediateContext, everything is submitted by immediateContext.flush(),
+	 * so loading many textures costs one submit
+	 */
+	public void loadAndCreateImage(final String filename, VkDeviceInstance vkDeviceInstance, ImmediateContext immediateContext) {
+		final ByteBuffer image = loadPixelsAndCreateImage(filename, vkDeviceInstance);
+		System.out.printf("Creating texture buffer:\n");
 		final VkBuffer vkStagingBuffer = new VkBuffer();
+		vkStagingBuffer.createBuffer(vkDeviceInstance, image.remaining(), VK_BUFFER_USAGE_TRANSFER_SRC_BIT);
+		vkStagingBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+		vkStagingBuffer.getBuffer(vkDeviceInstance).put(image);
+		STBImage.stbi_image_free(image);
+
+		immediateContext.transitionImageLayout(vkTextureImage, VK_IMAGE_LAYOUT_UNDEFINED, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
+		immediateContext.copyBufferToImage(vkStagingBuffer, vkTextureImage, width, height);
+		immediateContext.transitionImageLayout(vkTextureImage, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+		immediateContext.destroyAfterFlush(vkStagingBuffer);
+
+		createImageViewAndSampler(vkDeviceInstance);
+	}
+
+	// decodes file into RGBA8 pixels and creates device local image of the same size, pixels must be freed with stbi_image_free
+	private ByteBuffer loadPixelsAndCreateImage(final String filename, VkDeviceInstance vkDeviceInstance) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			final IntBuffer pWidth = stack.mallocInt(1);
 			final IntBuffer pHeight = stack.mallocInt(1);
@@ -47,46 +76,17 @@ public class VkTexture {
 			width = pWidth.get(0);
 			height = pHeight.get(0);
 
-			final int imageSize = width * height * 4;
-
-			// staging buffer
-			System.out.printf("Creating texture buffer:\n");
-			vkStagingBuffer.createBuffer(vkDeviceInstance, imageSize, VK_BUFFER_USAGE_TRANSFER_SRC_BIT);
-			vkStagingBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
-			final ByteBuffer byteBuffer = vkStagingBuffer.getBuffer(vkDeviceInstance);
-			byteBuffer.put(image);
-
-			image.position(0);
-			STBImage.stbi_image_free(image);
-
 			final LongBuffer pTextureImage = stack.mallocLong(1);
-			final LongBuffer pTextureImageMemory = stack.mallocLong(1);
-			VkHelper.createImage(vkLogicalDevice, vkPhysicalDevice, vkFormat, width, height, pTextureImage, pTextureImageMemory);
+			vkTextureImageMemory = VkHelper.createImage(vkDeviceInstance.getVkLogicalDevice(), vkDeviceInstance.getMemoryAllocator(), vkFormat, width, height, pTextureImage);
 			vkTextureImage = pTextureImage.get(0);
-			vkTextureImageMemory = pTextureImageMemory.get(0);
-		}
-
-		// TODO make it work with existing command buffer
-		boolean shouldDestroy = false;
-		if (vkCommandPool == 0) {
-			shouldDestroy = true;
-			vkCommandPool = VkHelper.createCommandPool(vkLogicalDevice, 0);
-		}
-		VkHelper.transitionImageLayout(vkLogicalDevice, vkCommandPool, vkGraphicsQueue,
-				vkTextureImage, VK_IMAGE_LAYOUT_UNDEFINED, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
-		VkHelper.copyBufferToImage(vkLogicalDevice, vkCommandPool, vkGraphicsQueue,
-				vkStagingBuffer, vkTextureImage, width, height);
-		VkHelper.transitionImageLayout(vkLogicalDevice, vkCommandPool, vkGraphicsQueue,
-				vkTextureImage, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
-		if (shouldDestroy) {
-			vkDestroyCommandPool(vkLogicalDevice, vkCommandPool, null);
+			return image;
 		}
+	}
 
-		vkStagingBuffer.destroyAndFreeMemory(vkDeviceInstance);
-
+	private void createImageViewAndSampler(VkDeviceInstance vkDeviceInstance) {
+		final VkDevice vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
 		vkTextureImageView = VkHelper.createTextureImageView(vkLogicalDevice, vkTextureImage, vkFormat);
-
-		vkTextureSampler = createSampler(vkPhysicalDevice, vkLogicalDevice);
+		vkTextureSampler = createSampler(vkDeviceInstance.getVkPhysicalDevice(), vkLogicalDevice);
 	}
 
 	private long createSampler(VkPhysicalDevice vkPhysicalDevice, VkDevice vkLogicalDevice) {
@@ -120,6 +120,6 @@ public class VkTexture {
 		vkDestroySampler(vkLogicalDevice, vkTextureSampler, null);
 		vkDestroyImageView(vkLogicalDevice, vkTextureImageView, null);
 		vkDestroyImage(vkLogicalDevice, vkTextureImage, null);
-		vkFreeMemory(vkLogicalDevice, vkTextureImageMemory, null);
+		vkDeviceInstance.getMemoryAllocator().free(vkTextureImageMemory);
 	}
 }
@@ -307,6 +307,24 @@ public class AttribFormat {
 		return bindingDescription;
 	}
 
+	/**
+	 * Appends everything what affects VkPipelineVertexInputStateCreateInfo, used by PipelineRegistry
+	 */
+	public void appendPipelineKey(StringBuilder key) {
+		key.append("layout:").append(bufferLayout);
+		if (bufferLayout == BufferLayout.SEQUENTIAL) {
+			// attribute offsets depend on buffer size
+			key.append(':').append(primitiveCount).append(':').append(verticesPerPrimitive);
+		}
+		for (AttribInfo info : attribInfoList) {
+			key.append("|attrib:").append(info.getAttribBinding())
+					.append(':').append(info.getAttribLocation())
+					.append(':').append(info.getFormat())
+					.append(':').append(info.getDivisor());
+		}
+		key.append('|');
+	}
+
 	public int getSequentialAttribPosition(int attributeIndex) {
 		if (attributeIndex < 0 || attributeIndex >= attribInfoList.size()) {
 			throw new RuntimeException("WTF?? attribute index: " + attributeIndex + " attribute count: " + attribInfoList.size());
@@ -0,0 +1,79 @@
+package ua.rawfish2d.vklib.init;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Pipeline which is being created in background by VkGraphicsPipeline.createAsync().
+ * Usable right away: until compiled pipeline is ready it resolves to fallback pipeline (or to nothing),
+ * then compiled pipeline is swapped in atomically and used starting from the next bind.
+ */
+public class PipelineHandle {
+	private final VkGraphicsPipeline fallback;
+	private final CompletableFuture<VkGraphicsPipeline> future;
+	// written once by compiler thread
+	private volatile VkGraphicsPipeline pipeline = null;
+
+	PipelineHandle(VkGraphicsPipeline fallback, CompletableFuture<VkGraphicsPipeline> future) {
+		this.fallback = fallback;
+		this.future = future;
+		future.whenComplete((compiled, error) -> {
+			if (error != null) {
+				System.out.printf("🔷 Background pipeline creation failed, keeping fallback: %s\n", error.getMessage());
+				error.printStackTrace();
+			} else {
+				pipeline = compiled;
+			}
+		});
+	}
+
+	public boolean isReady() {
+		return pipeline != null;
+	}
+
+	public boolean isFailed() {
+		return future.isCompletedExceptionally();
+	}
+
+	/**
+	 * @return compiled pipeline, fallback while it's not ready, or null if there is no fallback
+	 */
+	public VkGraphicsPipeline get() {
+		final VkGraphicsPipeline ready = pipeline;
+		return ready != null ? ready : fallback;
+	}
+
+	/**
+	 * Binds current pipeline
+	 *
+	 * @return false if there is nothing to bind yet, draw should be skipped then
+	 */
+	public boolean bind(VkCommandBuffer commandBuffer) {
+		final VkGraphicsPipeline current = get();
+		if (current == null) {
+			return false;
+		}
+		current.bindPipeline(commandBuffer);
+		return true;
+	}
+
+	/**
+	 * Blocks until background creation is finished
+	 */
+	public VkGraphicsPipeline join() {
+		return future.join();
+	}
+
+	/**
+	 * Waits for background creation and destroys compiled pipeline and its layout. Fallback is not destroyed
+	 */
+	public void destroy(VkDeviceInstance vkDeviceInstance) {
+		try {
+			future.join().destroyPipelineAndLayout(vkDeviceInstance);
+		} catch (CompletionException e) {
+			// nothing was created
+		}
+	}
+}
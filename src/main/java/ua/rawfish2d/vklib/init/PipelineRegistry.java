@@ -0,0 +1,114 @@
+package ua.rawfish2d.vklib.init;
+
+import lombok.Getter;
+import org.lwjgl.vulkan.VkDevice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Deduplicates graphics pipelines. Key is built by VkGraphicsPipeline from its whole builder state
+ * (shader SPIR-V hashes, vertex format, fixed function state, set layout), pipelines with equal keys share
+ * one VkPipeline and VkPipelineLayout. Shared pipelines are reference counted and destroyed with the last user.
+ * Also keeps graphics pipeline library parts, so pipelines which differ only in some state share the rest.
+ */
+public class PipelineRegistry {
+	private final VkDevice vkLogicalDevice;
+	private final Map<String, Entry> pipelines = new HashMap<>();
+	// graphics pipeline library parts, they live until destroy()
+	private final Map<String, Long> libraries = new HashMap<>();
+	private int hits = 0;
+
+	public PipelineRegistry(VkDevice vkLogicalDevice) {
+		this.vkLogicalDevice = vkLogicalDevice;
+	}
+
+	/**
+	 * @return existing pipeline with this key (its reference count is increased) or null
+	 */
+	public synchronized Entry acquire(String key) {
+		final Entry entry = pipelines.get(key);
+		if (entry != null) {
+			entry.references++;
+			hits++;
+		}
+		return entry;
+	}
+
+	/**
+	 * @return registered entry, if another thread registered the same key first its entry is returned
+	 * (and acquired) instead, then caller must destroy its own pipeline and use returned one
+	 */
+	public synchronized Entry register(String key, long vkPipeline, long vkPipelineLayout) {
+		final Entry existing = acquire(key);
+		if (existing != null) {
+			return existing;
+		}
+		final Entry entry = new Entry(vkPipeline, vkPipelineLayout);
+		pipelines.put(key, entry);
+		return entry;
+	}
+
+	/**
+	 * Destroys pipeline and its layout when nothing else uses them
+	 */
+	public synchronized void release(String key) {
+		final Entry entry = pipelines.get(key);
+		if (entry == null) {
+			throw new RuntimeException("Pipeline is not registered!");
+		}
+		if (--entry.references == 0) {
+			pipelines.remove(key);
+			vkDestroyPipeline(vkLogicalDevice, entry.vkPipeline, null);
+			vkDestroyPipelineLayout(vkLogicalDevice, entry.vkPipelineLayout, null);
+		}
+	}
+
+	/**
+	 * @return pipeline library part with this key or VK_NULL_HANDLE
+	 */
+	public synchronized long getLibrary(String key) {
+		return libraries.getOrDefault(key, VK_NULL_HANDLE);
+	}
+
+	/**
+	 * @return registered library, if the same part was registered first by another thread vkLibrary is destroyed
+	 */
+	public synchronized long registerLibrary(String key, long vkLibrary) {
+		final Long existing = libraries.putIfAbsent(key, vkLibrary);
+		if (existing != null) {
+			vkDestroyPipeline(vkLogicalDevice, vkLibrary, null);
+			return existing;
+		}
+		return vkLibrary;
+	}
+
+	public synchronized void printStats() {
+		System.out.printf("❇️ Pipeline registry: unique pipelines: %d | reused: %d | library parts: %d\n", pipelines.size(), hits, libraries.size());
+	}
+
+	/**
+	 * Destroys library parts, pipelines must be destroyed by their owners before
+	 */
+	public synchronized void destroy() {
+		for (long vkLibrary : libraries.values()) {
+			vkDestroyPipeline(vkLogicalDevice, vkLibrary, null);
+		}
+		libraries.clear();
+	}
+
+	public static class Entry {
+		@Getter
+		private final long vkPipeline;
+		@Getter
+		private final long vkPipelineLayout;
+		private int references = 1;
+
+		private Entry(long vkPipeline, long vkPipelineLayout) {
+			this.vkPipeline = vkPipeline;
+			this.vkPipelineLayout = vkPipelineLayout;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package ua.rawfish2d.vklib.init;
+
+import lombok.Getter;
+import org.joml.Matrix4fc;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+import ua.rawfish2d.vklib.VkBuffer;
+import ua.rawfish2d.vklib.init.data.PushConstantRanges;
+import ua.rawfish2d.vklib.init.data.ShaderStage;
+import ua.rawfish2d.vklib.init.data.SpecializationConstants;
+import ua.rawfish2d.vklib.init.descriptor.BindlessDescriptors;
+import ua.rawfish2d.vklib.init.descriptor.DescriptorSetUpdate;
+import ua.rawfish2d.vklib.init.descriptor.VkDescriptorSetLayout;
+import ua.rawfish2d.vklib.utils.ShaderCompiler;
+import ua.rawfish2d.vklib.utils.VkTranslate;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Compute pipeline with its own descriptor pool, so every user of compute shader can allocate descriptor sets for it.
+ * Shares shader compilation (ShaderCompiler, SPIR-V cache, specialization constants), push constants,
+ * bindless descriptors and pipeline cache with VkGraphicsPipeline
+ */
+public class VkComputePipeline {
+	@Getter
+	private long vkPipelineLayout;
+	@Getter
+	private long vkComputePipeline;
+	private long vkDescriptorPool = VK_NULL_HANDLE;
+	private ShaderStage shaderStage;
+	// filled by compileShaderAsync()
+	private CompletableFuture<ByteBuffer> shaderCodeFuture = null;
+	@Getter
+	private VkDescriptorSetLayout vkDescriptorSetLayout;
+	private final PushConstantRanges pushConstantRanges = new PushConstantRanges();
+	// set 1 if not null
+	@Getter
+	private BindlessDescriptors bindlessDescriptors = null;
+	private int maxDescriptorSets = 1;
+	// local_size of shader, used by dispatchThreads
+	private int workgroupSizeX = 1;
+	private int workgroupSizeY = 1;
+	private int workgroupSizeZ = 1;
+
+	public VkComputePipeline() {
+	}
+
+	public VkComputePipeline setComputeShader(String shaderPath) {
+		return setComputeShader(shaderPath, null);
+	}
+
+	/**
+	 * @param specialization can be null
+	 */
+	public VkComputePipeline setComputeShader(String shaderPath, SpecializationConstants specialization) {
+		this.shaderStage = new ShaderStage(VK_SHADER_STAGE_COMPUTE_BIT, "main", shaderPath, specialization);
+		this.shaderCodeFuture = null;
+		return this;
+	}
+
+	public VkComputePipeline setDescriptorSetLayout(VkDescriptorSetLayout vkDescriptorSetLayout) {
+		this.vkDescriptorSetLayout = vkDescriptorSetLayout;
+		return this;
+	}
+
+	/**
+	 * Adds bindless textures and storage buffers as set 1, bind them with BindlessDescriptors.bind()
+	 */
+	public VkComputePipeline setBindlessDescriptors(BindlessDescriptors bindlessDescriptors) {
+		this.bindlessDescriptors = bindlessDescriptors;
+		return this;
+	}
+
+	/**
+	 * @param offset in bytes, multiple of 4
+	 * @param size   in bytes, multiple of 4
+	 */
+	public VkComputePipeline addPushConstantRange(int offset, int size) {
+		pushConstantRanges.add(VK_SHADER_STAGE_COMPUTE_BIT, offset, size);
+		return this;
+	}
+
+	/**
+	 * Must match layout (local_size_x = x, local_size_y = y, local_size_z = z) of shader, used by dispatchThreads
+	 */
+	public VkComputePipeline workgroupSize(int x, int y, int z) {
+		this.workgroupSizeX = x;
+		this.workgroupSizeY = y;
+		this.workgroupSizeZ = z;
+		return this;
+	}
+
+	/**
+	 * how many descriptor sets can be allocated with allocateDescriptorSet()
+	 */
+	public VkComputePipeline maxDescriptorSets(int maxDescriptorSets) {
+		this.maxDescriptorSets = maxDescriptorSets;
+		return this;
+	}
+
+	/**
+	 * Starts compilation of shader on ShaderCompiler threads, call it before create() to compile shaders of many pipelines in parallel
+	 */
+	public VkComputePipeline compileShaderAsync() {
+		if (shaderCodeFuture == null) {
+			shaderCodeFuture = ShaderCompiler.compileAsync(shaderStage.shaderPath(), shaderStage.stageType());
+		}
+		return this;
+	}
+
+	public VkComputePipeline create(VkDeviceInstance deviceInstance) {
+		final long startTime = System.nanoTime();
+		final VkDevice vkLogicalDevice = deviceInstance.getVkLogicalDevice();
+		final String shaderPath = shaderStage.shaderPath();
+		compileShaderAsync();
+		final ByteBuffer shaderCode;
+		try {
+			shaderCode = shaderCodeFuture.join();
+		} catch (CompletionException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Failed to compile shader! Shader path: " + shaderPath, e.getCause());
+		}
+
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkShaderModuleCreateInfo moduleCreateInfo = VkShaderModuleCreateInfo.calloc(stack)
+					.sType$Default()
+					.pCode(shaderCode);
+			final LongBuffer pShaderModule = stack.mallocLong(1);
+			if (vkCreateShaderModule(vkLogicalDevice, moduleCreateInfo, null, pShaderModule) != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create shader module! Shader path: " + shaderPath);
+			}
+			final long vkShaderModule = pShaderModule.get(0);
+
+			final VkPipelineLayoutCreateInfo pipelineLayoutInfo = VkPipelineLayoutCreateInfo.calloc(stack)
+					.sType$Default()
+					.pSetLayouts(bindlessDescriptors == null ?
+							stack.longs(vkDescriptorSetLayout.getHandle()) :
+							stack.longs(vkDescriptorSetLayout.getHandle(), bindlessDescriptors.getHandle()))
+					.pPushConstantRanges(pushConstantRanges.makePushConstantRanges(deviceInstance.getVkPhysicalDevice(), stack));
+			final LongBuffer pPipelineLayout = stack.mallocLong(1);
+			if (vkCreatePipelineLayout(vkLogicalDevice, pipelineLayoutInfo, null, pPipelineLayout) != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create pipeline layout!");
+			}
+			vkPipelineLayout = pPipelineLayout.get(0);
+
+			final VkComputePipelineCreateInfo.Buffer pipelineInfos = VkComputePipelineCreateInfo.calloc(1, stack)
+					.sType$Default()
+					.layout(vkPipelineLayout)
+					.basePipelineHandle(VK_NULL_HANDLE)
+					.basePipelineIndex(-1);
+			pipelineInfos.stage()
+					.sType$Default()
+					.stage(VK_SHADER_STAGE_COMPUTE_BIT)
+					.module(vkShaderModule)
+					.pName(stack.UTF8(shaderStage.entryPointName()))
+					.pSpecializationInfo(shaderStage.specialization() == null ? null : shaderStage.specialization().makeSpecializationInfo(stack));
+
+			final LongBuffer pComputePipeline = stack.mallocLong(1);
+			final int result = vkCreateComputePipelines(vkLogicalDevice, deviceInstance.getPipelineCache().getHandle(), pipelineInfos, null, pComputePipeline);
+			vkDestroyShaderModule(vkLogicalDevice, vkShaderModule, null);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create compute pipeline! " + VkTranslate.translateVulkanResult(result));
+			}
+			vkComputePipeline = pComputePipeline.get(0);
+
+			final VkDescriptorPoolCreateInfo poolCreateInfo = VkDescriptorPoolCreateInfo.calloc(stack)
+					.sType$Default()
+					.pPoolSizes(vkDescriptorSetLayout.makeDescriptorPoolSizes(stack, maxDescriptorSets))
+					.maxSets(maxDescriptorSets);
+			final LongBuffer pDescriptorPool = stack.mallocLong(1);
+			if (vkCreateDescriptorPool(vkLogicalDevice, poolCreateInfo, null, pDescriptorPool) != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create descriptor pool!");
+			}
+			vkDescriptorPool = pDescriptorPool.get(0);
+		}
+		System.out.printf("❇️ Compute pipeline %s created in %.3f ms\n", shaderPath, (System.nanoTime() - startTime) / 1_000_000.0);
+		return this;
+	}
+
+	/**
+	 * Allocates descriptor set from pipeline descriptor pool and writes descriptors into it
+	 */
+	public long allocateDescriptorSet(VkDeviceInstance deviceInstance, List<DescriptorSetUpdate> descriptorSetUpdates) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkDescriptorSetAllocateInfo allocInfo = VkDescriptorSetAllocateInfo.calloc(stack)
+					.sType$Default()
+					.descriptorPool(vkDescriptorPool)
+					.pSetLayouts(stack.longs(vkDescriptorSetLayout.getHandle()));
+			final LongBuffer pDescriptorSet = stack.mallocLong(1);
+			final int result = vkAllocateDescriptorSets(deviceInstance.getVkLogicalDevice(), allocInfo, pDescriptorSet);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to allocate descriptor set! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			final long vkDescriptorSet = pDescriptorSet.get(0);
+			final VkWriteDescriptorSet.Buffer descriptorWrite = VkDeviceInstance.makeWriteDescriptorSet(vkDescriptorSet, descriptorSetUpdates);
+			vkUpdateDescriptorSets(deviceInstance.getVkLogicalDevice(), descriptorWrite, null);
+			return vkDescriptorSet;
+		}
+	}
+
+	public void bindPipeline(VkCommandBuffer commandBuffer) {
+		vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, vkComputePipeline);
+	}
+
+	public void bindDescriptorSet(VkCommandBuffer commandBuffer, long vkDescriptorSet) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, vkPipelineLayout, 0, stack.longs(vkDescriptorSet), null);
+		}
+	}
+
+	public void pushConstants(VkCommandBuffer commandBuffer, int offset, ByteBuffer data) {
+		pushConstantRanges.push(commandBuffer, vkPipelineLayout, offset, data);
+	}
+
+	public void pushConstants(VkCommandBuffer commandBuffer, int offset, float... values) {
+		pushConstantRanges.push(commandBuffer, vkPipelineLayout, offset, values);
+	}
+
+	public void pushConstants(VkCommandBuffer commandBuffer, int offset, int... values) {
+		pushConstantRanges.push(commandBuffer, vkPipelineLayout, offset, values);
+	}
+
+	public void pushConstants(VkCommandBuffer commandBuffer, int offset, Matrix4fc matrix) {
+		pushConstantRanges.push(commandBuffer, vkPipelineLayout, offset, matrix);
+	}
+
+	public void dispatch(VkCommandBuffer commandBuffer, int groupCountX, int groupCountY, int groupCountZ) {
+		vkCmdDispatch(commandBuffer, groupCountX, groupCountY, groupCountZ);
+	}
+
+	/**
+	 * Dispatches enough workgroups to cover given number of invocations (see workgroupSize),
+	 * shader must skip invocations which are out of range
+	 */
+	public void dispatchThreads(VkCommandBuffer commandBuffer, int countX, int countY, int countZ) {
+		vkCmdDispatch(commandBuffer,
+				(countX + workgroupSizeX - 1) / workgroupSizeX,
+				(countY + workgroupSizeY - 1) / workgroupSizeY,
+				(countZ + workgroupSizeZ - 1) / workgroupSizeZ);
+	}
+
+	public void dispatchThreads(VkCommandBuffer commandBuffer, int count) {
+		dispatchThreads(commandBuffer, count, 1, 1);
+	}
+
+	/**
+	 * Workgroup counts are read from VkDispatchIndirectCommand {uint x, y, z} at offset of buffer,
+	 * which must be created with VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT. Use VkBuffer.computeToIndirectBarrier
+	 * if it was written by previous dispatch
+	 */
+	public void dispatchIndirect(VkCommandBuffer commandBuffer, VkBuffer buffer, long offset) {
+		vkCmdDispatchIndirect(commandBuffer, buffer.getHandle(), offset);
+	}
+
+	public void destroyPipelineAndLayout(VkDeviceInstance vkDeviceInstance) {
+		final VkDevice vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
+		vkDestroyDescriptorPool(vkLogicalDevice, vkDescriptorPool, null);
+		vkDestroyPipeline(vkLogicalDevice, vkComputePipeline, null);
+		vkDestroyPipelineLayout(vkLogicalDevice, vkPipelineLayout, null);
+	}
+
+	public void destroy(VkDeviceInstance vkDeviceInstance) {
+		destroyPipelineAndLayout(vkDeviceInstance);
+		vkDestroyDescriptorSetLayout(vkDeviceInstance.getVkLogicalDevice(), vkDescriptorSetLayout.getHandle(), null);
+	}
+}
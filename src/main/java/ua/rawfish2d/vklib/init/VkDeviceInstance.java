@@ -6,10 +6,19 @@ import org.lwjgl.system.JNI;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.*;
+import ua.rawfish2d.vklib.ImmediateContext;
+import ua.rawfish2d.vklib.StagingArena;
+import ua.rawfish2d.vklib.UploadService;
 import ua.rawfish2d.vklib.WindowVK;
 import ua.rawfish2d.vklib.init.data.*;
 import ua.rawfish2d.vklib.init.descriptor.DescriptorSetUpdate;
 import ua.rawfish2d.vklib.init.descriptor.VkDescriptorSetLayout;
+import ua.rawfish2d.vklib.init.enums.FramePacing;
+import ua.rawfish2d.vklib.init.enums.MemoryAllocatorType;
+import ua.rawfish2d.vklib.memory.BlockMemoryAllocator;
+import ua.rawfish2d.vklib.memory.MemoryAllocator;
+import ua.rawfish2d.vklib.memory.VmaMemoryAllocator;
+import ua.rawfish2d.vklib.utils.ShaderCompiler;
 import ua.rawfish2d.vklib.utils.VkHelper;
 import ua.rawfish2d.vklib.utils.VkTranslate;
 
@@ -17,6 +26,7 @@ import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.IntStream;
@@ -24,11 +34,16 @@ import java.util.stream.IntStream;
 import static org.lwjgl.glfw.GLFWVulkan.glfwCreateWindowSurface;
 import static org.lwjgl.glfw.GLFWVulkan.glfwGetRequiredInstanceExtensions;
 import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.EXTExtendedDynamicState3.VK_EXT_EXTENDED_DYNAMIC_STATE_3_EXTENSION_NAME;
+import static org.lwjgl.vulkan.EXTGraphicsPipelineLibrary.VK_EXT_GRAPHICS_PIPELINE_LIBRARY_EXTENSION_NAME;
 import static org.lwjgl.vulkan.KHRDynamicRendering.VK_KHR_DYNAMIC_RENDERING_EXTENSION_NAME;
+import static org.lwjgl.vulkan.KHRDynamicRendering.VK_RENDERING_CONTENTS_SECONDARY_COMMAND_BUFFERS_BIT_KHR;
+import static org.lwjgl.vulkan.KHRPipelineLibrary.VK_KHR_PIPELINE_LIBRARY_EXTENSION_NAME;
 import static org.lwjgl.vulkan.KHRSurface.*;
 import static org.lwjgl.vulkan.KHRSwapchain.*;
 import static org.lwjgl.vulkan.KHRSynchronization2.vkQueueSubmit2KHR;
 import static org.lwjgl.vulkan.VK10.*;
+import static org.lwjgl.vulkan.VK12.*;
 import static org.lwjgl.vulkan.VK13.VK_API_VERSION_1_3;
 import static org.lwjgl.vulkan.VK13.vkQueueSubmit2;
 
@@ -46,10 +61,45 @@ public class VkDeviceInstance {
 	private VkPhysicalDevice vkPhysicalDevice;
 	private VkDevice vkLogicalDevice;
 	private long vkSurface;
+	private MemoryAllocator memoryAllocator;
+	private MemoryAllocatorType memoryAllocatorType = MemoryAllocatorType.BLOCK;
+	private long memoryBlockSize = BlockMemoryAllocator.DEFAULT_BLOCK_SIZE;
+	private StagingArena stagingArena;
+	private UploadService uploadService;
+	private ImmediateContext immediateContext;
+	private VkPipelineCache pipelineCache;
+	private PipelineRegistry pipelineRegistry;
+	// VK_EXT_graphics_pipeline_library, disabled after device creation if not supported
+	private boolean graphicsPipelineLibrary = true;
+	// cull mode, front face, topology, primitive restart, line width and depth state are set from command buffer
+	private boolean extendedDynamicState = false;
+	// VK_EXT_extended_dynamic_state3 polygon mode and blend enable, only with extendedDynamicState and if supported
+	private boolean extendedDynamicState3 = false;
+	// descriptor indexing for BindlessDescriptors, disabled after device creation if not supported
+	private boolean bindless = false;
+	// vkCmdDrawIndexedIndirectCount, enabled if supported
+	private boolean drawIndirectCount = false;
+	// null disables saving and loading of pipeline cache
+	private String pipelineCacheFile = "pipeline_cache.bin";
+	private FramePacing framePacing = FramePacing.FENCE;
+	// TIMELINE frame pacing only, its value is the number of the last finished frame
+	private long vkFrameTimelineSemaphore = VK_NULL_HANDLE;
+	// number of submitted frames
+	private long frameCounter = 0;
+	// FENCE frame pacing only, highest frame which fence was waited for
+	private long completedFrame = 0;
+	// resources which can be destroyed after frame with specific number is finished
+	private final ArrayDeque<DeferredRelease> deferredReleases = new ArrayDeque<>();
+	// timeline value of uploadService which graphics submit of current frame waits for
+	private long uploadWaitValue = 0;
+	private long stagingArenaSize = StagingArena.DEFAULT_FRAME_SIZE;
+	private long uploadRingSize = UploadService.DEFAULT_RING_SIZE;
 	private String applicationName = "Vulkan App";
 	private String engineName = "No Engine";
 	private int vulkanVersion = VK_API_VERSION_1_3;
 	private boolean transparentFramebuffer = false;
+	// allow CPU to write straight into device local memory (resizable BAR) instead of using staging buffers
+	private boolean hostVisibleDeviceMemory = true;
 	private long vkDescriptorPool;
 	// swap chain stuff
 	private boolean vsync = true;
@@ -107,6 +157,90 @@ public class VkDeviceInstance {
 		return this;
 	}
 
+	/**
+	 * size of device memory blocks which buffers and images are sub-allocated from, should be power of two
+	 */
+	public VkDeviceInstance memoryBlockSize(long memoryBlockSize) {
+		this.memoryBlockSize = memoryBlockSize;
+		return this;
+	}
+
+	/**
+	 * BLOCK - own buddy block allocator, VMA - Vulkan Memory Allocator (lwjgl-vma)
+	 */
+	public VkDeviceInstance memoryAllocator(MemoryAllocatorType memoryAllocatorType) {
+		this.memoryAllocatorType = memoryAllocatorType;
+		return this;
+	}
+
+	/**
+	 * how many bytes can be uploaded through staging buffers during one frame
+	 */
+	public VkDeviceInstance stagingArenaSize(long stagingArenaSize) {
+		this.stagingArenaSize = stagingArenaSize;
+		return this;
+	}
+
+	/**
+	 * size of staging ring of UploadService, bigger uploads get their own temporary staging buffer
+	 */
+	public VkDeviceInstance uploadRingSize(long uploadRingSize) {
+		this.uploadRingSize = uploadRingSize;
+		return this;
+	}
+
+	/**
+	 * allows buffers to use DEVICE_LOCAL | HOST_VISIBLE memory when device has it, see VkBuffer.allocateMappedOrStaged
+	 */
+	public VkDeviceInstance hostVisibleDeviceMemory(boolean hostVisibleDeviceMemory) {
+		this.hostVisibleDeviceMemory = hostVisibleDeviceMemory;
+		return this;
+	}
+
+	/**
+	 * FENCE - wait and reset fence of every FrameInFlight (default)
+	 * TIMELINE - single timeline semaphore which is signaled with frame number after every frame
+	 */
+	public VkDeviceInstance framePacing(FramePacing framePacing) {
+		this.framePacing = framePacing;
+		return this;
+	}
+
+	/**
+	 * file where VkPipelineCache is stored between launches, null to keep it in memory only
+	 */
+	public VkDeviceInstance pipelineCacheFile(String pipelineCacheFile) {
+		this.pipelineCacheFile = pipelineCacheFile;
+		return this;
+	}
+
+	/**
+	 * builds pipelines from shared parts with VK_EXT_graphics_pipeline_library when device supports it,
+	 * parts are linked with link time optimization. Otherwise pipeline variants are created as derivatives
+	 */
+	public VkDeviceInstance graphicsPipelineLibrary(boolean graphicsPipelineLibrary) {
+		this.graphicsPipelineLibrary = graphicsPipelineLibrary;
+		return this;
+	}
+
+	/**
+	 * makes most of rasterization state dynamic (Vulkan 1.3 extended dynamic state 1 and 2, plus polygon mode
+	 * and blend enable from VK_EXT_extended_dynamic_state3 when supported), so pipelines which differ only
+	 * in these states are the same VkPipeline. Values are recorded by VkGraphicsPipeline.bindPipeline
+	 */
+	public VkDeviceInstance extendedDynamicState(boolean extendedDynamicState) {
+		this.extendedDynamicState = extendedDynamicState;
+		return this;
+	}
+
+	/**
+	 * enables descriptor indexing features which are needed by BindlessDescriptors
+	 */
+	public VkDeviceInstance bindless(boolean bindless) {
+		this.bindless = bindless;
+		return this;
+	}
+
 	public VkDeviceInstance transparentFramebuffer(boolean transparentFramebuffer) {
 		this.transparentFramebuffer = transparentFramebuffer;
 		return this;
@@ -125,7 +259,17 @@ public class VkDeviceInstance {
 		}
 		pickPhysicalDevice();
 		VkHelper.printMemoryTypes(vkPhysicalDevice);
+		if (hostVisibleDeviceMemory) {
+			hostVisibleDeviceMemory = VkHelper.hasMemoryType(vkPhysicalDevice, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT | VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+			System.out.printf("Host visible device local memory: %b\n", hostVisibleDeviceMemory);
+		}
 		createLogicalDevice();
+		memoryAllocator = switch (memoryAllocatorType) {
+			case BLOCK -> new BlockMemoryAllocator(vkLogicalDevice, vkPhysicalDevice, memoryBlockSize);
+			case VMA -> new VmaMemoryAllocator(vkInstance, vkPhysicalDevice, vkLogicalDevice, vulkanVersion);
+		};
+		pipelineCache = new VkPipelineCache(vkPhysicalDevice, vkLogicalDevice, pipelineCacheFile);
+		pipelineRegistry = new PipelineRegistry(vkLogicalDevice);
 
 		System.out.printf("vkGetInstanceProcAddr\n");
 		System.out.printf("vkQueueSubmit2 address: %d\n", vkGetInstanceProcAddr(vkInstance, "vkQueueSubmit2"));
@@ -149,6 +293,12 @@ public class VkDeviceInstance {
 		for (FrameInFlight frameInFlight : frameInFlights) {
 			frameInFlight.createCommandBuffer(this);
 		}
+		stagingArena = new StagingArena(this, stagingArenaSize, swapChainImageCount);
+		uploadService = new UploadService(this, uploadRingSize);
+		immediateContext = new ImmediateContext(this);
+		if (framePacing == FramePacing.TIMELINE) {
+			vkFrameTimelineSemaphore = VkHelper.createTimelineSemaphore(vkLogicalDevice);
+		}
 		return this;
 	}
 
@@ -256,15 +406,60 @@ public class VkDeviceInstance {
 					.synchronization2(true)
 					.dynamicRendering(true);
 
+			final VkPhysicalDeviceVulkan12Features vulkan12Features = VkPhysicalDeviceVulkan12Features.calloc(stack)
+					.sType$Default()
+					.pNext(vulkan13Features.address())
+					.timelineSemaphore(true);
+
 			final VkPhysicalDeviceFeatures2 physicalDeviceFeatures2 = VkPhysicalDeviceFeatures2.calloc(stack)
 					.sType$Default()
-					.pNext(vulkan13Features.address());
+					.pNext(vulkan12Features.address());
 
 			physicalDeviceFeatures2.features().geometryShader(true);
 			physicalDeviceFeatures2.features().samplerAnisotropy(true);
 			physicalDeviceFeatures2.features().multiDrawIndirect(true);
 
-			final PointerBuffer extensions = VkHelper.stringsToPointerBuffer(stack, requiredDeviceExtensions);
+			final List<String> deviceExtensions = new ArrayList<>(requiredDeviceExtensions);
+			graphicsPipelineLibrary = graphicsPipelineLibrary && isGraphicsPipelineLibrarySupported(stack);
+			if (graphicsPipelineLibrary) {
+				deviceExtensions.add(VK_KHR_PIPELINE_LIBRARY_EXTENSION_NAME);
+				deviceExtensions.add(VK_EXT_GRAPHICS_PIPELINE_LIBRARY_EXTENSION_NAME);
+				final VkPhysicalDeviceGraphicsPipelineLibraryFeaturesEXT graphicsPipelineLibraryFeatures = VkPhysicalDeviceGraphicsPipelineLibraryFeaturesEXT.calloc(stack)
+						.sType$Default()
+						.graphicsPipelineLibrary(true)
+						.pNext(vulkan13Features.pNext());
+				vulkan13Features.pNext(graphicsPipelineLibraryFeatures.address());
+			}
+			System.out.printf("🔷 Graphics pipeline library: %b\n", graphicsPipelineLibrary);
+			// extended dynamic state 1 and 2 are core in Vulkan 1.3
+			extendedDynamicState3 = extendedDynamicState && isExtendedDynamicState3Supported(stack);
+			if (extendedDynamicState3) {
+				deviceExtensions.add(VK_EXT_EXTENDED_DYNAMIC_STATE_3_EXTENSION_NAME);
+				final VkPhysicalDeviceExtendedDynamicState3FeaturesEXT extendedDynamicState3Features = VkPhysicalDeviceExtendedDynamicState3FeaturesEXT.calloc(stack)
+						.sType$Default()
+						.extendedDynamicState3PolygonMode(true)
+						.extendedDynamicState3ColorBlendEnable(true)
+						.pNext(vulkan13Features.pNext());
+				vulkan13Features.pNext(extendedDynamicState3Features.address());
+			}
+			System.out.printf("🔷 Extended dynamic state: %b | extended dynamic state 3: %b\n", extendedDynamicState, extendedDynamicState3);
+			final VkPhysicalDeviceVulkan12Features supportedVulkan12Features = getSupportedVulkan12Features(stack);
+			drawIndirectCount = supportedVulkan12Features.drawIndirectCount();
+			vulkan12Features.drawIndirectCount(drawIndirectCount);
+			System.out.printf("🔷 Draw indirect count: %b\n", drawIndirectCount);
+			bindless = bindless && isBindlessSupported(supportedVulkan12Features);
+			if (bindless) {
+				vulkan12Features
+						.runtimeDescriptorArray(true)
+						.shaderSampledImageArrayNonUniformIndexing(true)
+						.shaderStorageBufferArrayNonUniformIndexing(true)
+						.descriptorBindingPartiallyBound(true)
+						.descriptorBindingSampledImageUpdateAfterBind(true)
+						.descriptorBindingStorageBufferUpdateAfterBind(true);
+			}
+			System.out.printf("🔷 Bindless descriptors: %b\n", bindless);
+
+			final PointerBuffer extensions = VkHelper.stringsToPointerBuffer(stack, deviceExtensions);
 			// can be malloc() only if all fields are explicitly set
 			// otherwise use calloc()
 			// generally, if you allocate memory which will be immediately rewritten - use malloc
@@ -309,6 +504,66 @@ public class VkDeviceInstance {
 		}
 	}
 
+	private boolean isGraphicsPipelineLibrarySupported(MemoryStack stack) {
+		if (!isDeviceExtensionSupported(vkPhysicalDevice, VK_KHR_PIPELINE_LIBRARY_EXTENSION_NAME, stack) ||
+				!isDeviceExtensionSupported(vkPhysicalDevice, VK_EXT_GRAPHICS_PIPELINE_LIBRARY_EXTENSION_NAME, stack)) {
+			return false;
+		}
+		final VkPhysicalDeviceGraphicsPipelineLibraryFeaturesEXT graphicsPipelineLibraryFeatures = VkPhysicalDeviceGraphicsPipelineLibraryFeaturesEXT.calloc(stack)
+				.sType$Default();
+		final VkPhysicalDeviceFeatures2 features2 = VkPhysicalDeviceFeatures2.calloc(stack)
+				.sType$Default()
+				.pNext(graphicsPipelineLibraryFeatures.address());
+		vkGetPhysicalDeviceFeatures2(vkPhysicalDevice, features2);
+		return graphicsPipelineLibraryFeatures.graphicsPipelineLibrary();
+	}
+
+	private boolean isExtendedDynamicState3Supported(MemoryStack stack) {
+		if (!isDeviceExtensionSupported(vkPhysicalDevice, VK_EXT_EXTENDED_DYNAMIC_STATE_3_EXTENSION_NAME, stack)) {
+			return false;
+		}
+		final VkPhysicalDeviceExtendedDynamicState3FeaturesEXT extendedDynamicState3Features = VkPhysicalDeviceExtendedDynamicState3FeaturesEXT.calloc(stack)
+				.sType$Default();
+		final VkPhysicalDeviceFeatures2 features2 = VkPhysicalDeviceFeatures2.calloc(stack)
+				.sType$Default()
+				.pNext(extendedDynamicState3Features.address());
+		vkGetPhysicalDeviceFeatures2(vkPhysicalDevice, features2);
+		return extendedDynamicState3Features.extendedDynamicState3PolygonMode() &&
+				extendedDynamicState3Features.extendedDynamicState3ColorBlendEnable();
+	}
+
+	private VkPhysicalDeviceVulkan12Features getSupportedVulkan12Features(MemoryStack stack) {
+		final VkPhysicalDeviceVulkan12Features vulkan12Features = VkPhysicalDeviceVulkan12Features.calloc(stack)
+				.sType$Default();
+		final VkPhysicalDeviceFeatures2 features2 = VkPhysicalDeviceFeatures2.calloc(stack)
+				.sType$Default()
+				.pNext(vulkan12Features.address());
+		vkGetPhysicalDeviceFeatures2(vkPhysicalDevice, features2);
+		return vulkan12Features;
+	}
+
+	private static boolean isBindlessSupported(VkPhysicalDeviceVulkan12Features vulkan12Features) {
+		return vulkan12Features.runtimeDescriptorArray() &&
+				vulkan12Features.shaderSampledImageArrayNonUniformIndexing() &&
+				vulkan12Features.shaderStorageBufferArrayNonUniformIndexing() &&
+				vulkan12Features.descriptorBindingPartiallyBound() &&
+				vulkan12Features.descriptorBindingSampledImageUpdateAfterBind() &&
+				vulkan12Features.descriptorBindingStorageBufferUpdateAfterBind();
+	}
+
+	private static boolean isDeviceExtensionSupported(VkPhysicalDevice device, String extensionName, MemoryStack stack) {
+		final IntBuffer pExtensionCount = stack.mallocInt(1);
+		vkEnumerateDeviceExtensionProperties(device, (ByteBuffer) null, pExtensionCount, null);
+		final VkExtensionProperties.Buffer vkExtensionProperties = VkExtensionProperties.malloc(pExtensionCount.get(0), stack);
+		vkEnumerateDeviceExtensionProperties(device, (ByteBuffer) null, pExtensionCount, vkExtensionProperties);
+		for (VkExtensionProperties extensionProperties : vkExtensionProperties) {
+			if (extensionProperties.extensionNameString().equals(extensionName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public static void enumerateAndPrintDeviceExtensions() {
 		// VK_EXT_descriptor_buffer
 		try (MemoryStack stack = MemoryStack.stackPush()) {
@@ -362,7 +617,16 @@ public class VkDeviceInstance {
 		return null;
 	}
 
+	/**
+	 * prefers dedicated transfer queue family (without graphics and compute), falls back to any family with transfer support
+	 */
 	public VkQueueInfo getVkTransferQueue() {
+		for (VkQueueInfo queue2 : vkQueueDataList) {
+			final int queueType = queue2.getIndexInfo().queueType();
+			if ((queueType & VK_QUEUE_TRANSFER_BIT) == VK_QUEUE_TRANSFER_BIT && (queueType & (VK_QUEUE_GRAPHICS_BIT | VK_QUEUE_COMPUTE_BIT)) == 0) {
+				return queue2;
+			}
+		}
 		for (VkQueueInfo queue2 : vkQueueDataList) {
 			if ((queue2.getIndexInfo().queueType() & VK_QUEUE_TRANSFER_BIT) == VK_QUEUE_TRANSFER_BIT) {
 				return queue2;
@@ -775,7 +1039,17 @@ public class VkDeviceInstance {
 
 			// takes 1.3 - 1.5 ms
 //			long time = System.nanoTime();
-			vkWaitForFences(vkLogicalDevice, frameInFlight.getVkInFlightFence(), true, UINT64_MAX);
+			if (framePacing == FramePacing.TIMELINE) {
+				waitForFrame(frameInFlight.getSubmittedFrame());
+			} else {
+				vkWaitForFences(vkLogicalDevice, frameInFlight.getVkInFlightFence(), true, UINT64_MAX);
+				completedFrame = Math.max(completedFrame, frameInFlight.getSubmittedFrame());
+			}
+			// GPU is done with staging memory and command buffers of this frame
+			stagingArena.beginFrame(currentFrame);
+			frameInFlight.resetCommandBuffers();
+			releaseDeferred();
+			uploadService.flush();
 //			log_perf("vkWaitForFences", System.nanoTime() - time);
 //			while (vkWaitForFences(vkLogicalDevice, framebuffer.getVkInFlightFence(), true, 100_000) == VK_TIMEOUT) {
 //				;
@@ -796,7 +1070,9 @@ public class VkDeviceInstance {
 			} else if (acquireNextImageKHRResult != VK_SUCCESS && acquireNextImageKHRResult != VK_SUBOPTIMAL_KHR) {
 				throw new RuntimeException(String.format("Failed to acquire swap chain image! %d | %s", acquireNextImageKHRResult, VkTranslate.translateVulkanResult(acquireNextImageKHRResult)));
 			}
-			vkResetFences(vkLogicalDevice, frameInFlight.getVkInFlightFence());
+			if (framePacing == FramePacing.FENCE) {
+				vkResetFences(vkLogicalDevice, frameInFlight.getVkInFlightFence());
+			}
 			this.currentImageIndex = imageIndex;
 		}
 	}
@@ -892,6 +1168,10 @@ public class VkDeviceInstance {
 
 	public void destroy() {
 		vkDeviceWaitIdle(vkLogicalDevice);
+		for (DeferredRelease deferredRelease : deferredReleases) {
+			deferredRelease.release().run();
+		}
+		deferredReleases.clear();
 
 		if (vkExtent2D != null) {
 			vkExtent2D.free();
@@ -909,12 +1189,27 @@ public class VkDeviceInstance {
 			frameInFlight.free(this);
 		}
 		frameInFlights.clear();
+		immediateContext.destroy();
+		if (vkFrameTimelineSemaphore != VK_NULL_HANDLE) {
+			vkDestroySemaphore(vkLogicalDevice, vkFrameTimelineSemaphore, null);
+		}
+		uploadService.destroy();
+		stagingArena.destroy(this);
 
 		for (VkQueueInfo vkQueueInfo : vkQueueDataList) {
 			vkQueueInfo.destroyCommandPool();
 		}
 
+		// anything still alive here is a leak
+		memoryAllocator.printStats();
+		memoryAllocator.destroy();
+
+		// all pipelines were created by now, so this is the most complete state of the cache
+		pipelineRegistry.printStats();
+		pipelineRegistry.destroy();
+		pipelineCache.destroy();
 		vkDestroyDevice(vkLogicalDevice, null);
+		ShaderCompiler.shutdown();
 		vkDestroySurfaceKHR(vkInstance, vkSurface, null);
 		vkDestroyInstance(vkInstance, null);
 	}
@@ -940,17 +1235,27 @@ public class VkDeviceInstance {
 //	}
 
 	public VkSubmitInfo2KHR getSubmitInfoKHR(MemoryStack stack, VkCommandBuffer commandBuffer, FrameInFlight frameInFlight) {
+		final int waitSemaphoreCount = uploadWaitValue != 0 ? 2 : 1;
 		final VkSubmitInfo2KHR submitInfo = VkSubmitInfo2KHR.calloc(stack)
 				.sType$Default()
-				.pWaitSemaphoreInfos(VkSemaphoreSubmitInfoKHR.calloc(1, stack).put(0, VkSemaphoreSubmitInfoKHR.calloc(stack)))
+				.pWaitSemaphoreInfos(VkSemaphoreSubmitInfoKHR.calloc(waitSemaphoreCount, stack))
 				.pCommandBufferInfos(VkCommandBufferSubmitInfoKHR.calloc(1, stack).put(0, VkCommandBufferSubmitInfoKHR.calloc(stack)))
-				.pSignalSemaphoreInfos(VkSemaphoreSubmitInfoKHR.calloc(1, stack).put(0, VkSemaphoreSubmitInfoKHR.calloc(stack)));
+				.pSignalSemaphoreInfos(VkSemaphoreSubmitInfoKHR.calloc(framePacing == FramePacing.TIMELINE ? 2 : 1, stack));
 
 		submitInfo.pWaitSemaphoreInfos().get(0)
 				.sType$Default()
 				.deviceIndex(0)
 				.stageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT)
 				.semaphore(frameInFlight.getVkImageAvailableSemaphore());
+		if (uploadWaitValue != 0) {
+			// uploads from transfer queue
+			submitInfo.pWaitSemaphoreInfos().get(1)
+					.sType$Default()
+					.deviceIndex(0)
+					.stageMask(VK_PIPELINE_STAGE_ALL_COMMANDS_BIT)
+					.semaphore(uploadService.getVkTimelineSemaphore())
+					.value(uploadWaitValue);
+		}
 
 		submitInfo.pCommandBufferInfos().get(0)
 				.sType$Default()
@@ -962,21 +1267,39 @@ public class VkDeviceInstance {
 				.deviceIndex(0)
 				.stageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT)
 				.semaphore(frameInFlight.getVkRenderFinishedSemaphore());
+		if (framePacing == FramePacing.TIMELINE) {
+			submitInfo.pSignalSemaphoreInfos().get(1)
+					.sType$Default()
+					.deviceIndex(0)
+					.stageMask(VK_PIPELINE_STAGE_ALL_COMMANDS_BIT)
+					.semaphore(vkFrameTimelineSemaphore)
+					.value(frameCounter + 1);
+		}
 		return submitInfo;
 	}
 
 	public VkSubmitInfo2 getSubmitInfo(MemoryStack stack, VkCommandBuffer commandBuffer, FrameInFlight frameInFlight) {
+		final int waitSemaphoreCount = uploadWaitValue != 0 ? 2 : 1;
 		final VkSubmitInfo2 submitInfo = VkSubmitInfo2.calloc(stack)
 				.sType$Default()
-				.pWaitSemaphoreInfos(VkSemaphoreSubmitInfo.calloc(1, stack).put(0, VkSemaphoreSubmitInfo.calloc(stack)))
+				.pWaitSemaphoreInfos(VkSemaphoreSubmitInfo.calloc(waitSemaphoreCount, stack))
 				.pCommandBufferInfos(VkCommandBufferSubmitInfo.calloc(1, stack).put(0, VkCommandBufferSubmitInfo.calloc(stack)))
-				.pSignalSemaphoreInfos(VkSemaphoreSubmitInfo.calloc(1, stack).put(0, VkSemaphoreSubmitInfo.calloc(stack)));
+				.pSignalSemaphoreInfos(VkSemaphoreSubmitInfo.calloc(framePacing == FramePacing.TIMELINE ? 2 : 1, stack));
 
 		submitInfo.pWaitSemaphoreInfos().get(0)
 				.sType$Default()
 				.deviceIndex(0)
 				.stageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT)
 				.semaphore(frameInFlight.getVkImageAvailableSemaphore());
+		if (uploadWaitValue != 0) {
+			// uploads from transfer queue
+			submitInfo.pWaitSemaphoreInfos().get(1)
+					.sType$Default()
+					.deviceIndex(0)
+					.stageMask(VK_PIPELINE_STAGE_ALL_COMMANDS_BIT)
+					.semaphore(uploadService.getVkTimelineSemaphore())
+					.value(uploadWaitValue);
+		}
 
 		submitInfo.pCommandBufferInfos().get(0)
 				.sType$Default()
@@ -988,6 +1311,14 @@ public class VkDeviceInstance {
 				.deviceIndex(0)
 				.stageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT)
 				.semaphore(frameInFlight.getVkRenderFinishedSemaphore());
+		if (framePacing == FramePacing.TIMELINE) {
+			submitInfo.pSignalSemaphoreInfos().get(1)
+					.sType$Default()
+					.deviceIndex(0)
+					.stageMask(VK_PIPELINE_STAGE_ALL_COMMANDS_BIT)
+					.semaphore(vkFrameTimelineSemaphore)
+					.value(frameCounter + 1);
+		}
 		return submitInfo;
 	}
 
@@ -1158,13 +1489,21 @@ public class VkDeviceInstance {
 	}
 
 	public void beginRendering(VkCommandBuffer vkCommandBuffer) {
+		beginRendering(vkCommandBuffer, false);
+	}
+
+	/**
+	 * @param secondaryCommandBuffers true if everything inside will be recorded by ParallelRecorder
+	 */
+	public void beginRendering(VkCommandBuffer vkCommandBuffer, boolean secondaryCommandBuffers) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			VkHelper.beginRendering(stack, vkCommandBuffer,
 					vkSwapChainImages.get(currentImageIndex),
 					vkSwapChainImageViews[currentImageIndex],
 					VkHelper.vkGetClearValue(stack, 0, 0, 0, 255),
 					vkExtent2D.width(),
-					vkExtent2D.height());
+					vkExtent2D.height(),
+					secondaryCommandBuffers ? VK_RENDERING_CONTENTS_SECONDARY_COMMAND_BUFFERS_BIT_KHR : 0);
 		}
 	}
 
@@ -1200,6 +1539,7 @@ public class VkDeviceInstance {
 		final FrameInFlight frameInFlight = frameInFlights.get(currentFrame);
 		final VkCommandBuffer vkCommandBuffer = frameInFlight.getVkCommandBuffer();
 		VkHelper.beginCommandBuffer(vkCommandBuffer);
+		uploadWaitValue = uploadService.recordAcquireBarriers(vkCommandBuffer);
 		return vkCommandBuffer;
 	}
 
@@ -1223,6 +1563,8 @@ public class VkDeviceInstance {
 
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			final VkQueueInfo graphicsQueue = getVkGraphicsQueue();
+			// timeline semaphore is signaled instead of the fence
+			final long vkFence = framePacing == FramePacing.FENCE ? frameInFlight.getVkInFlightFence() : VK_NULL_HANDLE;
 
 			int result = VK_ERROR_UNKNOWN;
 			if (queueSubmitMode == QueueSubmitMode.DEVICE) {
@@ -1231,14 +1573,14 @@ public class VkDeviceInstance {
 				final VkSubmitInfo2.Buffer submitInfoBuffer = VkSubmitInfo2.calloc(1, stack);
 				submitInfoBuffer.put(0, submitInfo);
 
-				result = vkQueueSubmit2(graphicsQueue.getQueue(), submitInfoBuffer, frameInFlight.getVkInFlightFence());
+				result = vkQueueSubmit2(graphicsQueue.getQueue(), submitInfoBuffer, vkFence);
 			} else if (queueSubmitMode == QueueSubmitMode.EXTENSION) {
 				// this should work fine
 				final VkSubmitInfo2KHR submitInfo = getSubmitInfoKHR(stack, vkCommandBuffer, frameInFlight);
 				final VkSubmitInfo2KHR.Buffer submitInfoBuffer = VkSubmitInfo2KHR.calloc(1, stack);
 				submitInfoBuffer.put(0, submitInfo);
 
-				result = vkQueueSubmit2KHR(graphicsQueue.getQueue(), submitInfoBuffer, frameInFlight.getVkInFlightFence());
+				result = vkQueueSubmit2KHR(graphicsQueue.getQueue(), submitInfoBuffer, vkFence);
 			} else if (queueSubmitMode == QueueSubmitMode.DEVICE_NATIVE) {
 				// this should also always work
 				final VkSubmitInfo2 submitInfo = getSubmitInfo(stack, vkCommandBuffer, frameInFlight);
@@ -1250,13 +1592,15 @@ public class VkDeviceInstance {
 						graphicsQueue.getQueue().address(),
 						submitInfoBuffer.remaining(),
 						submitInfoBuffer.address(),
-						frameInFlight.getVkInFlightFence(),
+						vkFence,
 						__functionAddress);
 			}
 
 			if (result != VK_SUCCESS) {
 				throw new RuntimeException("Failed to submit command buffer! " + VkTranslate.translateVulkanResult(result));
 			}
+			frameCounter++;
+			frameInFlight.setSubmittedFrame(frameCounter);
 		}
 	}
 
@@ -1267,4 +1611,89 @@ public class VkDeviceInstance {
 	public FrameInFlight getCurrentFrameInFlight() {
 		return frameInFlights.get(currentFrame);
 	}
+
+	/**
+	 * @return number of the frame which is being recorded right now
+	 */
+	public long getCurrentFrameNumber() {
+		return frameCounter + 1;
+	}
+
+	/**
+	 * Non blocking check if GPU has finished frame with specified number
+	 */
+	public boolean isFrameComplete(long frame) {
+		if (framePacing == FramePacing.FENCE) {
+			if (frame <= completedFrame) {
+				return true;
+			}
+			final FrameInFlight frameInFlight = findSubmittedFrameInFlight(frame);
+			if (frameInFlight == null || vkGetFenceStatus(vkLogicalDevice, frameInFlight.getVkInFlightFence()) != VK_SUCCESS) {
+				return false;
+			}
+			completedFrame = Math.max(completedFrame, frameInFlight.getSubmittedFrame());
+			return true;
+		}
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final LongBuffer pValue = stack.mallocLong(1);
+			vkGetSemaphoreCounterValue(vkLogicalDevice, vkFrameTimelineSemaphore, pValue);
+			return frame <= pValue.get(0);
+		}
+	}
+
+	/**
+	 * Blocks until GPU finishes frame with specified number, waits for frame timeline semaphore with TIMELINE frame pacing
+	 * or for in flight fence of the frame with FENCE frame pacing
+	 */
+	public void waitForFrame(long frame) {
+		if (frame == 0 || isFrameComplete(frame)) {
+			return;
+		}
+		if (framePacing == FramePacing.FENCE) {
+			final FrameInFlight waitFrame = findSubmittedFrameInFlight(frame);
+			if (waitFrame == null) {
+				throw new RuntimeException("Failed to wait for frame " + frame + "! It was not submitted yet");
+			}
+			vkWaitForFences(vkLogicalDevice, waitFrame.getVkInFlightFence(), true, 0xFFFFFFFFFFFFFFFFL);
+			completedFrame = Math.max(completedFrame, waitFrame.getSubmittedFrame());
+			return;
+		}
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkSemaphoreWaitInfo waitInfo = VkSemaphoreWaitInfo.calloc(stack)
+					.sType$Default()
+					.semaphoreCount(1)
+					.pSemaphores(stack.longs(vkFrameTimelineSemaphore))
+					.pValues(stack.longs(frame));
+			vkWaitSemaphores(vkLogicalDevice, waitInfo, 0xFFFFFFFFFFFFFFFFL);
+		}
+	}
+
+	// FENCE frame pacing only, frame in flight with the earliest submitted frame which is not older than requested one,
+	// its fence is signaled after requested frame since queue finishes frames in order. Null if frame wasn't submitted yet
+	private FrameInFlight findSubmittedFrameInFlight(long frame) {
+		FrameInFlight found = null;
+		for (FrameInFlight frameInFlight : frameInFlights) {
+			final long submittedFrame = frameInFlight.getSubmittedFrame();
+			if (submittedFrame >= frame && (found == null || submittedFrame < found.getSubmittedFrame())) {
+				found = frameInFlight;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Runs release after GPU finishes current frame, e.g. to destroy buffer which is still used by frames in flight
+	 */
+	public void releaseAfterFrame(Runnable release) {
+		deferredReleases.add(new DeferredRelease(getCurrentFrameNumber(), release));
+	}
+
+	private void releaseDeferred() {
+		while (!deferredReleases.isEmpty() && isFrameComplete(deferredReleases.peek().frame())) {
+			deferredReleases.poll().release().run();
+		}
+	}
+
+	private record DeferredRelease(long frame, Runnable release) {
+	}
 }
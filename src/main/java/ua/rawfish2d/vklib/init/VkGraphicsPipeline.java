@@ -1,11 +1,17 @@
 package ua.rawfish2d.vklib.init;
 
 import lombok.Getter;
+import org.joml.Matrix4fc;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 import ua.rawfish2d.vklib.attrib.AttribFormat;
+import ua.rawfish2d.vklib.init.data.PushConstantRanges;
 import ua.rawfish2d.vklib.init.data.ShaderStage;
+import ua.rawfish2d.vklib.init.data.SpecializationConstants;
+import ua.rawfish2d.vklib.init.descriptor.BindlessDescriptors;
 import ua.rawfish2d.vklib.init.descriptor.VkDescriptorSetLayout;
+import ua.rawfish2d.vklib.utils.ShaderCompiler;
+import ua.rawfish2d.vklib.utils.SpirvCache;
 import ua.rawfish2d.vklib.utils.VkHelper;
 import ua.rawfish2d.vklib.utils.VkTranslate;
 
@@ -15,14 +21,30 @@ import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
+import static org.lwjgl.vulkan.EXTExtendedDynamicState3.*;
+import static org.lwjgl.vulkan.EXTGraphicsPipelineLibrary.*;
+import static org.lwjgl.vulkan.KHRPipelineLibrary.VK_PIPELINE_CREATE_LIBRARY_BIT_KHR;
 import static org.lwjgl.vulkan.VK10.*;
+import static org.lwjgl.vulkan.VK13.*;
 
 public class VkGraphicsPipeline {
 	@Getter
 	private long vkPipelineLayout;
+	@Getter
 	private long vkGraphicsPipeline;
+	// key in PipelineRegistry, set by create()
+	private String pipelineKey = null;
+	// handle of pipeline which this one was derived from, see derive()
+	private long basePipelineHandle = VK_NULL_HANDLE;
+	// false for variants made by derive(), layout belongs to base pipeline
+	private boolean ownsDescriptorSetLayout = true;
 	private final List<ShaderStage> shaderStagesInfoList = new ArrayList<>();
+	// SPIR-V of every stage in shaderStagesInfoList, filled by compileShadersAsync()
+	private final List<CompletableFuture<ByteBuffer>> shaderCodeFutures = new ArrayList<>();
 	private AttribFormat attribFormat;
 	private int topology = VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST;
 	private boolean primitiveRestart = false;
@@ -37,8 +59,18 @@ public class VkGraphicsPipeline {
 	private int srcAlphaBlendFactor = VK_BLEND_FACTOR_ONE;
 	private int dstAlphaBlendFactor = VK_BLEND_FACTOR_ZERO;
 	private int alphaBlendOp = VK_BLEND_OP_ADD;
+	private boolean depthTest = false;
+	private boolean depthWrite = false;
+	private int depthCompareOp = VK_COMPARE_OP_LESS_OR_EQUAL;
 	@Getter
 	private VkDescriptorSetLayout vkDescriptorSetLayout;
+	private final PushConstantRanges pushConstantRanges = new PushConstantRanges();
+	// set 1 if not null
+	@Getter
+	private BindlessDescriptors bindlessDescriptors = null;
+	// copied from VkDeviceInstance by create(), states which are recorded by bindPipeline instead of being baked in
+	private boolean extendedDynamicState = false;
+	private boolean extendedDynamicState3 = false;
 
 	public VkGraphicsPipeline() {
 	}
@@ -53,6 +85,37 @@ public class VkGraphicsPipeline {
 		return this;
 	}
 
+	public VkGraphicsPipeline addVertexShader(String shaderPath, SpecializationConstants specialization) {
+		shaderStagesInfoList.add(new ShaderStage(VK_SHADER_STAGE_VERTEX_BIT, "main", shaderPath, specialization));
+		return this;
+	}
+
+	public VkGraphicsPipeline addFragmentShader(String shaderPath, SpecializationConstants specialization) {
+		shaderStagesInfoList.add(new ShaderStage(VK_SHADER_STAGE_FRAGMENT_BIT, "main", shaderPath, specialization));
+		return this;
+	}
+
+	/**
+	 * Replaces specialization constants of already added stage, e.g. in a variant made by derive().
+	 * Shader is not recompiled, constants are applied by driver when pipeline is created
+	 *
+	 * @param stageType VK_SHADER_STAGE_VERTEX_BIT, VK_SHADER_STAGE_FRAGMENT_BIT etc
+	 */
+	public VkGraphicsPipeline specialization(int stageType, SpecializationConstants specialization) {
+		boolean found = false;
+		for (int index = 0; index < shaderStagesInfoList.size(); ++index) {
+			final ShaderStage stage = shaderStagesInfoList.get(index);
+			if (stage.stageType() == stageType) {
+				shaderStagesInfoList.set(index, stage.withSpecialization(specialization));
+				found = true;
+			}
+		}
+		if (!found) {
+			throw new RuntimeException("Pipeline has no shader stage " + stageType + "!");
+		}
+		return this;
+	}
+
 	public VkGraphicsPipeline attribFormat(AttribFormat attribFormat) {
 		this.attribFormat = attribFormat;
 		return this;
@@ -157,40 +220,196 @@ public class VkGraphicsPipeline {
 		return this;
 	}
 
+	public VkGraphicsPipeline depthTest(boolean depthTest) {
+		this.depthTest = depthTest;
+		return this;
+	}
+
+	public VkGraphicsPipeline depthWrite(boolean depthWrite) {
+		this.depthWrite = depthWrite;
+		return this;
+	}
+
+	/**
+	 * VK_COMPARE_OP_LESS, VK_COMPARE_OP_LESS_OR_EQUAL, VK_COMPARE_OP_GREATER etc
+	 */
+	public VkGraphicsPipeline depthCompareOp(int depthCompareOp) {
+		this.depthCompareOp = depthCompareOp;
+		return this;
+	}
+
 	public VkGraphicsPipeline setDescriptorSetLayout(VkDescriptorSetLayout vkDescriptorSetLayout) {
 		this.vkDescriptorSetLayout = vkDescriptorSetLayout;
 		return this;
 	}
 
+	/**
+	 * Adds bindless textures and storage buffers as set 1, bind them with BindlessDescriptors.bind()
+	 */
+	public VkGraphicsPipeline setBindlessDescriptors(BindlessDescriptors bindlessDescriptors) {
+		this.bindlessDescriptors = bindlessDescriptors;
+		return this;
+	}
+
+	/**
+	 * Small data which is pushed with pushConstants() while recording, without buffers and descriptors.
+	 * Only 128 bytes in total are guaranteed by every device
+	 *
+	 * @param stageFlags VK_SHADER_STAGE_VERTEX_BIT, VK_SHADER_STAGE_FRAGMENT_BIT etc
+	 */
+	public VkGraphicsPipeline addPushConstantRange(int stageFlags, int offset, int size) {
+		pushConstantRanges.add(stageFlags, offset, size);
+		return this;
+	}
+
+	/**
+	 * @return new builder with the same state, change e.g. blending or culling and create() it.
+	 * Variant reuses compiled parts of this pipeline (graphics pipeline library) or is created as its derivative,
+	 * in that case base pipeline must be created before derive() and alive until variant is created.
+	 * Variant shares descriptor set layout of this pipeline, its destroy() doesn't destroy the layout
+	 */
+	public VkGraphicsPipeline derive() {
+		final VkGraphicsPipeline variant = new VkGraphicsPipeline();
+		variant.shaderStagesInfoList.addAll(shaderStagesInfoList);
+		variant.shaderCodeFutures.addAll(shaderCodeFutures);
+		variant.attribFormat = attribFormat;
+		variant.topology = topology;
+		variant.primitiveRestart = primitiveRestart;
+		variant.polygonMode = polygonMode;
+		variant.lineWidth = lineWidth;
+		variant.cullMode = cullMode;
+		variant.winding = winding;
+		variant.blending = blending;
+		variant.srcColorBlendFactor = srcColorBlendFactor;
+		variant.dstColorBlendFactor = dstColorBlendFactor;
+		variant.colorBlendOp = colorBlendOp;
+		variant.srcAlphaBlendFactor = srcAlphaBlendFactor;
+		variant.dstAlphaBlendFactor = dstAlphaBlendFactor;
+		variant.alphaBlendOp = alphaBlendOp;
+		variant.depthTest = depthTest;
+		variant.depthWrite = depthWrite;
+		variant.depthCompareOp = depthCompareOp;
+		variant.vkDescriptorSetLayout = vkDescriptorSetLayout;
+		variant.ownsDescriptorSetLayout = false;
+		variant.pushConstantRanges.addAll(pushConstantRanges);
+		variant.bindlessDescriptors = bindlessDescriptors;
+		variant.basePipelineHandle = vkGraphicsPipeline;
+		return variant;
+	}
+
+	/**
+	 * Starts compilation of all shader stages on ShaderCompiler threads.
+	 * Call it for every pipeline before create() so shaders of all pipelines are compiled in parallel
+	 */
+	public VkGraphicsPipeline compileShadersAsync() {
+		// futures of stages copied by derive() are reused, only stages added after that are compiled
+		for (int index = shaderCodeFutures.size(); index < shaderStagesInfoList.size(); ++index) {
+			final ShaderStage stage = shaderStagesInfoList.get(index);
+			shaderCodeFutures.add(ShaderCompiler.compileAsync(stage.shaderPath(), stage.stageType()));
+		}
+		return this;
+	}
+
+	/**
+	 * Compiles shaders of all pipelines in parallel and then creates pipelines
+	 */
+	public static void createAll(VkDeviceInstance deviceInstance, List<VkGraphicsPipeline> pipelines) {
+		for (VkGraphicsPipeline pipeline : pipelines) {
+			pipeline.compileShadersAsync();
+		}
+		for (VkGraphicsPipeline pipeline : pipelines) {
+			pipeline.create(deviceInstance);
+		}
+	}
+
+	/**
+	 * Compiles shaders and creates pipeline on ShaderCompiler threads without blocking the caller.
+	 * Returned handle resolves to fallback (can be null, then draws should be skipped) until pipeline is ready.
+	 * Fallback must have compatible pipeline layout with this pipeline.
+	 */
+	public PipelineHandle createAsync(VkDeviceInstance deviceInstance, VkGraphicsPipeline fallback) {
+		compileShadersAsync();
+		final CompletableFuture<VkGraphicsPipeline> future = CompletableFuture.allOf(shaderCodeFutures.toArray(new CompletableFuture<?>[0]))
+				// create() rethrows shader compilation errors with shader path
+				.handleAsync((ignored, error) -> create(deviceInstance), ShaderCompiler.getPool());
+		return new PipelineHandle(fallback, future);
+	}
+
 	public VkGraphicsPipeline create(VkDeviceInstance deviceInstance) {
+		final long startTime = System.nanoTime();
+		compileShadersAsync();
+		final List<ByteBuffer> shaderCodes = new ArrayList<>();
+		for (int index = 0; index < shaderStagesInfoList.size(); ++index) {
+			try {
+				shaderCodes.add(shaderCodeFutures.get(index).join());
+			} catch (CompletionException e) {
+				e.printStackTrace();
+				throw new RuntimeException("Failed to compile shader! Shader path: " + shaderStagesInfoList.get(index).shaderPath(), e.getCause());
+			}
+		}
+
+		extendedDynamicState = deviceInstance.isExtendedDynamicState();
+		extendedDynamicState3 = deviceInstance.isExtendedDynamicState3();
+		final PipelineRegistry pipelineRegistry = deviceInstance.getPipelineRegistry();
+		final String[] partKeys = makePartKeys(deviceInstance, shaderCodes);
+		pipelineKey = String.join("#", partKeys);
+		final PipelineRegistry.Entry existing = pipelineRegistry.acquire(pipelineKey);
+		if (existing != null) {
+			vkGraphicsPipeline = existing.getVkPipeline();
+			vkPipelineLayout = existing.getVkPipelineLayout();
+			System.out.printf("❇️ Graphics pipeline reused in %.3f ms\n", (System.nanoTime() - startTime) / 1_000_000.0);
+			return this;
+		}
+
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			final VkPipelineShaderStageCreateInfo.Buffer vkShaderStagesBuffer = VkPipelineShaderStageCreateInfo.calloc(shaderStagesInfoList.size(), stack);
+			// the same stages split for pipeline library parts
+			final int fragmentStageCount = (int) shaderStagesInfoList.stream().filter(stage -> stage.stageType() == VK_SHADER_STAGE_FRAGMENT_BIT).count();
+			final VkPipelineShaderStageCreateInfo.Buffer preRasterizationStages = VkPipelineShaderStageCreateInfo.calloc(shaderStagesInfoList.size() - fragmentStageCount, stack);
+			final VkPipelineShaderStageCreateInfo.Buffer fragmentStages = VkPipelineShaderStageCreateInfo.calloc(fragmentStageCount, stack);
 			final List<Long> shaderModules = new ArrayList<>();
-			for (ShaderStage stage : shaderStagesInfoList) {
-				final long vkShaderModule;
-				try {
-					vkShaderModule = createShaderModule(deviceInstance.getVkLogicalDevice(), stage.shaderPath(), stage.stageType(), stack);
-				} catch (IOException e) {
-					e.printStackTrace();
-					// RIPBOZO
-					throw new RuntimeException("Exception: " + e);
-				}
+			for (int index = 0; index < shaderStagesInfoList.size(); ++index) {
+				final ShaderStage stage = shaderStagesInfoList.get(index);
+				final long vkShaderModule = createShaderModule(deviceInstance.getVkLogicalDevice(), shaderCodes.get(index), stage.shaderPath(), stack);
 				final VkPipelineShaderStageCreateInfo vkShadeStageCreateInfo = VkPipelineShaderStageCreateInfo.calloc(stack)
 						.sType$Default()
 						.stage(stage.stageType())
 						.module(vkShaderModule)
 						.pName(stack.UTF8(stage.entryPointName()))
-						.pSpecializationInfo(null);
+						.pSpecializationInfo(stage.specialization() == null ? null : stage.specialization().makeSpecializationInfo(stack));
 				vkShaderStagesBuffer.put(vkShadeStageCreateInfo);
+				if (stage.stageType() == VK_SHADER_STAGE_FRAGMENT_BIT) {
+					fragmentStages.put(vkShadeStageCreateInfo);
+				} else {
+					preRasterizationStages.put(vkShadeStageCreateInfo);
+				}
 				shaderModules.add(vkShaderModule);
 			}
 			vkShaderStagesBuffer.flip();
+			preRasterizationStages.flip();
+			fragmentStages.flip();
 
 			// ==========
 
-			final IntBuffer dynamicStates = stack.mallocInt(2);
-			dynamicStates.put(0, VK_DYNAMIC_STATE_VIEWPORT);
-			dynamicStates.put(1, VK_DYNAMIC_STATE_SCISSOR);
+			final IntBuffer dynamicStates = stack.mallocInt(12);
+			dynamicStates.put(VK_DYNAMIC_STATE_VIEWPORT);
+			dynamicStates.put(VK_DYNAMIC_STATE_SCISSOR);
+			if (extendedDynamicState) {
+				// values below are only used as defaults, actual ones are recorded by bindPipeline
+				dynamicStates.put(VK_DYNAMIC_STATE_CULL_MODE);
+				dynamicStates.put(VK_DYNAMIC_STATE_FRONT_FACE);
+				dynamicStates.put(VK_DYNAMIC_STATE_PRIMITIVE_TOPOLOGY);
+				dynamicStates.put(VK_DYNAMIC_STATE_PRIMITIVE_RESTART_ENABLE);
+				dynamicStates.put(VK_DYNAMIC_STATE_LINE_WIDTH);
+				dynamicStates.put(VK_DYNAMIC_STATE_DEPTH_TEST_ENABLE);
+				dynamicStates.put(VK_DYNAMIC_STATE_DEPTH_WRITE_ENABLE);
+				dynamicStates.put(VK_DYNAMIC_STATE_DEPTH_COMPARE_OP);
+			}
+			if (extendedDynamicState3) {
+				dynamicStates.put(VK_DYNAMIC_STATE_POLYGON_MODE_EXT);
+				dynamicStates.put(VK_DYNAMIC_STATE_COLOR_BLEND_ENABLE_EXT);
+			}
+			dynamicStates.flip();
 			final VkPipelineDynamicStateCreateInfo dynamicState = VkPipelineDynamicStateCreateInfo.calloc(stack)
 					.sType$Default()
 					.pDynamicStates(dynamicStates);
@@ -247,12 +466,11 @@ public class VkGraphicsPipeline {
 
 			// ========== DEPTH STENCIL ==========
 
-			// TODO
 			final VkPipelineDepthStencilStateCreateInfo depthStencil = VkPipelineDepthStencilStateCreateInfo.calloc(stack)
 					.sType$Default()
-					.depthCompareOp(VK_COMPARE_OP_LESS_OR_EQUAL)
-					.depthTestEnable(false)
-					.depthWriteEnable(false)
+					.depthCompareOp(depthCompareOp)
+					.depthTestEnable(depthTest)
+					.depthWriteEnable(depthWrite)
 					.minDepthBounds(0f)
 					.maxDepthBounds(1f)
 					.depthBoundsTestEnable(false)
@@ -306,9 +524,10 @@ public class VkGraphicsPipeline {
 
 			final VkPipelineLayoutCreateInfo pipelineLayoutInfo = VkPipelineLayoutCreateInfo.calloc(stack)
 					.sType$Default()
-					.setLayoutCount(1)
-					.pSetLayouts(stack.longs(vkDescriptorSetLayout.getHandle()))
-					.pPushConstantRanges(null); // Optional
+					.pSetLayouts(bindlessDescriptors == null ?
+							stack.longs(vkDescriptorSetLayout.getHandle()) :
+							stack.longs(vkDescriptorSetLayout.getHandle(), bindlessDescriptors.getHandle()))
+					.pPushConstantRanges(pushConstantRanges.makePushConstantRanges(deviceInstance.getVkPhysicalDevice(), stack));
 
 			final LongBuffer pPipelineLayout = stack.mallocLong(1);
 			if (vkCreatePipelineLayout(deviceInstance.getVkLogicalDevice(), pipelineLayoutInfo, null, pPipelineLayout) != VK_SUCCESS) {
@@ -318,53 +537,213 @@ public class VkGraphicsPipeline {
 
 			// ========== LAYOUT ==========
 
-			// finally
-			final VkGraphicsPipelineCreateInfo.Buffer pipelineInfos = VkGraphicsPipelineCreateInfo.calloc(1, stack)
-					.sType$Default()
-					.stageCount(shaderStagesInfoList.size())
-					.pStages(vkShaderStagesBuffer)
-					.pVertexInputState(vertexInputInfo)
-					.pInputAssemblyState(inputAssembly)
-					.pViewportState(viewportState)
-					.pRasterizationState(rasterizer)
-					.pMultisampleState(multisampling)
-					.pDepthStencilState(depthStencil) // optional
-					.pColorBlendState(colorBlending)
-					.pDynamicState(dynamicState)
-					.layout(vkPipelineLayout)
-					.subpass(0)
-					.basePipelineHandle(VK_NULL_HANDLE) // optional
-					.basePipelineIndex(-1); // optional
-
 //			if (useDynamicRendering) {
 			final VkPipelineRenderingCreateInfoKHR vkPipelineRenderingCreateInfoKHR = VkPipelineRenderingCreateInfoKHR.calloc(stack)
 					.sType$Default()
 					.colorAttachmentCount(1)
 					.pColorAttachmentFormats(stack.ints(deviceInstance.getVkSwapChainImageFormat()));
-
-			// dynamic rendering
-			pipelineInfos.renderPass(VK_NULL_HANDLE);
-			pipelineInfos.pNext(vkPipelineRenderingCreateInfoKHR);
-//			} else {
-//				pipelineInfos.renderPass(vkRenderPass);
 //			}
 
+			final VkGraphicsPipelineCreateInfo.Buffer pipelineInfos = VkGraphicsPipelineCreateInfo.calloc(1, stack);
+			if (deviceInstance.isGraphicsPipelineLibrary()) {
+				// parts are shared between pipelines, so variants which differ only in e.g. blending
+				// reuse compiled shader parts and are just linked
+				final LongBuffer pLibraries = stack.mallocLong(4);
+				pLibraries.put(0, getOrCreateLibrary(deviceInstance, partKeys[0], VK_GRAPHICS_PIPELINE_LIBRARY_VERTEX_INPUT_INTERFACE_BIT_EXT, vkPipelineRenderingCreateInfoKHR,
+						info -> info
+								.pVertexInputState(vertexInputInfo)
+								.pInputAssemblyState(inputAssembly)
+								.pDynamicState(dynamicState)));
+				pLibraries.put(1, getOrCreateLibrary(deviceInstance, partKeys[1], VK_GRAPHICS_PIPELINE_LIBRARY_PRE_RASTERIZATION_SHADERS_BIT_EXT, vkPipelineRenderingCreateInfoKHR,
+						info -> info
+								.stageCount(preRasterizationStages.remaining())
+								.pStages(preRasterizationStages)
+								.pViewportState(viewportState)
+								.pRasterizationState(rasterizer)
+								.pDynamicState(dynamicState)
+								.layout(vkPipelineLayout)));
+				pLibraries.put(2, getOrCreateLibrary(deviceInstance, partKeys[2], VK_GRAPHICS_PIPELINE_LIBRARY_FRAGMENT_SHADER_BIT_EXT, vkPipelineRenderingCreateInfoKHR,
+						info -> info
+								.stageCount(fragmentStages.remaining())
+								.pStages(fragmentStages.remaining() == 0 ? null : fragmentStages)
+								.pMultisampleState(multisampling)
+								.pDepthStencilState(depthStencil)
+								.pDynamicState(dynamicState)
+								.layout(vkPipelineLayout)));
+				pLibraries.put(3, getOrCreateLibrary(deviceInstance, partKeys[3], VK_GRAPHICS_PIPELINE_LIBRARY_FRAGMENT_OUTPUT_INTERFACE_BIT_EXT, vkPipelineRenderingCreateInfoKHR,
+						info -> info
+								.pMultisampleState(multisampling)
+								.pColorBlendState(colorBlending)
+								.pDynamicState(dynamicState)));
+
+				final VkPipelineLibraryCreateInfoKHR libraryInfo = VkPipelineLibraryCreateInfoKHR.calloc(stack)
+						.sType$Default()
+						.pLibraries(pLibraries);
+				// optimized link, so linked pipeline runs as fast as monolithic one
+				pipelineInfos
+						.sType$Default()
+						.pNext(libraryInfo.address())
+						.flags(VK_PIPELINE_CREATE_LINK_TIME_OPTIMIZATION_BIT_EXT)
+						.layout(vkPipelineLayout)
+						.renderPass(VK_NULL_HANDLE)
+						.basePipelineHandle(VK_NULL_HANDLE)
+						.basePipelineIndex(-1);
+			} else {
+				// without pipeline libraries variants are created as derivatives of their base pipeline
+				final boolean derivative = basePipelineHandle != VK_NULL_HANDLE;
+				pipelineInfos
+						.sType$Default()
+						.flags(derivative ? VK_PIPELINE_CREATE_ALLOW_DERIVATIVES_BIT | VK_PIPELINE_CREATE_DERIVATIVE_BIT : VK_PIPELINE_CREATE_ALLOW_DERIVATIVES_BIT)
+						.stageCount(shaderStagesInfoList.size())
+						.pStages(vkShaderStagesBuffer)
+						.pVertexInputState(vertexInputInfo)
+						.pInputAssemblyState(inputAssembly)
+						.pViewportState(viewportState)
+						.pRasterizationState(rasterizer)
+						.pMultisampleState(multisampling)
+						.pDepthStencilState(depthStencil) // optional
+						.pColorBlendState(colorBlending)
+						.pDynamicState(dynamicState)
+						.layout(vkPipelineLayout)
+						.subpass(0)
+						.basePipelineHandle(basePipelineHandle)
+						.basePipelineIndex(-1);
+
+				// dynamic rendering
+				pipelineInfos.renderPass(VK_NULL_HANDLE);
+				pipelineInfos.pNext(vkPipelineRenderingCreateInfoKHR.address());
+			}
+
 			final LongBuffer pGraphicsPipeline = stack.mallocLong(1);
-			final int result = vkCreateGraphicsPipelines(deviceInstance.getVkLogicalDevice(), VK_NULL_HANDLE, pipelineInfos, null, pGraphicsPipeline);
+			final int result = vkCreateGraphicsPipelines(deviceInstance.getVkLogicalDevice(), deviceInstance.getPipelineCache().getHandle(), pipelineInfos, null, pGraphicsPipeline);
 			if (result != VK_SUCCESS) {
 				throw new RuntimeException("Failed to create graphics pipeline! " + VkTranslate.translateVulkanResult(result));
 			}
 			vkGraphicsPipeline = pGraphicsPipeline.get(0);
+			final PipelineRegistry.Entry registered = pipelineRegistry.register(pipelineKey, vkGraphicsPipeline, vkPipelineLayout);
+			if (registered.getVkPipeline() != vkGraphicsPipeline) {
+				// identical pipeline was created on another thread at the same time
+				vkDestroyPipeline(deviceInstance.getVkLogicalDevice(), vkGraphicsPipeline, null);
+				vkDestroyPipelineLayout(deviceInstance.getVkLogicalDevice(), vkPipelineLayout, null);
+				vkGraphicsPipeline = registered.getVkPipeline();
+				vkPipelineLayout = registered.getVkPipelineLayout();
+			}
 
 			for (long shaderModule : shaderModules) {
 				vkDestroyShaderModule(deviceInstance.getVkLogicalDevice(), shaderModule, null);
 			}
-			shaderStagesInfoList.clear();
-			attribFormat = null;
 		}
+		// first launch includes shaderc compilation, next ones only SPIR-V cache loads
+		System.out.printf("❇️ Graphics pipeline created in %.3f ms\n", (System.nanoTime() - startTime) / 1_000_000.0);
 		return this;
 	}
 
+	// keys of vertex input, pre-rasterization, fragment shader and fragment output parts
+	// together they describe everything which ends up in VkGraphicsPipelineCreateInfo, must be extended together with create()
+	// dynamic states are left out, so pipelines which differ only in them share one VkPipeline
+	private String[] makePartKeys(VkDeviceInstance deviceInstance, List<ByteBuffer> shaderCodes) {
+		// layout is keyed by its bindings, every pipeline usually creates its own VkDescriptorSetLayout
+		final StringBuilder layoutKeyBuilder = new StringBuilder("setLayout");
+		vkDescriptorSetLayout.appendPipelineKey(layoutKeyBuilder);
+		if (bindlessDescriptors != null) {
+			layoutKeyBuilder.append("|bindless:").append(bindlessDescriptors.getHandle());
+		}
+		pushConstantRanges.appendPipelineKey(layoutKeyBuilder);
+		final String layoutKey = layoutKeyBuilder.toString();
+
+		final StringBuilder vertexInput = new StringBuilder("vertexInput|");
+		attribFormat.appendPipelineKey(vertexInput);
+		if (extendedDynamicState) {
+			// dynamic topology must stay in the same class (points, lines, triangles, patches)
+			vertexInput.append("topologyClass:").append(getTopologyClass(topology));
+		} else {
+			vertexInput.append("topology:").append(topology)
+					.append("|restart:").append(primitiveRestart);
+		}
+
+		final StringBuilder preRasterization = new StringBuilder("preRasterization|");
+		final StringBuilder fragmentShader = new StringBuilder("fragmentShader|");
+		for (int index = 0; index < shaderStagesInfoList.size(); ++index) {
+			final ShaderStage stage = shaderStagesInfoList.get(index);
+			(stage.stageType() == VK_SHADER_STAGE_FRAGMENT_BIT ? fragmentShader : preRasterization)
+					.append("stage:").append(stage.stageType())
+					.append(':').append(stage.entryPointName())
+					.append(':').append(SpirvCache.hash(shaderCodes.get(index)))
+					.append('|');
+			if (stage.specialization() != null) {
+				stage.specialization().appendPipelineKey(stage.stageType() == VK_SHADER_STAGE_FRAGMENT_BIT ? fragmentShader : preRasterization);
+			}
+		}
+		if (!extendedDynamicState3) {
+			preRasterization.append("polygon:").append(polygonMode).append('|');
+		}
+		if (!extendedDynamicState) {
+			preRasterization.append("lineWidth:").append(Float.floatToIntBits(lineWidth))
+					.append("|cull:").append(cullMode)
+					.append("|winding:").append(winding)
+					.append('|');
+			fragmentShader.append("depth:").append(depthTest)
+					.append(':').append(depthWrite)
+					.append(':').append(depthCompareOp)
+					.append('|');
+		}
+		preRasterization.append(layoutKey);
+		fragmentShader.append(layoutKey);
+
+		final StringBuilder fragmentOutput = new StringBuilder("fragmentOutput|");
+		fragmentOutput.append("blend:").append(extendedDynamicState3 ? "dynamic" : blending)
+				.append(':').append(srcColorBlendFactor)
+				.append(':').append(dstColorBlendFactor)
+				.append(':').append(colorBlendOp)
+				.append(':').append(srcAlphaBlendFactor)
+				.append(':').append(dstAlphaBlendFactor)
+				.append(':').append(alphaBlendOp)
+				.append("|colorFormat:").append(deviceInstance.getVkSwapChainImageFormat());
+
+		return new String[]{vertexInput.toString(), preRasterization.toString(), fragmentShader.toString(), fragmentOutput.toString()};
+	}
+
+	private static int getTopologyClass(int topology) {
+		return switch (topology) {
+			case VK_PRIMITIVE_TOPOLOGY_POINT_LIST -> 0;
+			case VK_PRIMITIVE_TOPOLOGY_LINE_LIST, VK_PRIMITIVE_TOPOLOGY_LINE_STRIP,
+				 VK_PRIMITIVE_TOPOLOGY_LINE_LIST_WITH_ADJACENCY, VK_PRIMITIVE_TOPOLOGY_LINE_STRIP_WITH_ADJACENCY -> 1;
+			case VK_PRIMITIVE_TOPOLOGY_PATCH_LIST -> 3;
+			default -> 2;
+		};
+	}
+
+	// returns pipeline library part from PipelineRegistry or creates it
+	private long getOrCreateLibrary(VkDeviceInstance deviceInstance, String partKey, int libraryFlags, VkPipelineRenderingCreateInfoKHR renderingInfo, Consumer<VkGraphicsPipelineCreateInfo> setup) {
+		final PipelineRegistry pipelineRegistry = deviceInstance.getPipelineRegistry();
+		final long existing = pipelineRegistry.getLibrary(partKey);
+		if (existing != VK_NULL_HANDLE) {
+			return existing;
+		}
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkGraphicsPipelineLibraryCreateInfoEXT libraryInfo = VkGraphicsPipelineLibraryCreateInfoEXT.calloc(stack)
+					.sType$Default()
+					.pNext(renderingInfo.address())
+					.flags(libraryFlags);
+			final VkGraphicsPipelineCreateInfo.Buffer pipelineInfos = VkGraphicsPipelineCreateInfo.calloc(1, stack)
+					.sType$Default()
+					.pNext(libraryInfo.address())
+					// link time optimization info is kept for optimized link in create()
+					.flags(VK_PIPELINE_CREATE_LIBRARY_BIT_KHR | VK_PIPELINE_CREATE_RETAIN_LINK_TIME_OPTIMIZATION_INFO_BIT_EXT)
+					.renderPass(VK_NULL_HANDLE)
+					.basePipelineHandle(VK_NULL_HANDLE)
+					.basePipelineIndex(-1);
+			setup.accept(pipelineInfos.get(0));
+
+			final LongBuffer pLibrary = stack.mallocLong(1);
+			final int result = vkCreateGraphicsPipelines(deviceInstance.getVkLogicalDevice(), deviceInstance.getPipelineCache().getHandle(), pipelineInfos, null, pLibrary);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create graphics pipeline library! " + VkTranslate.translateVulkanResult(result));
+			}
+			return pipelineRegistry.registerLibrary(partKey, pLibrary.get(0));
+		}
+	}
+
 	public void createGraphicsPipeline(VkDevice vkLogicalDevice, VkExtent2D vkExtent2D, long vkRenderPass, int vkSwapChainImageFormat, AttribFormat attribFormat, long descriptorSetLayout, String vertShader, String fragShader) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			final long vertShaderModule = createShaderModule(vkLogicalDevice, vertShader, VK_SHADER_STAGE_VERTEX_BIT, stack);
@@ -548,7 +927,10 @@ public class VkGraphicsPipeline {
 	}
 
 	private long createShaderModule(VkDevice vkLogicalDevice, String shaderPath, int stage, MemoryStack stack) throws IOException {
-		final ByteBuffer shaderCode = VkHelper.glslToSpirv(shaderPath, stage);
+		return createShaderModule(vkLogicalDevice, VkHelper.glslToSpirv(shaderPath, stage), shaderPath, stack);
+	}
+
+	private long createShaderModule(VkDevice vkLogicalDevice, ByteBuffer shaderCode, String shaderPath, MemoryStack stack) {
 		final VkShaderModuleCreateInfo createInfo = VkShaderModuleCreateInfo.calloc(stack)
 				.sType$Default()
 				.pCode(shaderCode);
@@ -562,15 +944,101 @@ public class VkGraphicsPipeline {
 
 	public void bindPipeline(VkCommandBuffer commandBuffer) {
 		vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, vkGraphicsPipeline);
+		setDynamicState(commandBuffer);
+	}
+
+	/**
+	 * Binds pipeline only if previous pipeline (which was bound into the same command buffer) has different VkPipeline,
+	 * so deduplicated pipelines are bound once. With extended dynamic state variants share VkPipeline
+	 * and only their dynamic state is recorded
+	 *
+	 * @return true if vkCmdBindPipeline was recorded
+	 */
+	public boolean bindPipeline(VkCommandBuffer commandBuffer, VkGraphicsPipeline previous) {
+		if (previous != null && previous.vkGraphicsPipeline == vkGraphicsPipeline) {
+			if (!hasSameDynamicState(previous)) {
+				setDynamicState(commandBuffer);
+			}
+			return false;
+		}
+		bindPipeline(commandBuffer);
+		return true;
+	}
+
+	/**
+	 * Records states which are dynamic in extended dynamic state mode (cull mode, winding, topology, primitive restart,
+	 * line width, depth and with VK_EXT_extended_dynamic_state3 polygon mode and blend enable). Does nothing otherwise
+	 */
+	public void setDynamicState(VkCommandBuffer commandBuffer) {
+		if (!extendedDynamicState) {
+			return;
+		}
+		vkCmdSetCullMode(commandBuffer, cullMode);
+		vkCmdSetFrontFace(commandBuffer, winding);
+		vkCmdSetPrimitiveTopology(commandBuffer, topology);
+		vkCmdSetPrimitiveRestartEnable(commandBuffer, primitiveRestart);
+		vkCmdSetLineWidth(commandBuffer, lineWidth);
+		vkCmdSetDepthTestEnable(commandBuffer, depthTest);
+		vkCmdSetDepthWriteEnable(commandBuffer, depthWrite);
+		vkCmdSetDepthCompareOp(commandBuffer, depthCompareOp);
+		if (extendedDynamicState3) {
+			vkCmdSetPolygonModeEXT(commandBuffer, polygonMode);
+			try (MemoryStack stack = MemoryStack.stackPush()) {
+				vkCmdSetColorBlendEnableEXT(commandBuffer, 0, stack.ints(blending ? VK_TRUE : VK_FALSE));
+			}
+		}
+	}
+
+	private boolean hasSameDynamicState(VkGraphicsPipeline other) {
+		if (!extendedDynamicState) {
+			return true;
+		}
+		return cullMode == other.cullMode && winding == other.winding &&
+				topology == other.topology && primitiveRestart == other.primitiveRestart &&
+				lineWidth == other.lineWidth &&
+				depthTest == other.depthTest && depthWrite == other.depthWrite && depthCompareOp == other.depthCompareOp &&
+				(!extendedDynamicState3 || (polygonMode == other.polygonMode && blending == other.blending));
+	}
+
+	/**
+	 * Records vkCmdPushConstants, stage flags are taken from push constant ranges which contain written bytes.
+	 * Values stay bound for all following draws with pipelines which have compatible layout
+	 */
+	public void pushConstants(VkCommandBuffer commandBuffer, int offset, ByteBuffer data) {
+		pushConstantRanges.push(commandBuffer, vkPipelineLayout, offset, data);
+	}
+
+	public void pushConstants(VkCommandBuffer commandBuffer, int offset, float... values) {
+		pushConstantRanges.push(commandBuffer, vkPipelineLayout, offset, values);
+	}
+
+	public void pushConstants(VkCommandBuffer commandBuffer, int offset, int... values) {
+		pushConstantRanges.push(commandBuffer, vkPipelineLayout, offset, values);
+	}
+
+	public void pushConstants(VkCommandBuffer commandBuffer, int offset, Matrix4fc matrix) {
+		pushConstantRanges.push(commandBuffer, vkPipelineLayout, offset, matrix);
 	}
 
 	public void destroyPipelineAndLayout(VkDeviceInstance vkDeviceInstance) {
+		if (pipelineKey != null) {
+			// pipeline can be shared with other VkGraphicsPipeline objects
+			vkDeviceInstance.getPipelineRegistry().release(pipelineKey);
+			pipelineKey = null;
+			return;
+		}
 		final VkDevice vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
 		vkDestroyPipeline(vkLogicalDevice, vkGraphicsPipeline, null);
 		vkDestroyPipelineLayout(vkLogicalDevice, vkPipelineLayout, null);
 	}
 
+	/**
+	 * Does nothing for variants made by derive(), layout is destroyed by base pipeline
+	 */
 	public void destroyDescriptorSetLayout(VkDeviceInstance vkDeviceInstance) {
+		if (!ownsDescriptorSetLayout) {
+			return;
+		}
 		final VkDevice vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
 		vkDestroyDescriptorSetLayout(vkLogicalDevice, vkDescriptorSetLayout.getHandle(), null);
 	}
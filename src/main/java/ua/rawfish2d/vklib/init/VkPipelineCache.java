@@ -0,0 +1,167 @@
+package ua.rawfish2d.vklib.init;
+
+import lombok.Getter;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkPipelineCacheCreateInfo;
+import ua.rawfish2d.vklib.utils.VkHelper;
+import ua.rawfish2d.vklib.utils.VkTranslate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Device level VkPipelineCache which is shared by all pipelines.
+ * Cache data is loaded from file on creation (only if header matches current device and driver)
+ * and written back on destroy, so driver doesn't recompile pipelines on every start.
+ */
+public class VkPipelineCache {
+	// headerSize, headerVersion, vendorID, deviceID, pipelineCacheUUID
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + VK_UUID_SIZE;
+	private final VkDevice vkLogicalDevice;
+	// null if cache is not persisted
+	private final Path file;
+	@Getter
+	private final long handle;
+
+	public VkPipelineCache(VkPhysicalDevice vkPhysicalDevice, VkDevice vkLogicalDevice, String fileName) {
+		this.vkLogicalDevice = vkLogicalDevice;
+		this.file = fileName == null ? null : Paths.get(fileName);
+		final ByteBuffer initialData = file == null ? null : load(vkPhysicalDevice);
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkPipelineCacheCreateInfo createInfo = VkPipelineCacheCreateInfo.calloc(stack)
+					.sType$Default()
+					.pInitialData(initialData);
+
+			final LongBuffer pPipelineCache = stack.mallocLong(1);
+			final int result = vkCreatePipelineCache(vkLogicalDevice, createInfo, null, pPipelineCache);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create pipeline cache! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			handle = pPipelineCache.get(0);
+		} finally {
+			if (initialData != null) {
+				MemoryUtil.memFree(initialData);
+			}
+		}
+	}
+
+	// returns null if there is no file or it was created by another device / driver version
+	private ByteBuffer load(VkPhysicalDevice vkPhysicalDevice) {
+		if (!Files.isRegularFile(file)) {
+			System.out.printf("❇️ Pipeline cache: no cache file %s, starting cold\n", file);
+			return null;
+		}
+		ByteBuffer data = null;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+				System.out.printf("❇️ Pipeline cache: invalid size of %s, starting cold\n", file);
+				return null;
+			}
+			data = MemoryUtil.memAlloc((int) size);
+			while (data.hasRemaining()) {
+				if (channel.read(data) < 0) {
+					break;
+				}
+			}
+			data.flip();
+			if (!isCompatible(vkPhysicalDevice, data)) {
+				System.out.printf("❇️ Pipeline cache: %s was created by another device or driver, starting cold\n", file);
+				MemoryUtil.memFree(data);
+				return null;
+			}
+			System.out.printf("❇️ Pipeline cache: loaded %s from %s\n", VkHelper.humanReadableByteCountBin(size), file);
+			return data;
+		} catch (IOException e) {
+			System.out.printf("❇️ Pipeline cache: failed to read %s | %s\n", file, e.getMessage());
+			if (data != null) {
+				MemoryUtil.memFree(data);
+			}
+			return null;
+		}
+	}
+
+	private static boolean isCompatible(VkPhysicalDevice vkPhysicalDevice, ByteBuffer data) {
+		final ByteBuffer header = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		final int headerSize = header.getInt(0);
+		final int headerVersion = header.getInt(4);
+		final int vendorID = header.getInt(8);
+		final int deviceID = header.getInt(12);
+		if (headerSize < HEADER_SIZE || headerVersion != VK_PIPELINE_CACHE_HEADER_VERSION_ONE) {
+			return false;
+		}
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkPhysicalDeviceProperties deviceProperties = VkPhysicalDeviceProperties.malloc(stack);
+			vkGetPhysicalDeviceProperties(vkPhysicalDevice, deviceProperties);
+			if (vendorID != deviceProperties.vendorID() || deviceID != deviceProperties.deviceID()) {
+				return false;
+			}
+			final ByteBuffer uuid = deviceProperties.pipelineCacheUUID();
+			for (int index = 0; index < VK_UUID_SIZE; ++index) {
+				if (header.get(16 + index) != uuid.get(index)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes cache data into temporary file and atomically renames it
+	 */
+	public void save() {
+		if (file == null) {
+			return;
+		}
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final PointerBuffer pDataSize = stack.mallocPointer(1);
+			int result = vkGetPipelineCacheData(vkLogicalDevice, handle, pDataSize, null);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to get pipeline cache size! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			final ByteBuffer data = MemoryUtil.memAlloc((int) pDataSize.get(0));
+			try {
+				result = vkGetPipelineCacheData(vkLogicalDevice, handle, pDataSize, data);
+				if (result != VK_SUCCESS) {
+					throw new RuntimeException("Failed to get pipeline cache data! Error: " + VkTranslate.translateVulkanResult(result));
+				}
+				data.limit((int) pDataSize.get(0));
+
+				final Path directory = file.toAbsolutePath().getParent();
+				Files.createDirectories(directory);
+				final Path tempFile = Files.createTempFile(directory, "pipeline_cache", ".tmp");
+				try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+					while (data.hasRemaining()) {
+						channel.write(data);
+					}
+				}
+				try {
+					Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+				}
+				System.out.printf("❇️ Pipeline cache: saved %s into %s\n", VkHelper.humanReadableByteCountBin(data.limit()), file);
+			} catch (IOException e) {
+				System.out.printf("❇️ Pipeline cache: failed to write %s | %s\n", file, e.getMessage());
+			} finally {
+				MemoryUtil.memFree(data);
+			}
+		}
+	}
+
+	public void destroy() {
+		save();
+		vkDestroyPipelineCache(vkLogicalDevice, handle, null);
+	}
+}
@@ -0,0 +1,86 @@
+package ua.rawfish2d.vklib.init.data;
+
+import lombok.Getter;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkCommandBufferAllocateInfo;
+import org.lwjgl.vulkan.VkDevice;
+import ua.rawfish2d.vklib.utils.VkHelper;
+import ua.rawfish2d.vklib.utils.VkTranslate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Transient command pool which is reset as a whole with vkResetCommandPool once per frame.
+ * Command buffers are never freed, after reset they are handed out again by obtain().
+ * Not thread safe, use one allocator per thread.
+ */
+public class CommandAllocator {
+	private final VkDevice vkLogicalDevice;
+	@Getter
+	private final long vkCommandPool;
+	private final int level;
+	private final List<VkCommandBuffer> commandBuffers = new ArrayList<>();
+	// number of command buffers handed out since last reset
+	private int used = 0;
+
+	/**
+	 * @param level VK_COMMAND_BUFFER_LEVEL_PRIMARY or VK_COMMAND_BUFFER_LEVEL_SECONDARY
+	 */
+	public CommandAllocator(VkDevice vkLogicalDevice, int queueIndex, int level) {
+		this.vkLogicalDevice = vkLogicalDevice;
+		this.level = level;
+		this.vkCommandPool = VkHelper.createCommandPool(vkLogicalDevice, queueIndex, VK_COMMAND_POOL_CREATE_TRANSIENT_BIT);
+	}
+
+	/**
+	 * Resets all command buffers of this allocator, GPU must be done with them
+	 */
+	public void reset() {
+		if (used == 0) {
+			return;
+		}
+		final int result = vkResetCommandPool(vkLogicalDevice, vkCommandPool, 0);
+		if (result != VK_SUCCESS) {
+			throw new RuntimeException("Failed to reset command pool! Error: " + VkTranslate.translateVulkanResult(result));
+		}
+		used = 0;
+	}
+
+	/**
+	 * @return command buffer in initial state, valid until next reset()
+	 */
+	public VkCommandBuffer obtain() {
+		if (used < commandBuffers.size()) {
+			return commandBuffers.get(used++);
+		}
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
+					.sType$Default()
+					.commandPool(vkCommandPool)
+					.level(level)
+					.commandBufferCount(1);
+
+			final PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+			final int result = vkAllocateCommandBuffers(vkLogicalDevice, allocInfo, pCommandBuffer);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to allocate command buffer! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			final VkCommandBuffer commandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), vkLogicalDevice);
+			commandBuffers.add(commandBuffer);
+			used++;
+			return commandBuffer;
+		}
+	}
+
+	public void destroy() {
+		// frees all command buffers too
+		vkDestroyCommandPool(vkLogicalDevice, vkCommandPool, null);
+		commandBuffers.clear();
+		used = 0;
+	}
+}
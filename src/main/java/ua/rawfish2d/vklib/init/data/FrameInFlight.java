@@ -6,7 +6,6 @@ import org.lwjgl.vulkan.*;
 import ua.rawfish2d.vklib.VkBuffer;
 import ua.rawfish2d.vklib.init.VkDeviceInstance;
 import ua.rawfish2d.vklib.init.descriptor.DescriptorSetUpdate;
-import ua.rawfish2d.vklib.utils.VkHelper;
 
 import java.nio.LongBuffer;
 import java.util.List;
@@ -18,15 +17,22 @@ public class FrameInFlight {
 	private final long vkImageAvailableSemaphore;
 	private final long vkRenderFinishedSemaphore;
 	private final long vkInFlightFence;
+	// primary command buffer of current frame, obtained from commandAllocator after every reset
 	private VkCommandBuffer vkCommandBuffer;
-	private long vkCommandPool;
+	private CommandAllocator commandAllocator;
 	private VkBuffer uniformBuffer;
 	private long vkDescriptorSet;
+	// number of the last frame which was submitted with this FrameInFlight, 0 if none
+	private long submittedFrame = 0;
 
 	public void setDescriptorSet(long vkDescriptorSet) {
 		this.vkDescriptorSet = vkDescriptorSet;
 	}
 
+	public void setSubmittedFrame(long submittedFrame) {
+		this.submittedFrame = submittedFrame;
+	}
+
 	public FrameInFlight(VkDevice vkLogicalDevice) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			final VkSemaphoreCreateInfo semaphoreCreateInfo = VkSemaphoreCreateInfo.calloc(stack)
@@ -54,25 +60,42 @@ public class FrameInFlight {
 
 	public void createCommandBuffer(VkDeviceInstance vkDeviceInstance) {
 		final VkQueueInfo vkQueueInfo = vkDeviceInstance.getVkGraphicsQueue();
-		this.vkCommandPool = vkQueueInfo.getVkCommandPool();
-		this.vkCommandBuffer = VkHelper.createCommandBuffer(vkDeviceInstance.getVkLogicalDevice(), vkCommandPool);
+		this.commandAllocator = new CommandAllocator(vkDeviceInstance.getVkLogicalDevice(), vkQueueInfo.getIndexInfo().queueIndex(), VK_COMMAND_BUFFER_LEVEL_PRIMARY);
+		this.vkCommandBuffer = commandAllocator.obtain();
+	}
+
+	/**
+	 * Resets whole command pool of this frame and takes new primary command buffer from it.
+	 * Must be called only after GPU finished previous submit of this frame.
+	 */
+	public void resetCommandBuffers() {
+		commandAllocator.reset();
+		vkCommandBuffer = commandAllocator.obtain();
+	}
+
+	/**
+	 * @return additional primary command buffer which stays valid until this frame is reused
+	 */
+	public VkCommandBuffer obtainCommandBuffer() {
+		return commandAllocator.obtain();
 	}
 
 	public void free(VkDeviceInstance vkDeviceInstancee) {
 		final VkDevice vkLogicalDevice = vkDeviceInstancee.getVkLogicalDevice();
-		uniformBuffer.destroyAndFreeMemory(vkDeviceInstancee);
+		if (uniformBuffer != null) {
+			uniformBuffer.destroyAndFreeMemory(vkDeviceInstancee);
+		}
 		vkDestroySemaphore(vkLogicalDevice, vkImageAvailableSemaphore, null);
 		vkDestroySemaphore(vkLogicalDevice, vkRenderFinishedSemaphore, null);
 		vkDestroyFence(vkLogicalDevice, vkInFlightFence, null);
-		vkFreeCommandBuffers(vkLogicalDevice, vkCommandPool, vkCommandBuffer);
+		commandAllocator.destroy();
 	}
 
 	public void createUniformBuffer(VkDeviceInstance vkDeviceInstance, int bufferSize) {
 		this.uniformBuffer = new VkBuffer();
 		System.out.printf("Creating new Uniform Buffer size: %d\n", bufferSize);
 		uniformBuffer.createBuffer(vkDeviceInstance, bufferSize, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT);
-		uniformBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
-		uniformBuffer.makeStagingBuffer(vkDeviceInstance, VK_BUFFER_USAGE_TRANSFER_SRC_BIT);
+		uniformBuffer.allocateMappedOrStaged(vkDeviceInstance);
 	}
 
 	public void updateDescriptorSet(VkDeviceInstance vkDeviceInstance, List<DescriptorSetUpdate> descriptorSetUpdates) {
@@ -0,0 +1,9 @@
+package ua.rawfish2d.vklib.init.data;
+
+/**
+ * @param stageFlags VK_SHADER_STAGE_VERTEX_BIT, VK_SHADER_STAGE_FRAGMENT_BIT etc
+ * @param offset     in bytes, multiple of 4
+ * @param size       in bytes, multiple of 4
+ */
+public record PushConstantRange(int stageFlags, int offset, int size) {
+}
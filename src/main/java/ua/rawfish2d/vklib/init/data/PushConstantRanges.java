@@ -0,0 +1,132 @@
+package ua.rawfish2d.vklib.init.data;
+
+import org.joml.Matrix4fc;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkPushConstantRange;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Push constant ranges of a pipeline layout and typed vkCmdPushConstants helpers,
+ * used by both VkGraphicsPipeline and VkComputePipeline
+ */
+public class PushConstantRanges {
+	private final List<PushConstantRange> ranges = new ArrayList<>();
+
+	/**
+	 * @param stageFlags VK_SHADER_STAGE_VERTEX_BIT, VK_SHADER_STAGE_FRAGMENT_BIT etc
+	 */
+	public void add(int stageFlags, int offset, int size) {
+		if (offset % 4 != 0 || size <= 0 || size % 4 != 0) {
+			throw new RuntimeException("Push constant offset and size must be multiple of 4! offset: " + offset + " size: " + size);
+		}
+		// pipeline layout can't have two push constant ranges with the same stage
+		for (PushConstantRange range : ranges) {
+			if ((range.stageFlags() & stageFlags) != 0) {
+				throw new IllegalArgumentException("Push constant range stages " + stageFlags + " overlap stages of already added range! " + range);
+			}
+		}
+		ranges.add(new PushConstantRange(stageFlags, offset, size));
+	}
+
+	public void addAll(PushConstantRanges other) {
+		ranges.addAll(other.ranges);
+	}
+
+	public boolean isEmpty() {
+		return ranges.isEmpty();
+	}
+
+	/**
+	 * @return null if there are no push constants
+	 */
+	public VkPushConstantRange.Buffer makePushConstantRanges(VkPhysicalDevice vkPhysicalDevice, MemoryStack stack) {
+		if (ranges.isEmpty()) {
+			return null;
+		}
+		final VkPhysicalDeviceProperties deviceProperties = VkPhysicalDeviceProperties.malloc(stack);
+		vkGetPhysicalDeviceProperties(vkPhysicalDevice, deviceProperties);
+		final int maxPushConstantsSize = deviceProperties.limits().maxPushConstantsSize();
+		final VkPushConstantRange.Buffer buffer = VkPushConstantRange.calloc(ranges.size(), stack);
+		for (PushConstantRange range : ranges) {
+			if (range.offset() + range.size() > maxPushConstantsSize) {
+				throw new RuntimeException("Push constant range exceeds maxPushConstantsSize " + maxPushConstantsSize + "! " + range);
+			}
+			buffer.get()
+					.stageFlags(range.stageFlags())
+					.offset(range.offset())
+					.size(range.size());
+		}
+		return buffer.flip();
+	}
+
+	public void appendPipelineKey(StringBuilder key) {
+		for (PushConstantRange range : ranges) {
+			key.append("|push:").append(range.stageFlags())
+					.append(':').append(range.offset())
+					.append(':').append(range.size());
+		}
+	}
+
+	/**
+	 * Records vkCmdPushConstants, stage flags are taken from ranges which contain written bytes
+	 */
+	public void push(VkCommandBuffer commandBuffer, long vkPipelineLayout, int offset, ByteBuffer data) {
+		vkCmdPushConstants(commandBuffer, vkPipelineLayout, getStages(offset, data.remaining()), offset, data);
+	}
+
+	public void push(VkCommandBuffer commandBuffer, long vkPipelineLayout, int offset, float... values) {
+		vkCmdPushConstants(commandBuffer, vkPipelineLayout, getStages(offset, values.length * Float.BYTES), offset, values);
+	}
+
+	public void push(VkCommandBuffer commandBuffer, long vkPipelineLayout, int offset, int... values) {
+		vkCmdPushConstants(commandBuffer, vkPipelineLayout, getStages(offset, values.length * Integer.BYTES), offset, values);
+	}
+
+	public void push(VkCommandBuffer commandBuffer, long vkPipelineLayout, int offset, Matrix4fc matrix) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			push(commandBuffer, vkPipelineLayout, offset, matrix.get(stack.malloc(16 * Float.BYTES)));
+		}
+	}
+
+	// vkCmdPushConstants must name every stage which has a range overlapping updated bytes,
+	// and every named stage must have ranges covering all updated bytes
+	private int getStages(int offset, int size) {
+		int stageFlags = 0;
+		for (PushConstantRange range : ranges) {
+			if (offset < range.offset() + range.size() && range.offset() < offset + size) {
+				stageFlags |= range.stageFlags();
+			}
+		}
+		if (stageFlags == 0) {
+			throw new RuntimeException("Push constants at offset " + offset + " size " + size + " are outside of pipeline push constant ranges!");
+		}
+		for (int stages = stageFlags; stages != 0; stages &= stages - 1) {
+			final int stage = Integer.lowestOneBit(stages);
+			// offset and size of ranges are multiple of 4
+			for (int pos = offset; pos < offset + size; pos += 4) {
+				if (!isCovered(stage, pos)) {
+					throw new RuntimeException("Push constants at offset " + offset + " size " + size + " are only partially covered by ranges of stage " + stage
+							+ "! Push bytes of every range separately");
+				}
+			}
+		}
+		return stageFlags;
+	}
+
+	private boolean isCovered(int stage, int pos) {
+		for (PushConstantRange range : ranges) {
+			if ((range.stageFlags() & stage) != 0 && range.offset() <= pos && pos < range.offset() + range.size()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -1,4 +1,14 @@
 package ua.rawfish2d.vklib.init.data;
 
-public record ShaderStage(int stageType, String entryPointName, String shaderPath) {
+/**
+ * @param specialization can be null
+ */
+public record ShaderStage(int stageType, String entryPointName, String shaderPath, SpecializationConstants specialization) {
+	public ShaderStage(int stageType, String entryPointName, String shaderPath) {
+		this(stageType, entryPointName, shaderPath, null);
+	}
+
+	public ShaderStage withSpecialization(SpecializationConstants specialization) {
+		return new ShaderStage(stageType, entryPointName, shaderPath, specialization);
+	}
 }
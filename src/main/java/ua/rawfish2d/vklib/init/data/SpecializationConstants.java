@@ -0,0 +1,81 @@
+package ua.rawfish2d.vklib.init.data;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkSpecializationInfo;
+import org.lwjgl.vulkan.VkSpecializationMapEntry;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Values of shader `layout (constant_id = N) const` constants, driver folds them into shader code when pipeline is created,
+ * so one SPIR-V module can be used for many pipeline variants.
+ * Must not be changed after it was passed to a pipeline which is already created.
+ */
+public class SpecializationConstants {
+	// constant id -> value, sorted so pipeline key doesn't depend on order of set calls
+	private final Map<Integer, Constant> constants = new TreeMap<>();
+
+	public SpecializationConstants setInt(int constantId, int value) {
+		constants.put(constantId, new Constant('i', value));
+		return this;
+	}
+
+	public SpecializationConstants setUint(int constantId, int value) {
+		constants.put(constantId, new Constant('u', value));
+		return this;
+	}
+
+	public SpecializationConstants setFloat(int constantId, float value) {
+		constants.put(constantId, new Constant('f', Float.floatToRawIntBits(value)));
+		return this;
+	}
+
+	public SpecializationConstants setBool(int constantId, boolean value) {
+		// VkBool32
+		constants.put(constantId, new Constant('b', value ? 1 : 0));
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return constants.isEmpty();
+	}
+
+	/**
+	 * @return null if there are no constants
+	 */
+	public VkSpecializationInfo makeSpecializationInfo(MemoryStack stack) {
+		if (constants.isEmpty()) {
+			return null;
+		}
+		// every supported type is 4 bytes
+		final VkSpecializationMapEntry.Buffer mapEntries = VkSpecializationMapEntry.calloc(constants.size(), stack);
+		final ByteBuffer data = stack.malloc(constants.size() * Integer.BYTES);
+		int offset = 0;
+		for (Map.Entry<Integer, Constant> entry : constants.entrySet()) {
+			mapEntries.get()
+					.constantID(entry.getKey())
+					.offset(offset)
+					.size(Integer.BYTES);
+			data.putInt(offset, entry.getValue().bits());
+			offset += Integer.BYTES;
+		}
+		mapEntries.flip();
+		return VkSpecializationInfo.calloc(stack)
+				.pMapEntries(mapEntries)
+				.pData(data);
+	}
+
+	public void appendPipelineKey(StringBuilder key) {
+		for (Map.Entry<Integer, Constant> entry : constants.entrySet()) {
+			key.append("spec:").append(entry.getKey())
+					.append(':').append(entry.getValue().type())
+					.append(':').append(entry.getValue().bits())
+					.append('|');
+		}
+	}
+
+	private record Constant(char type, int bits) {
+	}
+}
@@ -0,0 +1,252 @@
+package ua.rawfish2d.vklib.init.descriptor;
+
+import lombok.Getter;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+import ua.rawfish2d.vklib.VkBuffer;
+import ua.rawfish2d.vklib.VkTexture;
+import ua.rawfish2d.vklib.init.VkDeviceInstance;
+import ua.rawfish2d.vklib.utils.VkTranslate;
+
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
+
+import static org.lwjgl.vulkan.VK10.*;
+import static org.lwjgl.vulkan.VK12.*;
+
+/**
+ * One descriptor set with big arrays of textures and storage buffers (descriptor indexing, core in Vulkan 1.2).
+ * Textures and buffers are added once and referenced from shaders by index, so set is bound once
+ * and doesn't have to be updated per draw. Requires VkDeviceInstance.bindless(true).
+ * Pipelines use it as set 1 (see VkGraphicsPipeline.setBindlessDescriptors), in GLSL:
+ * <pre>
+ * #extension GL_EXT_nonuniform_qualifier : require
+ * layout (set = 1, binding = 0) uniform sampler2D textures[];
+ * layout (set = 1, binding = 1) buffer Buffers { uint data[]; } buffers[];
+ * color = texture(textures[nonuniformEXT(textureId)], uv);
+ * </pre>
+ */
+public class BindlessDescriptors {
+	public static final int SET_INDEX = 1;
+	public static final int TEXTURES_BINDING = 0;
+	public static final int STORAGE_BUFFERS_BINDING = 1;
+	private final VkDeviceInstance vkDeviceInstance;
+	@Getter
+	private final int maxTextures;
+	@Getter
+	private final int maxStorageBuffers;
+	@Getter
+	private long handle;
+	private long vkDescriptorPool;
+	@Getter
+	private long vkDescriptorSet;
+	// slots which were removed and are no longer used by frames in flight
+	private final ArrayDeque<Integer> freeTextures = new ArrayDeque<>();
+	private final ArrayDeque<Integer> freeStorageBuffers = new ArrayDeque<>();
+	private int textureCount = 0;
+	private int storageBufferCount = 0;
+
+	/**
+	 * Array sizes are clamped to device limits
+	 */
+	public BindlessDescriptors(VkDeviceInstance vkDeviceInstance, int maxTextures, int maxStorageBuffers) {
+		if (!vkDeviceInstance.isBindless()) {
+			throw new RuntimeException("Bindless descriptors are not enabled or not supported by device!");
+		}
+		this.vkDeviceInstance = vkDeviceInstance;
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkPhysicalDeviceVulkan12Properties vulkan12Properties = VkPhysicalDeviceVulkan12Properties.calloc(stack)
+					.sType$Default();
+			final VkPhysicalDeviceProperties2 properties2 = VkPhysicalDeviceProperties2.calloc(stack)
+					.sType$Default()
+					.pNext(vulkan12Properties.address());
+			vkGetPhysicalDeviceProperties2(vkDeviceInstance.getVkPhysicalDevice(), properties2);
+			// combined image sampler counts as both sampler and sampled image
+			this.maxTextures = Math.min(maxTextures, Math.min(
+					Math.min(vulkan12Properties.maxPerStageDescriptorUpdateAfterBindSampledImages(), vulkan12Properties.maxPerStageDescriptorUpdateAfterBindSamplers()),
+					Math.min(vulkan12Properties.maxDescriptorSetUpdateAfterBindSampledImages(), vulkan12Properties.maxDescriptorSetUpdateAfterBindSamplers())));
+			this.maxStorageBuffers = Math.min(maxStorageBuffers, Math.min(
+					vulkan12Properties.maxPerStageDescriptorUpdateAfterBindStorageBuffers(),
+					vulkan12Properties.maxDescriptorSetUpdateAfterBindStorageBuffers()));
+			System.out.printf("🔷 Bindless descriptors: textures: %d | storage buffers: %d\n", this.maxTextures, this.maxStorageBuffers);
+
+			createDescriptorSetLayout(stack);
+			createDescriptorPool(stack);
+			allocateDescriptorSet(stack);
+		}
+	}
+
+	private void createDescriptorSetLayout(MemoryStack stack) {
+		final VkDescriptorSetLayoutBinding.Buffer bindings = VkDescriptorSetLayoutBinding.calloc(2, stack);
+		bindings.get(0)
+				.binding(TEXTURES_BINDING)
+				.descriptorType(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER)
+				.descriptorCount(maxTextures)
+				.stageFlags(VK_SHADER_STAGE_ALL);
+		bindings.get(1)
+				.binding(STORAGE_BUFFERS_BINDING)
+				.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+				.descriptorCount(maxStorageBuffers)
+				.stageFlags(VK_SHADER_STAGE_ALL);
+
+		// not every slot has to be valid, slots which are not used by pending command buffers can be written at any time
+		final int bindingFlags = VK_DESCRIPTOR_BINDING_PARTIALLY_BOUND_BIT | VK_DESCRIPTOR_BINDING_UPDATE_AFTER_BIND_BIT;
+		final VkDescriptorSetLayoutBindingFlagsCreateInfo bindingFlagsInfo = VkDescriptorSetLayoutBindingFlagsCreateInfo.calloc(stack)
+				.sType$Default()
+				.pBindingFlags(stack.ints(bindingFlags, bindingFlags));
+
+		final VkDescriptorSetLayoutCreateInfo layoutCreateInfo = VkDescriptorSetLayoutCreateInfo.calloc(stack)
+				.sType$Default()
+				.pNext(bindingFlagsInfo.address())
+				.flags(VK_DESCRIPTOR_SET_LAYOUT_CREATE_UPDATE_AFTER_BIND_POOL_BIT)
+				.pBindings(bindings);
+
+		final LongBuffer pDescriptorSetLayout = stack.mallocLong(1);
+		final int result = vkCreateDescriptorSetLayout(vkDeviceInstance.getVkLogicalDevice(), layoutCreateInfo, null, pDescriptorSetLayout);
+		if (result != VK_SUCCESS) {
+			throw new RuntimeException("Failed to create bindless descriptor set layout! Error: " + VkTranslate.translateVulkanResult(result));
+		}
+		handle = pDescriptorSetLayout.get(0);
+	}
+
+	private void createDescriptorPool(MemoryStack stack) {
+		final VkDescriptorPoolSize.Buffer poolSizes = VkDescriptorPoolSize.calloc(2, stack);
+		poolSizes.get(0)
+				.type(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER)
+				.descriptorCount(maxTextures);
+		poolSizes.get(1)
+				.type(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+				.descriptorCount(maxStorageBuffers);
+
+		final VkDescriptorPoolCreateInfo poolCreateInfo = VkDescriptorPoolCreateInfo.calloc(stack)
+				.sType$Default()
+				.flags(VK_DESCRIPTOR_POOL_CREATE_UPDATE_AFTER_BIND_BIT)
+				.pPoolSizes(poolSizes)
+				.maxSets(1);
+
+		final LongBuffer pDescriptorPool = stack.mallocLong(1);
+		final int result = vkCreateDescriptorPool(vkDeviceInstance.getVkLogicalDevice(), poolCreateInfo, null, pDescriptorPool);
+		if (result != VK_SUCCESS) {
+			throw new RuntimeException("Failed to create bindless descriptor pool! Error: " + VkTranslate.translateVulkanResult(result));
+		}
+		vkDescriptorPool = pDescriptorPool.get(0);
+	}
+
+	private void allocateDescriptorSet(MemoryStack stack) {
+		final VkDescriptorSetAllocateInfo allocInfo = VkDescriptorSetAllocateInfo.calloc(stack)
+				.sType$Default()
+				.descriptorPool(vkDescriptorPool)
+				.pSetLayouts(stack.longs(handle));
+
+		final LongBuffer pDescriptorSet = stack.mallocLong(1);
+		final int result = vkAllocateDescriptorSets(vkDeviceInstance.getVkLogicalDevice(), allocInfo, pDescriptorSet);
+		if (result != VK_SUCCESS) {
+			throw new RuntimeException("Failed to allocate bindless descriptor set! Error: " + VkTranslate.translateVulkanResult(result));
+		}
+		vkDescriptorSet = pDescriptorSet.get(0);
+	}
+
+	/**
+	 * @return index of texture in textures[] array
+	 */
+	public int addTexture(VkTexture texture) {
+		return addTexture(texture.getVkTextureImageView(), texture.getVkTextureSampler());
+	}
+
+	public synchronized int addTexture(long vkImageView, long vkSampler) {
+		final int index = allocateSlot(freeTextures, textureCount, maxTextures, "textures");
+		if (index == textureCount) {
+			textureCount++;
+		}
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkDescriptorImageInfo.Buffer imageInfo = VkDescriptorImageInfo.calloc(1, stack)
+					.imageLayout(VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL)
+					.imageView(vkImageView)
+					.sampler(vkSampler);
+			final VkWriteDescriptorSet.Buffer descriptorWrite = VkWriteDescriptorSet.calloc(1, stack)
+					.sType$Default()
+					.dstSet(vkDescriptorSet)
+					.dstBinding(TEXTURES_BINDING)
+					.dstArrayElement(index)
+					.descriptorType(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER)
+					.descriptorCount(1)
+					.pImageInfo(imageInfo);
+			vkUpdateDescriptorSets(vkDeviceInstance.getVkLogicalDevice(), descriptorWrite, null);
+		}
+		return index;
+	}
+
+	/**
+	 * @return index of buffer in buffers[] array
+	 */
+	public int addStorageBuffer(VkBuffer buffer) {
+		return addStorageBuffer(buffer.getHandle(), 0, VK_WHOLE_SIZE);
+	}
+
+	public synchronized int addStorageBuffer(long vkBuffer, long offset, long range) {
+		final int index = allocateSlot(freeStorageBuffers, storageBufferCount, maxStorageBuffers, "storage buffers");
+		if (index == storageBufferCount) {
+			storageBufferCount++;
+		}
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkDescriptorBufferInfo.Buffer bufferInfo = VkDescriptorBufferInfo.calloc(1, stack)
+					.buffer(vkBuffer)
+					.offset(offset)
+					.range(range);
+			final VkWriteDescriptorSet.Buffer descriptorWrite = VkWriteDescriptorSet.calloc(1, stack)
+					.sType$Default()
+					.dstSet(vkDescriptorSet)
+					.dstBinding(STORAGE_BUFFERS_BINDING)
+					.dstArrayElement(index)
+					.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+					.descriptorCount(1)
+					.pBufferInfo(bufferInfo);
+			vkUpdateDescriptorSets(vkDeviceInstance.getVkLogicalDevice(), descriptorWrite, null);
+		}
+		return index;
+	}
+
+	private static int allocateSlot(ArrayDeque<Integer> freeSlots, int count, int max, String name) {
+		if (!freeSlots.isEmpty()) {
+			return freeSlots.poll();
+		}
+		if (count >= max) {
+			throw new RuntimeException("Bindless " + name + " array is full! Max: " + max);
+		}
+		return count;
+	}
+
+	/**
+	 * Slot is reused only after frames in flight which may still read it are finished
+	 */
+	public void removeTexture(int index) {
+		vkDeviceInstance.releaseAfterFrame(() -> {
+			synchronized (this) {
+				freeTextures.add(index);
+			}
+		});
+	}
+
+	public void removeStorageBuffer(int index) {
+		vkDeviceInstance.releaseAfterFrame(() -> {
+			synchronized (this) {
+				freeStorageBuffers.add(index);
+			}
+		});
+	}
+
+	/**
+	 * @param bindPoint VK_PIPELINE_BIND_POINT_GRAPHICS or VK_PIPELINE_BIND_POINT_COMPUTE
+	 */
+	public void bind(VkCommandBuffer commandBuffer, int bindPoint, long vkPipelineLayout) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			vkCmdBindDescriptorSets(commandBuffer, bindPoint, vkPipelineLayout, SET_INDEX, stack.longs(vkDescriptorSet), null);
+		}
+	}
+
+	public void destroy() {
+		final VkDevice vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
+		vkDestroyDescriptorPool(vkLogicalDevice, vkDescriptorPool, null);
+		vkDestroyDescriptorSetLayout(vkLogicalDevice, handle, null);
+	}
+}
@@ -58,6 +58,20 @@ public class VkDescriptorSetLayout {
 		return buffer;
 	}
 
+	/**
+	 * Appends bindings, so pipelines with identically defined layouts get equal keys even if layouts are different objects
+	 */
+	public void appendPipelineKey(StringBuilder key) {
+		for (final SetLayoutBindingsBuffer setLayoutBindingsBuffer : setLayoutBindingsBuffers) {
+			for (final SetLayoutBinding setLayoutBinding : setLayoutBindingsBuffer.getSetLayoutBindings()) {
+				key.append("|binding:").append(setLayoutBinding.binding())
+						.append(':').append(setLayoutBinding.descriptorType())
+						.append(':').append(1) // descriptorCount, see makeSetLayoutBinding
+						.append(':').append(setLayoutBinding.stageFlags());
+			}
+		}
+	}
+
 	private int getCount() {
 		int count = 0;
 		for (final SetLayoutBindingsBuffer setLayout : setLayoutBindingsBuffers) {
@@ -0,0 +1,8 @@
+package ua.rawfish2d.vklib.init.enums;
+
+public enum FramePacing {
+	// wait and reset VkFence of FrameInFlight every frame
+	FENCE,
+	// one timeline semaphore counts submitted frames, no fence reset
+	TIMELINE
+}
@@ -0,0 +1,8 @@
+package ua.rawfish2d.vklib.init.enums;
+
+public enum MemoryAllocatorType {
+	// own block allocator (ua.rawfish2d.vklib.memory.BlockMemoryAllocator)
+	BLOCK,
+	// Vulkan Memory Allocator through lwjgl-vma
+	VMA
+}
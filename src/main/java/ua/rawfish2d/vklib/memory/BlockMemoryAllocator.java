@@ -0,0 +1,241 @@
+package ua.rawfish2d.vklib.memory;
+
+import lombok.Getter;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+import ua.rawfish2d.vklib.utils.VkHelper;
+import ua.rawfish2d.vklib.utils.VkTranslate;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Sub-allocates device memory from big per memory type blocks
+ * instead of calling vkAllocateMemory for every buffer and image.
+ * Host visible blocks are persistently mapped.
+ */
+public class BlockMemoryAllocator implements MemoryAllocator {
+	public static final long DEFAULT_BLOCK_SIZE = 64L * 1024L * 1024L;
+	public static final long MIN_ALLOCATION_SIZE = 256L;
+	private final VkDevice vkLogicalDevice;
+	private final VkPhysicalDevice vkPhysicalDevice;
+	@Getter
+	private final long blockSize;
+	@Getter
+	private final long bufferImageGranularity;
+	private final int[] memoryTypeFlags;
+	private final List<MemoryBlock> blocks = new ArrayList<>();
+	private long requestedBytes = 0;
+
+	public BlockMemoryAllocator(VkDevice vkLogicalDevice, VkPhysicalDevice vkPhysicalDevice, long blockSize) {
+		if (Long.bitCount(blockSize) != 1) {
+			throw new IllegalArgumentException("Memory block size should be power of two! Block size: " + blockSize);
+		}
+		this.vkLogicalDevice = vkLogicalDevice;
+		this.vkPhysicalDevice = vkPhysicalDevice;
+		this.blockSize = blockSize;
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkPhysicalDeviceProperties deviceProperties = VkPhysicalDeviceProperties.malloc(stack);
+			vkGetPhysicalDeviceProperties(vkPhysicalDevice, deviceProperties);
+			this.bufferImageGranularity = deviceProperties.limits().bufferImageGranularity();
+
+			final VkPhysicalDeviceMemoryProperties memProperties = VkPhysicalDeviceMemoryProperties.malloc(stack);
+			vkGetPhysicalDeviceMemoryProperties(vkPhysicalDevice, memProperties);
+			this.memoryTypeFlags = new int[memProperties.memoryTypeCount()];
+			for (int index = 0; index < memoryTypeFlags.length; ++index) {
+				memoryTypeFlags[index] = memProperties.memoryTypes().get(index).propertyFlags();
+			}
+		}
+		System.out.printf("🔷 Memory allocator block size: %s | bufferImageGranularity: %d\n", VkHelper.humanReadableByteCountBin(blockSize), bufferImageGranularity);
+	}
+
+	@Override
+	public MemoryAllocation allocateForBuffer(long vkBuffer, int memoryFlags) {
+		final MemoryAllocation allocation;
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkMemoryRequirements memRequirements = VkMemoryRequirements.malloc(stack);
+			vkGetBufferMemoryRequirements(vkLogicalDevice, vkBuffer, memRequirements);
+			allocation = allocate(memRequirements, memoryFlags, true, stack);
+		}
+		final int result = vkBindBufferMemory(vkLogicalDevice, vkBuffer, allocation.getMemory(), allocation.getOffset());
+		if (result != VK_SUCCESS) {
+			throw new RuntimeException("Failed to bind buffer memory! Error: " + VkTranslate.translateVulkanResult(result));
+		}
+		return allocation;
+	}
+
+	@Override
+	public MemoryAllocation allocateForImage(long vkImage, int memoryFlags) {
+		final MemoryAllocation allocation;
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkMemoryRequirements memRequirements = VkMemoryRequirements.malloc(stack);
+			vkGetImageMemoryRequirements(vkLogicalDevice, vkImage, memRequirements);
+			allocation = allocate(memRequirements, memoryFlags, false, stack);
+		}
+		final int result = vkBindImageMemory(vkLogicalDevice, vkImage, allocation.getMemory(), allocation.getOffset());
+		if (result != VK_SUCCESS) {
+			throw new RuntimeException("Failed to bind image memory! Error: " + VkTranslate.translateVulkanResult(result));
+		}
+		return allocation;
+	}
+
+	private MemoryAllocation allocate(VkMemoryRequirements memRequirements, int memoryFlags, boolean linear, MemoryStack stack) {
+		final int memoryType = VkHelper.findMemoryType(vkPhysicalDevice, memRequirements.memoryTypeBits(), memoryFlags, stack);
+		final long size = memRequirements.size();
+		final long alignment = memRequirements.alignment();
+		requestedBytes += size;
+
+		// big resources get their own memory, otherwise they would waste most of the block
+		if (size > blockSize / 2) {
+			final MemoryBlock block = allocateBlock(memoryType, size, linear, true);
+			return MemoryAllocation.fromBlock(block, 0, size, -1);
+		}
+
+		for (MemoryBlock block : blocks) {
+			if (block.isDedicated() || block.getMemoryTypeIndex() != memoryType || block.isLinear() != linear) {
+				continue;
+			}
+			final MemoryAllocation allocation = allocateFromBlock(block, size, alignment);
+			if (allocation != null) {
+				return allocation;
+			}
+		}
+
+		final MemoryBlock block = allocateBlock(memoryType, blockSize, linear, false);
+		final MemoryAllocation allocation = allocateFromBlock(block, size, alignment);
+		if (allocation == null) {
+			throw new RuntimeException(String.format("Failed to sub-allocate %d bytes with alignment %d from a new memory block!", size, alignment));
+		}
+		return allocation;
+	}
+
+	private MemoryAllocation allocateFromBlock(MemoryBlock block, long size, long alignment) {
+		final BuddyAllocator buddyAllocator = block.getBuddyAllocator();
+		final int order = buddyAllocator.orderFor(size, alignment);
+		final long offset = buddyAllocator.allocate(order);
+		if (offset == BuddyAllocator.INVALID_OFFSET) {
+			return null;
+		}
+		return MemoryAllocation.fromBlock(block, offset, size, order);
+	}
+
+	private MemoryBlock allocateBlock(int memoryType, long size, boolean linear, boolean dedicated) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkMemoryAllocateInfo allocInfo = VkMemoryAllocateInfo.calloc(stack)
+					.sType$Default()
+					.allocationSize(size)
+					.memoryTypeIndex(memoryType);
+
+			System.out.printf("🔷 Allocating %s memory block %d bytes (%s) | type: %d %s\n", dedicated ? "dedicated" : "shared",
+					size, VkHelper.humanReadableByteCountBin(size), memoryType, VkTranslate.vkTranslateMemoryProperty(memoryTypeFlags[memoryType]));
+			final LongBuffer pMemory = stack.mallocLong(1);
+			final int result = vkAllocateMemory(vkLogicalDevice, allocInfo, null, pMemory);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to allocate memory block! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			final long vkDeviceMemory = pMemory.get(0);
+
+			long mappedPointer = 0;
+			if ((memoryTypeFlags[memoryType] & VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT) != 0) {
+				final PointerBuffer pData = stack.mallocPointer(1);
+				final int mapResult = vkMapMemory(vkLogicalDevice, vkDeviceMemory, 0, VK_WHOLE_SIZE, 0, pData);
+				if (mapResult != VK_SUCCESS) {
+					throw new RuntimeException("Failed to map memory block! Error: " + VkTranslate.translateVulkanResult(mapResult));
+				}
+				mappedPointer = pData.get(0);
+			}
+
+			final MemoryBlock block = new MemoryBlock(vkDeviceMemory, memoryType, size, linear, mappedPointer, dedicated);
+			blocks.add(block);
+			return block;
+		}
+	}
+
+	@Override
+	public void free(MemoryAllocation allocation) {
+		final MemoryBlock block = allocation.getBlock();
+		requestedBytes -= allocation.getSize();
+		if (block.isDedicated()) {
+			freeBlock(block);
+			return;
+		}
+		block.getBuddyAllocator().free(allocation.getOffset(), allocation.getOrder());
+		// keep one empty block of each kind around, so alloc/free cycles don't hit vkAllocateMemory every time
+		if (block.getBuddyAllocator().isEmpty() && hasOtherEmptyBlock(block)) {
+			freeBlock(block);
+		}
+	}
+
+	private boolean hasOtherEmptyBlock(MemoryBlock block) {
+		for (MemoryBlock other : blocks) {
+			if (other != block && !other.isDedicated() &&
+					other.getMemoryTypeIndex() == block.getMemoryTypeIndex() &&
+					other.isLinear() == block.isLinear() &&
+					other.getBuddyAllocator().isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void freeBlock(MemoryBlock block) {
+		if (block.isMapped()) {
+			vkUnmapMemory(vkLogicalDevice, block.getVkDeviceMemory());
+		}
+		vkFreeMemory(vkLogicalDevice, block.getVkDeviceMemory(), null);
+		blocks.remove(block);
+	}
+
+	@Override
+	public MemoryStats getStats() {
+		int dedicatedBlockCount = 0;
+		int allocationCount = 0;
+		long reservedBytes = 0;
+		long usedBytes = 0;
+		long largestFreeRange = 0;
+		for (MemoryBlock block : blocks) {
+			reservedBytes += block.getSize();
+			if (block.isDedicated()) {
+				dedicatedBlockCount++;
+				allocationCount++;
+				usedBytes += block.getSize();
+				continue;
+			}
+			final BuddyAllocator buddyAllocator = block.getBuddyAllocator();
+			allocationCount += buddyAllocator.getAllocationCount();
+			usedBytes += block.getSize() - buddyAllocator.getFreeBytes();
+			largestFreeRange = Math.max(largestFreeRange, buddyAllocator.getLargestFreeRange());
+		}
+		return new MemoryStats(blocks.size(), dedicatedBlockCount, allocationCount, reservedBytes, usedBytes, requestedBytes, largestFreeRange);
+	}
+
+	@Override
+	public void printStats() {
+		final MemoryStats stats = getStats();
+		System.out.printf(Locale.US, "🔷 Memory allocator stats:" +
+						"\n\tblocks: %d (dedicated: %d)" +
+						"\n\tlive allocations: %d" +
+						"\n\treserved: %s | used: %s | requested: %s | free: %s" +
+						"\n\tlargest free range: %s | fragmentation: %.2f\n",
+				stats.blockCount(), stats.dedicatedBlockCount(),
+				stats.allocationCount(),
+				VkHelper.humanReadableByteCountBin(stats.reservedBytes()),
+				VkHelper.humanReadableByteCountBin(stats.usedBytes()),
+				VkHelper.humanReadableByteCountBin(stats.requestedBytes()),
+				VkHelper.humanReadableByteCountBin(stats.freeBytes()),
+				VkHelper.humanReadableByteCountBin(stats.largestFreeRange()),
+				stats.fragmentation());
+	}
+
+	@Override
+	public void destroy() {
+		for (MemoryBlock block : new ArrayList<>(blocks)) {
+			freeBlock(block);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package ua.rawfish2d.vklib.memory;
+
+import lombok.Getter;
+
+import java.util.BitSet;
+
+/**
+ * Power of two buddy allocator over the range [0, size).
+ * It doesn't know anything about Vulkan, it only hands out offsets, so it can be used (and stress tested) headless.
+ * Every node of order N starts at an offset which is a multiple of 2^N, so alignment comes for free
+ * as long as the requested order is at least log2(alignment).
+ */
+public class BuddyAllocator {
+	public static final long INVALID_OFFSET = -1L;
+	@Getter
+	private final long size;
+	private final int minOrder;
+	private final int maxOrder;
+	// one free list per order, bit index is (offset >> order)
+	private final BitSet[] freeLists;
+	@Getter
+	private long freeBytes;
+	@Getter
+	private int allocationCount = 0;
+
+	public BuddyAllocator(long size, long minAllocationSize) {
+		if (Long.bitCount(size) != 1 || Long.bitCount(minAllocationSize) != 1 || minAllocationSize > size) {
+			throw new IllegalArgumentException(String.format("Buddy allocator size %d and min allocation size %d should be powers of two!", size, minAllocationSize));
+		}
+		this.size = size;
+		this.minOrder = Long.numberOfTrailingZeros(minAllocationSize);
+		this.maxOrder = Long.numberOfTrailingZeros(size);
+		this.freeLists = new BitSet[maxOrder - minOrder + 1];
+		for (int a = 0; a < freeLists.length; ++a) {
+			freeLists[a] = new BitSet();
+		}
+		freeLists[maxOrder - minOrder].set(0);
+		this.freeBytes = size;
+	}
+
+	/**
+	 * returns order of the smallest node which can hold allocation of this size and alignment
+	 */
+	public int orderFor(long allocationSize, long alignment) {
+		final long required = Math.max(Math.max(allocationSize, alignment), 1L << minOrder);
+		return 64 - Long.numberOfLeadingZeros(required - 1);
+	}
+
+	public boolean fits(int order) {
+		return order <= maxOrder;
+	}
+
+	/**
+	 * returns offset of allocated node or INVALID_OFFSET if there is no free node big enough
+	 */
+	public long allocate(int order) {
+		if (order < minOrder || order > maxOrder) {
+			return INVALID_OFFSET;
+		}
+		int current = order;
+		while (current <= maxOrder && freeLists[current - minOrder].isEmpty()) {
+			current++;
+		}
+		if (current > maxOrder) {
+			return INVALID_OFFSET;
+		}
+		final BitSet freeList = freeLists[current - minOrder];
+		final int index = freeList.nextSetBit(0);
+		freeList.clear(index);
+		final long offset = (long) index << current;
+
+		// split bigger node, right halves go to free lists
+		while (current > order) {
+			current--;
+			final long buddyOffset = offset + (1L << current);
+			freeLists[current - minOrder].set((int) (buddyOffset >> current));
+		}
+		freeBytes -= 1L << order;
+		allocationCount++;
+		return offset;
+	}
+
+	public void free(long offset, int order) {
+		freeBytes += 1L << order;
+		allocationCount--;
+
+		// merge with buddies while they are free
+		int current = order;
+		while (current < maxOrder) {
+			final BitSet freeList = freeLists[current - minOrder];
+			final int buddyIndex = (int) (offset >> current) ^ 1;
+			if (!freeList.get(buddyIndex)) {
+				break;
+			}
+			freeList.clear(buddyIndex);
+			offset &= ~(1L << current);
+			current++;
+		}
+		freeLists[current - minOrder].set((int) (offset >> current));
+	}
+
+	public long getLargestFreeRange() {
+		for (int order = maxOrder; order >= minOrder; --order) {
+			if (!freeLists[order - minOrder].isEmpty()) {
+				return 1L << order;
+			}
+		}
+		return 0;
+	}
+
+	public boolean isEmpty() {
+		return allocationCount == 0;
+	}
+}
@@ -0,0 +1,35 @@
+package ua.rawfish2d.vklib.memory;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Piece of device memory handed out by MemoryAllocator.
+ * Resource is already bound to getMemory() at getOffset().
+ */
+@Getter
+@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
+public class MemoryAllocation {
+	private final long memory;
+	private final long offset;
+	// size requested by resource (VkMemoryRequirements.size)
+	private final long size;
+	// pointer to the start of this allocation or 0 if memory is not host visible
+	private final long mappedPointer;
+	// BlockMemoryAllocator only
+	private final MemoryBlock block;
+	// buddy order, size of the block which was actually reserved is 2^order
+	private final int order;
+	// VmaMemoryAllocator only
+	private final long vmaAllocation;
+
+	static MemoryAllocation fromBlock(MemoryBlock block, long offset, long size, int order) {
+		final long mappedPointer = block.isMapped() ? block.getMappedPointer() + offset : 0;
+		return new MemoryAllocation(block.getVkDeviceMemory(), offset, size, mappedPointer, block, order, 0);
+	}
+
+	static MemoryAllocation fromVma(long vmaAllocation, long memory, long offset, long size, long mappedPointer) {
+		return new MemoryAllocation(memory, offset, size, mappedPointer, null, -1, vmaAllocation);
+	}
+}
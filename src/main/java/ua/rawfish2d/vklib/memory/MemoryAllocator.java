@@ -0,0 +1,19 @@
+package ua.rawfish2d.vklib.memory;
+
+/**
+ * Backend which gives memory to buffers and images.
+ * Both methods allocate memory and bind it to the resource.
+ */
+public interface MemoryAllocator {
+	MemoryAllocation allocateForBuffer(long vkBuffer, int memoryFlags);
+
+	MemoryAllocation allocateForImage(long vkImage, int memoryFlags);
+
+	void free(MemoryAllocation allocation);
+
+	MemoryStats getStats();
+
+	void printStats();
+
+	void destroy();
+}
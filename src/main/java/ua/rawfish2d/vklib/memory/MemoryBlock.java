@@ -0,0 +1,35 @@
+package ua.rawfish2d.vklib.memory;
+
+import lombok.Getter;
+
+/**
+ * One VkDeviceMemory allocation which is split between many resources.
+ * Dedicated blocks hold exactly one resource and don't have buddy allocator.
+ */
+@Getter
+public class MemoryBlock {
+	private final long vkDeviceMemory;
+	private final int memoryTypeIndex;
+	private final long size;
+	// linear (buffers) and optimal (images) resources never share a block, so we don't need to care about bufferImageGranularity
+	private final boolean linear;
+	private final long mappedPointer;
+	private final BuddyAllocator buddyAllocator;
+
+	public MemoryBlock(long vkDeviceMemory, int memoryTypeIndex, long size, boolean linear, long mappedPointer, boolean dedicated) {
+		this.vkDeviceMemory = vkDeviceMemory;
+		this.memoryTypeIndex = memoryTypeIndex;
+		this.size = size;
+		this.linear = linear;
+		this.mappedPointer = mappedPointer;
+		this.buddyAllocator = dedicated ? null : new BuddyAllocator(size, BlockMemoryAllocator.MIN_ALLOCATION_SIZE);
+	}
+
+	public boolean isDedicated() {
+		return buddyAllocator == null;
+	}
+
+	public boolean isMapped() {
+		return mappedPointer != 0;
+	}
+}
@@ -0,0 +1,20 @@
+package ua.rawfish2d.vklib.memory;
+
+public record MemoryStats(int blockCount, int dedicatedBlockCount, int allocationCount,
+                          long reservedBytes, long usedBytes, long requestedBytes, long largestFreeRange) {
+
+	public long freeBytes() {
+		return reservedBytes - usedBytes;
+	}
+
+	/**
+	 * 0 - all free memory is in one piece, close to 1 - free memory is scattered in small pieces
+	 */
+	public float fragmentation() {
+		final long freeBytes = freeBytes();
+		if (freeBytes == 0) {
+			return 0f;
+		}
+		return 1f - (float) largestFreeRange / (float) freeBytes;
+	}
+}
@@ -0,0 +1,170 @@
+package ua.rawfish2d.vklib.memory;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.vma.*;
+import org.lwjgl.vulkan.*;
+import ua.rawfish2d.vklib.utils.VkHelper;
+import ua.rawfish2d.vklib.utils.VkTranslate;
+
+import java.util.Locale;
+
+import static org.lwjgl.util.vma.Vma.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * MemoryAllocator backed by Vulkan Memory Allocator (lwjgl-vma).
+ * Host visible allocations are persistently mapped, big images get dedicated memory.
+ */
+public class VmaMemoryAllocator implements MemoryAllocator {
+	// images bigger than this get their own VkDeviceMemory
+	public static final long DEDICATED_IMAGE_SIZE = 16L * 1024L * 1024L;
+	private final VkDevice vkLogicalDevice;
+	private final long vmaAllocator;
+	private final int memoryHeapCount;
+
+	public VmaMemoryAllocator(VkInstance vkInstance, VkPhysicalDevice vkPhysicalDevice, VkDevice vkLogicalDevice, int vulkanVersion) {
+		this.vkLogicalDevice = vkLogicalDevice;
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VmaVulkanFunctions vulkanFunctions = VmaVulkanFunctions.calloc(stack)
+					.set(vkInstance, vkLogicalDevice);
+
+			final VmaAllocatorCreateInfo createInfo = VmaAllocatorCreateInfo.calloc(stack)
+					.flags(0)
+					.physicalDevice(vkPhysicalDevice)
+					.device(vkLogicalDevice)
+					.pVulkanFunctions(vulkanFunctions)
+					.instance(vkInstance)
+					.vulkanApiVersion(vulkanVersion);
+
+			final PointerBuffer pAllocator = stack.mallocPointer(1);
+			final int result = vmaCreateAllocator(createInfo, pAllocator);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create VMA allocator! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			vmaAllocator = pAllocator.get(0);
+
+			final VkPhysicalDeviceMemoryProperties memProperties = VkPhysicalDeviceMemoryProperties.malloc(stack);
+			vkGetPhysicalDeviceMemoryProperties(vkPhysicalDevice, memProperties);
+			memoryHeapCount = memProperties.memoryHeapCount();
+		}
+		System.out.printf("🔷 VMA allocator created: %s\n", String.format("0x%08x", vmaAllocator));
+	}
+
+	private VmaAllocationCreateInfo makeAllocationCreateInfo(MemoryStack stack, int memoryFlags, boolean dedicated) {
+		int flags = 0;
+		if ((memoryFlags & VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT) != 0) {
+			flags |= VMA_ALLOCATION_CREATE_MAPPED_BIT | VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT;
+		}
+		if (dedicated) {
+			flags |= VMA_ALLOCATION_CREATE_DEDICATED_MEMORY_BIT;
+		}
+		return VmaAllocationCreateInfo.calloc(stack)
+				.flags(flags)
+				.usage(VMA_MEMORY_USAGE_UNKNOWN)
+				.requiredFlags(memoryFlags);
+	}
+
+	@Override
+	public MemoryAllocation allocateForBuffer(long vkBuffer, int memoryFlags) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VmaAllocationCreateInfo allocationCreateInfo = makeAllocationCreateInfo(stack, memoryFlags, false);
+			final PointerBuffer pAllocation = stack.mallocPointer(1);
+			final VmaAllocationInfo allocationInfo = VmaAllocationInfo.malloc(stack);
+			int result = vmaAllocateMemoryForBuffer(vmaAllocator, vkBuffer, allocationCreateInfo, pAllocation, allocationInfo);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to allocate buffer memory with VMA! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			final long vmaAllocation = pAllocation.get(0);
+			result = vmaBindBufferMemory(vmaAllocator, vmaAllocation, vkBuffer);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to bind buffer memory with VMA! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			return MemoryAllocation.fromVma(vmaAllocation, allocationInfo.deviceMemory(), allocationInfo.offset(), allocationInfo.size(), allocationInfo.pMappedData());
+		}
+	}
+
+	@Override
+	public MemoryAllocation allocateForImage(long vkImage, int memoryFlags) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkMemoryRequirements memRequirements = VkMemoryRequirements.malloc(stack);
+			vkGetImageMemoryRequirements(vkLogicalDevice, vkImage, memRequirements);
+			final boolean dedicated = memRequirements.size() >= DEDICATED_IMAGE_SIZE;
+
+			final VmaAllocationCreateInfo allocationCreateInfo = makeAllocationCreateInfo(stack, memoryFlags, dedicated);
+			final PointerBuffer pAllocation = stack.mallocPointer(1);
+			final VmaAllocationInfo allocationInfo = VmaAllocationInfo.malloc(stack);
+			int result = vmaAllocateMemoryForImage(vmaAllocator, vkImage, allocationCreateInfo, pAllocation, allocationInfo);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to allocate image memory with VMA! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			final long vmaAllocation = pAllocation.get(0);
+			result = vmaBindImageMemory(vmaAllocator, vmaAllocation, vkImage);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to bind image memory with VMA! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			return MemoryAllocation.fromVma(vmaAllocation, allocationInfo.deviceMemory(), allocationInfo.offset(), allocationInfo.size(), allocationInfo.pMappedData());
+		}
+	}
+
+	@Override
+	public void free(MemoryAllocation allocation) {
+		vmaFreeMemory(vmaAllocator, allocation.getVmaAllocation());
+	}
+
+	@Override
+	public MemoryStats getStats() {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VmaTotalStatistics totalStatistics = VmaTotalStatistics.malloc(stack);
+			vmaCalculateStatistics(vmaAllocator, totalStatistics);
+			final VmaDetailedStatistics total = totalStatistics.total();
+			final VmaStatistics statistics = total.statistics();
+			// VMA doesn't report dedicated allocations separately
+			return new MemoryStats(statistics.blockCount(), 0, statistics.allocationCount(),
+					statistics.blockBytes(), statistics.allocationBytes(), statistics.allocationBytes(),
+					total.unusedRangeCount() == 0 ? 0 : total.unusedRangeSizeMax());
+		}
+	}
+
+	/**
+	 * prints how much memory is used by this process and how much it can use on every heap
+	 */
+	public void printBudgets() {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VmaBudget.Buffer budgets = VmaBudget.calloc(VK_MAX_MEMORY_HEAPS, stack);
+			vmaGetHeapBudgets(vmaAllocator, budgets);
+			System.out.printf("🔷 Memory heap budgets:\n");
+			for (int index = 0; index < memoryHeapCount; ++index) {
+				final VmaBudget budget = budgets.get(index);
+				System.out.printf("\t[%d] usage: %s | budget: %s | blocks: %s | allocations: %s\n", index,
+						VkHelper.humanReadableByteCountBin(budget.usage()),
+						VkHelper.humanReadableByteCountBin(budget.budget()),
+						VkHelper.humanReadableByteCountBin(budget.statistics().blockBytes()),
+						VkHelper.humanReadableByteCountBin(budget.statistics().allocationBytes()));
+			}
+		}
+	}
+
+	@Override
+	public void printStats() {
+		final MemoryStats stats = getStats();
+		System.out.printf(Locale.US, "🔷 VMA allocator stats:" +
+						"\n\tblocks: %d" +
+						"\n\tlive allocations: %d" +
+						"\n\treserved: %s | used: %s | free: %s" +
+						"\n\tlargest free range: %s | fragmentation: %.2f\n",
+				stats.blockCount(),
+				stats.allocationCount(),
+				VkHelper.humanReadableByteCountBin(stats.reservedBytes()),
+				VkHelper.humanReadableByteCountBin(stats.usedBytes()),
+				VkHelper.humanReadableByteCountBin(stats.freeBytes()),
+				VkHelper.humanReadableByteCountBin(stats.largestFreeRange()),
+				stats.fragmentation());
+		printBudgets();
+	}
+
+	@Override
+	public void destroy() {
+		vmaDestroyAllocator(vmaAllocator);
+	}
+}
@@ -0,0 +1,92 @@
+package ua.rawfish2d.vklib.test;
+
+import ua.rawfish2d.vklib.memory.BuddyAllocator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+
+/**
+ * Headless stress test of BuddyAllocator: millions of random allocations and frees with random sizes and alignments.
+ * Checks alignment, that allocations don't overlap, freeBytes accounting and that freeing everything
+ * coalesces allocator back into one max order node. Run it with main(), throws on first error
+ */
+public class BuddyAllocatorStress {
+	private static final long SIZE = 256L * 1024 * 1024;
+	private static final long MIN_ALLOCATION_SIZE = 256;
+	private static final int OPERATIONS = 5_000_000;
+	// allocations are done while less than this many are alive, then allocator is drained
+	private static final int MAX_LIVE_ALLOCATIONS = 4096;
+
+	private record Allocation(long offset, int order) {
+	}
+
+	public static void main(String[] args) {
+		final long seed = args.length > 0 ? Long.parseLong(args[0]) : 0;
+		final SplittableRandom random = new SplittableRandom(seed);
+		final BuddyAllocator allocator = new BuddyAllocator(SIZE, MIN_ALLOCATION_SIZE);
+		final List<Allocation> live = new ArrayList<>();
+		// offset -> end of live allocations, to check overlaps
+		final TreeMap<Long, Long> ranges = new TreeMap<>();
+		long usedBytes = 0;
+		int allocations = 0;
+		int failedAllocations = 0;
+
+		final long startTime = System.nanoTime();
+		for (int a = 0; a < OPERATIONS; ++a) {
+			final boolean allocate = live.isEmpty() || (live.size() < MAX_LIVE_ALLOCATIONS && random.nextInt(100) < 55);
+			if (allocate) {
+				// sizes from 1 byte to 4 MiB, mostly small
+				final long allocationSize = 1 + random.nextLong(1L << random.nextInt(1, 23));
+				final long alignment = 1L << random.nextInt(0, 17);
+				final int order = allocator.orderFor(allocationSize, alignment);
+				final long offset = allocator.allocate(order);
+				if (offset == BuddyAllocator.INVALID_OFFSET) {
+					failedAllocations++;
+					continue;
+				}
+				final long nodeSize = 1L << order;
+				check(nodeSize >= allocationSize, "node of order " + order + " is smaller than allocation " + allocationSize);
+				check(offset % alignment == 0, "offset " + offset + " is not aligned to " + alignment);
+				check(offset >= 0 && offset + nodeSize <= SIZE, "offset " + offset + " is out of range");
+				final Map.Entry<Long, Long> before = ranges.floorEntry(offset);
+				check(before == null || before.getValue() <= offset, "allocation at " + offset + " overlaps allocation at " + (before == null ? 0 : before.getKey()));
+				final Map.Entry<Long, Long> after = ranges.ceilingEntry(offset);
+				check(after == null || after.getKey() >= offset + nodeSize, "allocation at " + offset + " overlaps allocation at " + (after == null ? 0 : after.getKey()));
+				ranges.put(offset, offset + nodeSize);
+				live.add(new Allocation(offset, order));
+				usedBytes += nodeSize;
+				allocations++;
+			} else {
+				// swap remove of random allocation
+				final int index = random.nextInt(live.size());
+				final Allocation allocation = live.get(index);
+				live.set(index, live.get(live.size() - 1));
+				live.remove(live.size() - 1);
+				ranges.remove(allocation.offset());
+				allocator.free(allocation.offset(), allocation.order());
+				usedBytes -= 1L << allocation.order();
+			}
+			check(allocator.getFreeBytes() == SIZE - usedBytes, "freeBytes " + allocator.getFreeBytes() + " expected " + (SIZE - usedBytes));
+			check(allocator.getAllocationCount() == live.size(), "allocationCount " + allocator.getAllocationCount() + " expected " + live.size());
+		}
+
+		for (Allocation allocation : live) {
+			allocator.free(allocation.offset(), allocation.order());
+		}
+		check(allocator.isEmpty(), "allocator is not empty after freeing everything");
+		check(allocator.getFreeBytes() == SIZE, "freeBytes " + allocator.getFreeBytes() + " after freeing everything");
+		check(allocator.getLargestFreeRange() == SIZE, "free nodes were not coalesced, largest free range: " + allocator.getLargestFreeRange());
+
+		System.out.printf("BuddyAllocator stress test passed | seed: %d | operations: %d | allocations: %d | failed allocations: %d | %.3f ms\n",
+				seed, OPERATIONS, allocations, failedAllocations, (System.nanoTime() - startTime) / 1_000_000.0);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new RuntimeException("BuddyAllocator stress test failed! " + message);
+		}
+	}
+}
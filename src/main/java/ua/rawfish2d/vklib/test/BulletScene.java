@@ -1,59 +1,56 @@
 package ua.rawfish2d.vklib.test;
 
+import org.joml.Vector2f;
 import org.lwjgl.vulkan.VkCommandBuffer;
+import ua.rawfish2d.vklib.StagingArena;
+import ua.rawfish2d.vklib.UploadService;
 import ua.rawfish2d.vklib.VkBuffer;
 import ua.rawfish2d.vklib.attrib.AttribFormat;
 import ua.rawfish2d.vklib.init.VkDeviceInstance;
-import ua.rawfish2d.vklib.utils.PredictableRandom;
 import ua.rawfish2d.vklib.utils.TimeHelper;
+import ua.rawfish2d.vklib.utils.VkHelper;
 
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.lwjgl.vulkan.VK13.*;
 
 public class BulletScene {
-	public final List<Bullet> bullets;
+	public final BulletStorage bullets;
 	private final int verticesPerObject = 4;
 	private final AttribFormat attribFormat;
 	private final int bulletsCount;
 	private final VkDeviceInstance vkDeviceInstance;
 	private final TimeHelper updateTimer = new TimeHelper();
 	public boolean pause = false;
+	// shards of bullets are updated on common ForkJoinPool, result is the same as sequential update
+	public boolean parallel = false;
+	// positions were changed without simulation step (start, reset) and must be uploaded on next frame
+	private boolean positionsPending = true;
 
 	public BulletScene(VkDeviceInstance vkDeviceInstance, int bulletsCount, AttribFormat attribFormat) {
-		this.bullets = new ArrayList<>(bulletsCount);
+		this.bullets = new BulletStorage(bulletsCount);
 		this.bulletsCount = bulletsCount;
 		this.vkDeviceInstance = vkDeviceInstance;
 		this.attribFormat = attribFormat;
-		createBullets(bulletsCount);
+		createBullets();
 	}
 
-	private void createBullets(int bulletsCount) {
-		bullets.clear();
-		PredictableRandom.setSeed(0);
-		for (int a = 0; a < bulletsCount; ++a) {
-			Bullet bullet = new Bullet();
-			bullet.randomPos();
-			bullet.randomMotion();
-			bullets.add(bullet);
-		}
+	private void createBullets() {
+		bullets.randomize(0, BulletSceneConfig.windowWidth, BulletSceneConfig.windowHeight);
 	}
 
-	public void resetBullets(VkBuffer vkVertexBuffer, VkBuffer vkIndexBuffer, VkBuffer vkSSBO) {
-		PredictableRandom.setSeed(0);
-		for (Bullet bullet : bullets) {
-			bullet.randomPos();
-			bullet.randomMotion();
-		}
-		updateAll(vkVertexBuffer, vkIndexBuffer, vkSSBO);
+	public void resetBullets(VkBuffer vkVertexBuffer, VkBuffer vkIndexBuffer) {
+		createBullets();
+		updateAll(vkVertexBuffer, vkIndexBuffer);
 	}
 
-	public void updateAll(VkBuffer vkVertexBuffer, VkBuffer vkIndexBuffer, VkBuffer vkSSBO) {
+	public void updateAll(VkBuffer vkVertexBuffer, VkBuffer vkIndexBuffer) {
 		// upload data
 		updateVertex(vkVertexBuffer);
 		updateTexCoords(vkVertexBuffer);
-		updateSSBO(vkSSBO);
+		// positions are written by next uploadBulletPos()
+		positionsPending = true;
 
 		updateIndexBuffer(vkIndexBuffer);
 	}
@@ -61,7 +58,7 @@ public class BulletScene {
 	public void updateIndexBuffer(VkBuffer vkIndexBuffer) {
 		final ByteBuffer indexBuffer = vkIndexBuffer.getStagingBuffer(vkDeviceInstance);
 		indexBuffer.clear();
-		for (int a = 0; a < bullets.size() * verticesPerObject; a += verticesPerObject) {
+		for (int a = 0; a < bulletsCount * verticesPerObject; a += verticesPerObject) {
 			indexBuffer.putInt(a);
 			indexBuffer.putInt(a + 1);
 			indexBuffer.putInt(a + 2);
@@ -115,16 +112,45 @@ public class BulletScene {
 		return (1f / size) * x;
 	}
 
-	public void updateSSBO(VkBuffer vkSSBO) {
-		vkSSBO.getStagingBuffer(vkDeviceInstance).clear();
-		final FloatBuffer ssbo = vkSSBO.getStagingBuffer(vkDeviceInstance).asFloatBuffer();
-		int pos = 0;
-		for (final Bullet bullet : bullets) {
-			bullet.update();
-			final float x = bullet.pos.x;
-			final float y = bullet.pos.y;
-			ssbo.put(pos++, x).put(pos++, y);
+	/**
+	 * Moves bullets by one tick if step is true and writes their positions straight into StagingArena memory
+	 * of current frame, then records copy into vkSSBO. Does nothing if there is no step and positions weren't changed
+	 */
+	public void uploadBulletPos(VkBuffer vkSSBO, VkCommandBuffer commandBuffer, boolean step) {
+		if (!step && !positionsPending) {
+			return;
+		}
+		positionsPending = false;
+		final StagingArena stagingArena = vkDeviceInstance.getStagingArena();
+		// every bullet moves every tick (speed is at least 1), so whole range is written
+		final int size = bulletsCount * 2 * Float.BYTES;
+		final long stagingOffset = stagingArena.allocate(size);
+		final long address = stagingArena.getAddress(stagingOffset);
+		if (step) {
+			final Vector2f bulletSize = BulletSceneConfig.size;
+			if (parallel) {
+				bullets.updateParallel(ForkJoinPool.commonPool(), BulletSceneConfig.windowWidth, BulletSceneConfig.windowHeight, bulletSize.x, bulletSize.y, address);
+			} else {
+				bullets.update(BulletSceneConfig.windowWidth, BulletSceneConfig.windowHeight, bulletSize.x, bulletSize.y, address);
+			}
+		} else {
+			bullets.writePositions(address);
 		}
+
+		// previous frames can still read positions in culling pass and vertex shader
+		VkHelper.memoryBarrier2(commandBuffer,
+				VK_ACCESS_2_NONE, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT | VK_PIPELINE_STAGE_2_VERTEX_SHADER_BIT,
+				VK_ACCESS_2_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_2_COPY_BIT);
+		stagingArena.copy(commandBuffer, stagingOffset, vkSSBO.getHandle(), 0, size);
+		VkHelper.bufferMemoryBarrier2(commandBuffer,
+				vkSSBO.getHandle(), 0, size,
+				VK_ACCESS_2_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_2_COPY_BIT,
+				VK_ACCESS_2_SHADER_STORAGE_READ_BIT, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT | VK_PIPELINE_STAGE_2_VERTEX_SHADER_BIT);
+	}
+
+	public void uploadBuffers(VkBuffer vkVertexBuffer, VkBuffer vkIndexBuffer, UploadService uploadService) {
+		uploadService.uploadBuffer(vkVertexBuffer, VK_PIPELINE_STAGE_2_VERTEX_INPUT_BIT, VK_ACCESS_2_VERTEX_ATTRIBUTE_READ_BIT);
+		uploadService.uploadBuffer(vkIndexBuffer, VK_PIPELINE_STAGE_2_VERTEX_INPUT_BIT, VK_ACCESS_2_INDEX_READ_BIT);
 	}
 
 	public void uploadBuffers(VkBuffer vkVertexBuffer, VkBuffer vkIndexBuffer, VkCommandBuffer vkCommandBuffer) {
@@ -144,13 +170,4 @@ public class BulletScene {
 		}
 		return false;
 	}
-
-	public void updateBulletPos(VkBuffer vkSSBO) {
-		updateSSBO(vkSSBO);
-	}
-
-	public void uploadBulletPos(VkBuffer vkSSBO, VkCommandBuffer commandBuffer) {
-		vkSSBO.uploadFromStagingBuffer(commandBuffer);
-		vkSSBO.ssboBarrier(commandBuffer);
-	}
 }
@@ -0,0 +1,9 @@
+package ua.rawfish2d.vklib.test;
+
+import org.joml.Vector2f;
+
+public class BulletSceneConfig {
+	public static final Vector2f size = new Vector2f(24f, 24f);
+	public static float windowWidth = 1024;
+	public static float windowHeight = 768;
+}
@@ -0,0 +1,109 @@
+package ua.rawfish2d.vklib.test;
+
+import org.lwjgl.vulkan.VK13;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import ua.rawfish2d.vklib.VkBuffer;
+import ua.rawfish2d.vklib.WindowVK;
+import ua.rawfish2d.vklib.init.VkDeviceInstance;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Compares CPU simulation (BulletScene.uploadBulletPos, positions written into StagingArena and copied)
+ * with GPU simulation (GpuBulletSimulation compute dispatch) at fixed bullet counts.
+ * Every tick is a real frame in hidden window with vsync off, host time is time spent recording the tick,
+ * gpu time is time of the dispatch from timestamp queries, frame time is wall time of whole frames.
+ * Run it with main(), needs Vulkan device
+ */
+public class BulletSimulationBenchmark {
+	private static final int[] BULLET_COUNTS = {20_000, 100_000, 1_000_000};
+	private static final int WARMUP_FRAMES = 200;
+	private static final int MEASURED_FRAMES = 500;
+	private static final int WIDTH = 1024;
+	private static final int HEIGHT = 768;
+
+	public static void main(String[] args) {
+		final WindowVK windowVK = new WindowVK();
+		windowVK.init();
+		windowVK.setVisible(false);
+		windowVK.create(WIDTH, HEIGHT, "Bullet simulation benchmark");
+		BulletSceneConfig.size.set(24f, 24f);
+		BulletSceneConfig.windowWidth = WIDTH;
+		BulletSceneConfig.windowHeight = HEIGHT;
+
+		int maxBullets = 0;
+		for (int bulletsCount : BULLET_COUNTS) {
+			maxBullets = Math.max(maxBullets, bulletsCount);
+		}
+		final VkDeviceInstance vkDeviceInstance = new VkDeviceInstance()
+				.applicationName("Bullet simulation benchmark")
+				.apiVersion(VK13.VK_API_VERSION_1_3)
+				.vsync(false)
+				// positions of all bullets are staged every CPU tick
+				.stagingArenaSize(2L * maxBullets * 2 * Float.BYTES)
+				.create(windowVK);
+
+		for (int bulletsCount : BULLET_COUNTS) {
+			run(vkDeviceInstance, windowVK, bulletsCount, false);
+			run(vkDeviceInstance, windowVK, bulletsCount, true);
+		}
+
+		vkDeviceWaitIdle(vkDeviceInstance.getVkLogicalDevice());
+		vkDeviceInstance.destroy();
+		windowVK.terminate();
+	}
+
+	private static void run(VkDeviceInstance vkDeviceInstance, WindowVK windowVK, int bulletsCount, boolean gpu) {
+		final VkBuffer positions = new VkBuffer();
+		positions.createBuffer(vkDeviceInstance, bulletsCount * 2 * Float.BYTES, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT);
+		positions.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+		final SimulationTimings timings = new SimulationTimings();
+		// vertex data is not used, so there is no attrib format
+		final BulletScene bulletScene = new BulletScene(vkDeviceInstance, bulletsCount, null);
+		GpuBulletSimulation gpuBulletSimulation = null;
+		if (gpu) {
+			gpuBulletSimulation = new GpuBulletSimulation(vkDeviceInstance, positions, bulletsCount, timings);
+			gpuBulletSimulation.upload(bulletScene.bullets, vkDeviceInstance.getUploadService());
+		}
+
+		for (int a = 0; a < WARMUP_FRAMES; ++a) {
+			frame(vkDeviceInstance, windowVK, bulletScene, gpuBulletSimulation, positions, timings);
+		}
+		timings.reset();
+		final long startTime = System.nanoTime();
+		for (int a = 0; a < MEASURED_FRAMES; ++a) {
+			frame(vkDeviceInstance, windowVK, bulletScene, gpuBulletSimulation, positions, timings);
+		}
+		vkDeviceWaitIdle(vkDeviceInstance.getVkLogicalDevice());
+		final double frameTime = (System.nanoTime() - startTime) / (double) MEASURED_FRAMES;
+		timings.printAndReset(gpu ? "GPU" : "CPU", bulletsCount);
+		System.out.printf("[%s simulation] bullets: %d | frame: %.3f ms\n", gpu ? "GPU" : "CPU", bulletsCount, frameTime / 1_000_000.0);
+
+		if (gpuBulletSimulation != null) {
+			gpuBulletSimulation.destroy();
+		}
+		positions.destroyAndFreeMemory(vkDeviceInstance);
+	}
+
+	private static void frame(VkDeviceInstance vkDeviceInstance, WindowVK windowVK, BulletScene bulletScene,
+							  GpuBulletSimulation gpuBulletSimulation, VkBuffer positions, SimulationTimings timings) {
+		windowVK.pollEvents();
+		vkDeviceInstance.acquireImage();
+		final VkCommandBuffer commandBuffer = vkDeviceInstance.startRecording();
+
+		final long startTime = System.nanoTime();
+		if (gpuBulletSimulation != null) {
+			gpuBulletSimulation.tick(commandBuffer);
+		} else {
+			bulletScene.uploadBulletPos(positions, commandBuffer, true);
+		}
+		timings.addHostTime(System.nanoTime() - startTime);
+
+		// nothing is drawn, rendering only transitions swap chain image for presenting
+		vkDeviceInstance.beginRendering(commandBuffer);
+		vkDeviceInstance.endRendering(commandBuffer);
+		vkDeviceInstance.stopRecording();
+		vkDeviceInstance.submit();
+		vkDeviceInstance.presentImage();
+	}
+}
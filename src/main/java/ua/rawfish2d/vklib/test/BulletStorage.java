@@ -0,0 +1,137 @@
+package ua.rawfish2d.vklib.test;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static org.lwjgl.system.MemoryUtil.memPutFloat;
+
+/**
+ * Bullets stored as structure of arrays, without object per bullet.
+ * Movement loop has no branches and no field reads except arrays, so JIT can vectorize it,
+ * rare respawn of bullets which left the window is done by separate scalar loop.
+ * Bullets are split into shards of SHARD_SIZE, every shard has its own random, so result of update
+ * doesn't depend on number of threads and is the same for sequential and parallel update.
+ */
+public class BulletStorage {
+	public static final int SHARD_SIZE = 16384;
+	public final int count;
+	public final float[] x;
+	public final float[] y;
+	public final float[] vx;
+	public final float[] vy;
+	private final SplittableRandom[] shardRandoms;
+
+	public BulletStorage(int count) {
+		this.count = count;
+		this.x = new float[count];
+		this.y = new float[count];
+		this.vx = new float[count];
+		this.vy = new float[count];
+		this.shardRandoms = new SplittableRandom[(count + SHARD_SIZE - 1) / SHARD_SIZE];
+	}
+
+	public int getShardCount() {
+		return shardRandoms.length;
+	}
+
+	/**
+	 * Random position inside the window and random motion for every bullet, same seed gives the same bullets
+	 */
+	public void randomize(long seed, float windowWidth, float windowHeight) {
+		for (int shard = 0; shard < shardRandoms.length; ++shard) {
+			final SplittableRandom random = new SplittableRandom(seed + shard);
+			shardRandoms[shard] = random;
+			final int to = Math.min(count, (shard + 1) * SHARD_SIZE);
+			for (int a = shard * SHARD_SIZE; a < to; ++a) {
+				x[a] = random(random, 0f, windowWidth);
+				y[a] = random(random, 0f, windowHeight);
+				randomMotion(random, a);
+			}
+		}
+	}
+
+	private void randomMotion(SplittableRandom random, int index) {
+		float speed = random(random, 1.0f, 3.0f);
+		float rngAngle = random(random, 0.0f, 360.0f);
+		float rad = (float) Math.toRadians(rngAngle);
+		vx[index] = (float) (Math.cos(rad) * speed);
+		vy[index] = (float) (Math.sin(rad) * speed);
+	}
+
+	private static float random(SplittableRandom random, float min, float max) {
+		return min + random.nextFloat() * (max - min);
+	}
+
+	/**
+	 * Moves every bullet by its motion, bullets which left [-size, window + size] are moved
+	 * into the center of the window with new random motion.
+	 * Positions are written as vec2 into native memory at address (count * 8 bytes), skipped if address is 0
+	 */
+	public void update(float windowWidth, float windowHeight, float sizeX, float sizeY, long address) {
+		for (int shard = 0; shard < shardRandoms.length; ++shard) {
+			updateShard(shard, windowWidth, windowHeight, sizeX, sizeY, address);
+		}
+	}
+
+	/**
+	 * Same as update, shards are updated in parallel on pool, every shard writes only its own slice of positions
+	 */
+	public void updateParallel(ForkJoinPool pool, float windowWidth, float windowHeight, float sizeX, float sizeY, long address) {
+		pool.submit(() -> IntStream.range(0, shardRandoms.length)
+				.parallel()
+				.forEach(shard -> updateShard(shard, windowWidth, windowHeight, sizeX, sizeY, address))
+		).join();
+	}
+
+	private void updateShard(int shard, float windowWidth, float windowHeight, float sizeX, float sizeY, long address) {
+		final int from = shard * SHARD_SIZE;
+		final int to = Math.min(count, from + SHARD_SIZE);
+		move(from, to);
+		respawn(shardRandoms[shard], from, to, -sizeX, -sizeY, windowWidth + sizeX, windowHeight + sizeY, windowWidth / 2f, windowHeight / 2f);
+		if (address != 0) {
+			writePositions(from, to, address);
+		}
+	}
+
+	private void move(int from, int to) {
+		final float[] x = this.x;
+		final float[] y = this.y;
+		final float[] vx = this.vx;
+		final float[] vy = this.vy;
+		for (int a = from; a < to; ++a) {
+			x[a] += vx[a];
+			y[a] += vy[a];
+		}
+	}
+
+	private void respawn(SplittableRandom random, int from, int to, float minX, float minY, float maxX, float maxY, float centerX, float centerY) {
+		for (int a = from; a < to; ++a) {
+			final float px = x[a];
+			final float py = y[a];
+			if (px < minX || px > maxX || py < minY || py > maxY) {
+				x[a] = centerX;
+				y[a] = centerY;
+				randomMotion(random, a);
+			}
+		}
+	}
+
+	/**
+	 * Writes positions of all bullets as vec2 into native memory at address without moving them
+	 */
+	public void writePositions(long address) {
+		writePositions(0, count, address);
+	}
+
+	private void writePositions(int from, int to, long address) {
+		final float[] x = this.x;
+		final float[] y = this.y;
+		address += (long) from * 8;
+		for (int a = from; a < to; ++a) {
+			memPutFloat(address, x[a]);
+			memPutFloat(address + 4, y[a]);
+			address += 8;
+		}
+	}
+}
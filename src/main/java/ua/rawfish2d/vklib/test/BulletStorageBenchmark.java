@@ -0,0 +1,64 @@
+package ua.rawfish2d.vklib.test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Measures CPU bullet simulation tick (BulletStorage.update with positions written into native staging memory)
+ * without window and Vulkan, sequential and parallel. Also checks that both produce the same bullets. Run it with main()
+ */
+public class BulletStorageBenchmark {
+	private static final int[] BULLET_COUNTS = {20_000, 1_000_000, 10_000_000};
+	private static final int WARMUP_TICKS = 200;
+	private static final int MEASURED_TICKS = 200;
+
+	public static void main(String[] args) {
+		for (int bulletsCount : BULLET_COUNTS) {
+			final BulletStorage sequential = run(bulletsCount, false);
+			final BulletStorage parallel = run(bulletsCount, true);
+			final boolean same = Arrays.equals(sequential.x, parallel.x) && Arrays.equals(sequential.y, parallel.y) &&
+					Arrays.equals(sequential.vx, parallel.vx) && Arrays.equals(sequential.vy, parallel.vy);
+			System.out.printf("bullets: %d | sequential and parallel results are %s\n", bulletsCount, same ? "the same" : "DIFFERENT");
+		}
+	}
+
+	private static BulletStorage run(int bulletsCount, boolean parallel) {
+		final BulletStorage bullets = new BulletStorage(bulletsCount);
+		bullets.randomize(0, BulletSceneConfig.windowWidth, BulletSceneConfig.windowHeight);
+		final ByteBuffer staging = memAlloc(bulletsCount * 2 * Float.BYTES);
+		final long address = memAddress(staging);
+
+		for (int a = 0; a < WARMUP_TICKS; ++a) {
+			tick(bullets, address, parallel);
+		}
+		long minTime = Long.MAX_VALUE;
+		long totalTime = 0;
+		for (int a = 0; a < MEASURED_TICKS; ++a) {
+			final long startTime = System.nanoTime();
+			tick(bullets, address, parallel);
+			final long time = System.nanoTime() - startTime;
+			minTime = Math.min(minTime, time);
+			totalTime += time;
+		}
+		memFree(staging);
+
+		final double avgTime = totalTime / (double) MEASURED_TICKS;
+		System.out.printf("bullets: %d | %s | avg: %.3f ms | min: %.3f ms | %.2f ns per bullet\n",
+				bulletsCount, parallel ? "parallel (" + ForkJoinPool.commonPool().getParallelism() + " threads)" : "sequential",
+				avgTime / 1_000_000.0, minTime / 1_000_000.0, avgTime / bulletsCount);
+		return bullets;
+	}
+
+	private static void tick(BulletStorage bullets, long address, boolean parallel) {
+		final float windowWidth = BulletSceneConfig.windowWidth;
+		final float windowHeight = BulletSceneConfig.windowHeight;
+		if (parallel) {
+			bullets.updateParallel(ForkJoinPool.commonPool(), windowWidth, windowHeight, BulletSceneConfig.size.x, BulletSceneConfig.size.y, address);
+		} else {
+			bullets.update(windowWidth, windowHeight, BulletSceneConfig.size.x, BulletSceneConfig.size.y, address);
+		}
+	}
+}
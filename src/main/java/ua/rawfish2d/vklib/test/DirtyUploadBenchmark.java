@@ -0,0 +1,71 @@
+package ua.rawfish2d.vklib.test;
+
+import org.lwjgl.vulkan.VkBufferCopy;
+import ua.rawfish2d.vklib.DirtyRanges;
+import ua.rawfish2d.vklib.StagingArena;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Compares sparse (dirty ranges) and full upload of a buffer without window and Vulkan:
+ * time of markDirty calls plus packing of dirty ranges into staging memory with copy regions
+ * (same code as VkBuffer.uploadDirtyRanges uses), and bytes which would be transferred. Run it with main()
+ */
+public class DirtyUploadBenchmark {
+	private static final int BUFFER_SIZE = 16 * 1024 * 1024;
+	// vec2 per object, like bullet positions
+	private static final int ELEMENT_SIZE = 8;
+	private static final int[] DIRTY_ELEMENT_COUNTS = {10, 100, 1_000, 10_000, 100_000};
+	private static final int WARMUP_ITERATIONS = 200;
+	private static final int MEASURED_ITERATIONS = 200;
+
+	public static void main(String[] args) {
+		final ByteBuffer src = memCalloc(BUFFER_SIZE);
+		final ByteBuffer staging = memAlloc(BUFFER_SIZE);
+		final VkBufferCopy.Buffer copyRegions = VkBufferCopy.calloc(DirtyRanges.MAX_RANGES);
+		final SplittableRandom random = new SplittableRandom(0);
+		final int elementCount = BUFFER_SIZE / ELEMENT_SIZE;
+
+		for (int dirtyElements : DIRTY_ELEMENT_COUNTS) {
+			// random elements in random order, like objects changed by game logic
+			final int[] offsets = new int[dirtyElements];
+			for (int a = 0; a < dirtyElements; ++a) {
+				offsets[a] = random.nextInt(elementCount) * ELEMENT_SIZE;
+			}
+			run("sparse " + dirtyElements + " elements", src, staging, copyRegions, offsets, ELEMENT_SIZE);
+		}
+		run("full", src, staging, copyRegions, new int[]{0}, BUFFER_SIZE);
+
+		copyRegions.free();
+		memFree(staging);
+		memFree(src);
+	}
+
+	private static void run(String name, ByteBuffer src, ByteBuffer staging, VkBufferCopy.Buffer copyRegions, int[] offsets, int size) {
+		final DirtyRanges dirtyRanges = new DirtyRanges();
+		final long stagingPointer = memAddress(staging);
+		for (int a = 0; a < WARMUP_ITERATIONS; ++a) {
+			upload(src, dirtyRanges, stagingPointer, copyRegions, offsets, size);
+		}
+		long totalTime = 0;
+		for (int a = 0; a < MEASURED_ITERATIONS; ++a) {
+			final long startTime = System.nanoTime();
+			upload(src, dirtyRanges, stagingPointer, copyRegions, offsets, size);
+			totalTime += System.nanoTime() - startTime;
+		}
+		final int bytes = dirtyRanges.getTotalBytes();
+		System.out.printf("%-24s | regions: %2d | transferred: %8d bytes (%6.2f%% of buffer) | cpu: %.3f ms\n",
+				name, dirtyRanges.getCount(), bytes, bytes * 100.0 / BUFFER_SIZE, totalTime / (double) MEASURED_ITERATIONS / 1_000_000.0);
+	}
+
+	private static void upload(ByteBuffer src, DirtyRanges dirtyRanges, long stagingPointer, VkBufferCopy.Buffer copyRegions, int[] offsets, int size) {
+		dirtyRanges.clear();
+		for (int offset : offsets) {
+			dirtyRanges.add(offset, size);
+		}
+		StagingArena.packDirtyRanges(src, dirtyRanges, stagingPointer, 0, copyRegions);
+	}
+}
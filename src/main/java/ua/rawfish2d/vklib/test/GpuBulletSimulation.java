@@ -0,0 +1,203 @@
+package ua.rawfish2d.vklib.test;
+
+import org.joml.Vector2f;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkQueryPoolCreateInfo;
+import ua.rawfish2d.vklib.UploadService;
+import ua.rawfish2d.vklib.VkBuffer;
+import ua.rawfish2d.vklib.init.VkComputePipeline;
+import ua.rawfish2d.vklib.init.VkDeviceInstance;
+import ua.rawfish2d.vklib.init.descriptor.DescriptorSetUpdate;
+import ua.rawfish2d.vklib.init.descriptor.VkDescriptorSetLayout;
+import ua.rawfish2d.vklib.utils.VkHelper;
+import ua.rawfish2d.vklib.utils.VkTranslate;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.List;
+
+import static org.lwjgl.system.MemoryUtil.memAlloc;
+import static org.lwjgl.system.MemoryUtil.memFree;
+import static org.lwjgl.vulkan.VK13.*;
+
+/**
+ * Bullet simulation on GPU. State of bullets (pos, motion) lives in two device local SSBOs which are swapped every tick,
+ * compute shader advances and respawns bullets and writes positions into SSBO which is used for rendering,
+ * so nothing is transferred from host after upload().
+ * Time of every dispatch is measured with timestamp queries and added to SimulationTimings.
+ */
+public class GpuBulletSimulation {
+	private static final String SHADER_PATH = "assets/shaders/bullets/simulate.comp";
+	private static final int WORKGROUP_SIZE = 64;
+	// vec2 pos, vec2 motion
+	private static final int STATE_STRIDE = 4 * Float.BYTES;
+	// vec2 windowSize, vec2 bulletSize, uint bulletCount, uint tick
+	private static final int PUSH_CONSTANTS_SIZE = 4 * Float.BYTES + 2 * Integer.BYTES;
+	private final VkDeviceInstance vkDeviceInstance;
+	private final int bulletsCount;
+	private final VkBuffer positions;
+	private final SimulationTimings timings;
+	private final VkComputePipeline computePipeline;
+	private final VkBuffer[] stateBuffers = new VkBuffer[2];
+	// descriptor set i reads stateBuffers[i] and writes stateBuffers[1 - i]
+	private final long[] vkDescriptorSets = new long[2];
+	private int current = 0;
+	private int tick = 0;
+	// two timestamps per tick, slots are reused after frames in flight count ticks, so they are finished by then
+	private final long vkQueryPool;
+	private final int querySlots;
+	private final boolean[] querySlotUsed;
+	private final float timestampPeriod;
+	private int querySlot = 0;
+
+	/**
+	 * @param positions SSBO with vec2 position of every bullet, it's written by every tick()
+	 */
+	public GpuBulletSimulation(VkDeviceInstance vkDeviceInstance, VkBuffer positions, int bulletsCount, SimulationTimings timings) {
+		this.vkDeviceInstance = vkDeviceInstance;
+		this.positions = positions;
+		this.timings = timings;
+		this.bulletsCount = bulletsCount;
+
+		final VkDescriptorSetLayout descriptorSetLayout = new VkDescriptorSetLayout();
+		descriptorSetLayout.addLayout()
+				.add(0, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_COMPUTE_BIT)
+				.add(1, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_COMPUTE_BIT)
+				.add(2, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_COMPUTE_BIT);
+		descriptorSetLayout.createDescriptorSetLayout(vkDeviceInstance);
+		computePipeline = new VkComputePipeline()
+				.setComputeShader(SHADER_PATH)
+				.setDescriptorSetLayout(descriptorSetLayout)
+				.addPushConstantRange(0, PUSH_CONSTANTS_SIZE)
+				.workgroupSize(WORKGROUP_SIZE, 1, 1)
+				.maxDescriptorSets(2)
+				.create(vkDeviceInstance);
+
+		for (int a = 0; a < 2; ++a) {
+			stateBuffers[a] = new VkBuffer();
+			stateBuffers[a].createBuffer(vkDeviceInstance, bulletsCount * STATE_STRIDE, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT);
+			stateBuffers[a].allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+		}
+		for (int a = 0; a < 2; ++a) {
+			vkDescriptorSets[a] = computePipeline.allocateDescriptorSet(vkDeviceInstance, List.of(
+					DescriptorSetUpdate.buffer(0, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, stateBuffers[a].getHandle(), 0, VK_WHOLE_SIZE),
+					DescriptorSetUpdate.buffer(1, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, stateBuffers[1 - a].getHandle(), 0, VK_WHOLE_SIZE),
+					DescriptorSetUpdate.buffer(2, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, positions.getHandle(), 0, (long) bulletsCount * 2 * Float.BYTES)));
+		}
+
+		querySlots = vkDeviceInstance.getFrameInFlights().size();
+		querySlotUsed = new boolean[querySlots];
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkPhysicalDeviceProperties deviceProperties = VkPhysicalDeviceProperties.malloc(stack);
+			vkGetPhysicalDeviceProperties(vkDeviceInstance.getVkPhysicalDevice(), deviceProperties);
+			timestampPeriod = deviceProperties.limits().timestampPeriod();
+			if (!deviceProperties.limits().timestampComputeAndGraphics()) {
+				System.out.printf("🔷 Timestamp queries are not supported, GPU time of bullet simulation is not measured\n");
+				vkQueryPool = VK_NULL_HANDLE;
+				return;
+			}
+			final VkQueryPoolCreateInfo queryPoolCreateInfo = VkQueryPoolCreateInfo.calloc(stack)
+					.sType$Default()
+					.queryType(VK_QUERY_TYPE_TIMESTAMP)
+					.queryCount(querySlots * 2);
+			final LongBuffer pQueryPool = stack.mallocLong(1);
+			final int result = vkCreateQueryPool(vkDeviceInstance.getVkLogicalDevice(), queryPoolCreateInfo, null, pQueryPool);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create query pool! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			vkQueryPool = pQueryPool.get(0);
+		}
+	}
+
+	/**
+	 * Uploads current state of CPU bullets, simulation continues from it on next tick()
+	 */
+	public void upload(BulletStorage bullets, UploadService uploadService) {
+		// frames in flight can still read and write state buffers, wait only for the last submitted frame
+		vkDeviceInstance.waitForFrame(vkDeviceInstance.getCurrentFrameNumber() - 1);
+		final int size = bullets.count * STATE_STRIDE;
+		final ByteBuffer state = memAlloc(size);
+		int pos = 0;
+		for (int a = 0; a < bullets.count; ++a) {
+			state.putFloat(pos, bullets.x[a])
+					.putFloat(pos + 4, bullets.y[a])
+					.putFloat(pos + 8, bullets.vx[a])
+					.putFloat(pos + 12, bullets.vy[a]);
+			pos += STATE_STRIDE;
+		}
+		// upload service copies data right away
+		uploadService.uploadBuffer(stateBuffers[current].getHandle(), state, 0, size, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT, VK_ACCESS_2_SHADER_STORAGE_READ_BIT);
+		memFree(state);
+	}
+
+	/**
+	 * Records one simulation step, must be recorded outside of rendering and before culling of positions
+	 */
+	public void tick(VkCommandBuffer commandBuffer) {
+		// previous tick wrote state which is read now, previous frame can still read positions in vertex shader
+		VkHelper.memoryBarrier2(commandBuffer,
+				VK_ACCESS_2_SHADER_STORAGE_WRITE_BIT, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT | VK_PIPELINE_STAGE_2_VERTEX_SHADER_BIT,
+				VK_ACCESS_2_SHADER_STORAGE_READ_BIT | VK_ACCESS_2_SHADER_STORAGE_WRITE_BIT, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT);
+
+		if (vkQueryPool != VK_NULL_HANDLE) {
+			readQueryResults(querySlot);
+			vkCmdResetQueryPool(commandBuffer, vkQueryPool, querySlot * 2, 2);
+			vkCmdWriteTimestamp(commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, vkQueryPool, querySlot * 2);
+		}
+
+		computePipeline.bindPipeline(commandBuffer);
+		computePipeline.bindDescriptorSet(commandBuffer, vkDescriptorSets[current]);
+		final Vector2f size = BulletSceneConfig.size;
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final ByteBuffer pushConstants = stack.malloc(PUSH_CONSTANTS_SIZE);
+			pushConstants.putFloat(0, BulletSceneConfig.windowWidth).putFloat(4, BulletSceneConfig.windowHeight)
+					.putFloat(8, size.x).putFloat(12, size.y)
+					.putInt(16, bulletsCount)
+					.putInt(20, tick);
+			computePipeline.pushConstants(commandBuffer, 0, pushConstants);
+		}
+		computePipeline.dispatchThreads(commandBuffer, bulletsCount);
+
+		if (vkQueryPool != VK_NULL_HANDLE) {
+			vkCmdWriteTimestamp(commandBuffer, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, vkQueryPool, querySlot * 2 + 1);
+			querySlotUsed[querySlot] = true;
+			querySlot = (querySlot + 1) % querySlots;
+		}
+
+		// positions are read by culling compute pass and by vertex shader
+		VkHelper.bufferMemoryBarrier2(commandBuffer,
+				positions.getHandle(), 0, positions.getBufferSize(),
+				VK_ACCESS_2_SHADER_STORAGE_WRITE_BIT, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT,
+				VK_ACCESS_2_SHADER_STORAGE_READ_BIT, VK_PIPELINE_STAGE_2_COMPUTE_SHADER_BIT | VK_PIPELINE_STAGE_2_VERTEX_SHADER_BIT);
+
+		current = 1 - current;
+		tick++;
+	}
+
+	private void readQueryResults(int slot) {
+		if (!querySlotUsed[slot]) {
+			return;
+		}
+		querySlotUsed[slot] = false;
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final LongBuffer timestamps = stack.mallocLong(2);
+			final int result = vkGetQueryPoolResults(vkDeviceInstance.getVkLogicalDevice(), vkQueryPool, slot * 2, 2,
+					timestamps, Long.BYTES, VK_QUERY_RESULT_64_BIT);
+			if (result == VK_SUCCESS) {
+				timings.addGpuTime((long) ((timestamps.get(1) - timestamps.get(0)) * (double) timestampPeriod));
+			}
+		}
+	}
+
+	public void destroy() {
+		if (vkQueryPool != VK_NULL_HANDLE) {
+			vkDestroyQueryPool(vkDeviceInstance.getVkLogicalDevice(), vkQueryPool, null);
+		}
+		computePipeline.destroy(vkDeviceInstance);
+		for (VkBuffer stateBuffer : stateBuffers) {
+			stateBuffer.destroyAndFreeMemory(vkDeviceInstance);
+		}
+	}
+}
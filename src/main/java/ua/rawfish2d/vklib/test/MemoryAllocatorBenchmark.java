@@ -0,0 +1,223 @@
+package ua.rawfish2d.vklib.test;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+import ua.rawfish2d.vklib.WindowVK;
+import ua.rawfish2d.vklib.init.VkDeviceInstance;
+import ua.rawfish2d.vklib.memory.BlockMemoryAllocator;
+import ua.rawfish2d.vklib.memory.MemoryAllocation;
+import ua.rawfish2d.vklib.memory.MemoryAllocator;
+import ua.rawfish2d.vklib.memory.VmaMemoryAllocator;
+import ua.rawfish2d.vklib.utils.VkHelper;
+import ua.rawfish2d.vklib.utils.VkTranslate;
+
+import java.nio.LongBuffer;
+import java.util.SplittableRandom;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Measures how fast buffers and images are created (with memory allocation and binding) and destroyed
+ * through BlockMemoryAllocator, VmaMemoryAllocator and raw vkAllocateMemory per resource.
+ * All backends get the same random sizes. Run it with main(), needs Vulkan device (window is hidden)
+ */
+public class MemoryAllocatorBenchmark {
+	private static final int BUFFER_COUNT = 2000;
+	private static final int IMAGE_COUNT = 500;
+	// first round is warmup
+	private static final int ROUNDS = 6;
+	// allocations of VkDeviceInstance itself (staging, swap chain etc) which count into maxMemoryAllocationCount
+	private static final int RESERVED_ALLOCATIONS = 256;
+
+	public static void main(String[] args) {
+		final WindowVK windowVK = new WindowVK();
+		windowVK.init();
+		windowVK.setVisible(false);
+		windowVK.create(640, 480, "Memory allocator benchmark");
+		final VkDeviceInstance vkDeviceInstance = new VkDeviceInstance()
+				.applicationName("Memory allocator benchmark")
+				.apiVersion(VK13.VK_API_VERSION_1_3)
+				.create(windowVK);
+		final VkDevice vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
+
+		// raw backend needs one VkDeviceMemory per resource, they all must fit into the device limit
+		int bufferCount = BUFFER_COUNT;
+		int imageCount = IMAGE_COUNT;
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkPhysicalDeviceProperties deviceProperties = VkPhysicalDeviceProperties.malloc(stack);
+			vkGetPhysicalDeviceProperties(vkDeviceInstance.getVkPhysicalDevice(), deviceProperties);
+			final int maxAllocations = deviceProperties.limits().maxMemoryAllocationCount() - RESERVED_ALLOCATIONS;
+			if (bufferCount + imageCount > maxAllocations) {
+				bufferCount = maxAllocations * BUFFER_COUNT / (BUFFER_COUNT + IMAGE_COUNT);
+				imageCount = maxAllocations - bufferCount;
+			}
+		}
+
+		final SplittableRandom random = new SplittableRandom(0);
+		final int[] bufferSizes = new int[bufferCount];
+		for (int a = 0; a < bufferCount; ++a) {
+			bufferSizes[a] = 256 + random.nextInt(64 * 1024);
+		}
+		final int[] imageSizes = new int[imageCount];
+		for (int a = 0; a < imageCount; ++a) {
+			imageSizes[a] = 64 << random.nextInt(4);
+		}
+		System.out.printf("Memory allocator benchmark | buffers: %d | images: %d | rounds: %d\n", bufferCount, imageCount, ROUNDS - 1);
+
+		final MemoryAllocator blockAllocator = new BlockMemoryAllocator(vkLogicalDevice, vkDeviceInstance.getVkPhysicalDevice(), BlockMemoryAllocator.DEFAULT_BLOCK_SIZE);
+		run("BLOCK", vkDeviceInstance, blockAllocator, bufferSizes, imageSizes);
+		blockAllocator.destroy();
+
+		final MemoryAllocator vmaAllocator = new VmaMemoryAllocator(vkDeviceInstance.getVkInstance(), vkDeviceInstance.getVkPhysicalDevice(), vkLogicalDevice, vkDeviceInstance.getVulkanVersion());
+		run("VMA", vkDeviceInstance, vmaAllocator, bufferSizes, imageSizes);
+		vmaAllocator.destroy();
+
+		run("vkAllocateMemory", vkDeviceInstance, null, bufferSizes, imageSizes);
+
+		vkDeviceInstance.destroy();
+		windowVK.terminate();
+	}
+
+	/**
+	 * @param memoryAllocator null for raw vkAllocateMemory per resource
+	 */
+	private static void run(String name, VkDeviceInstance vkDeviceInstance, MemoryAllocator memoryAllocator, int[] bufferSizes, int[] imageSizes) {
+		final VkDevice vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
+		final long[] buffers = new long[bufferSizes.length];
+		final long[] images = new long[imageSizes.length];
+		final MemoryAllocation[] bufferAllocations = new MemoryAllocation[bufferSizes.length];
+		final MemoryAllocation[] imageAllocations = new MemoryAllocation[imageSizes.length];
+		// raw backend only
+		final long[] bufferMemories = new long[bufferSizes.length];
+		final long[] imageMemories = new long[imageSizes.length];
+		long bufferCreateTime = 0;
+		long bufferDestroyTime = 0;
+		long imageCreateTime = 0;
+		long imageDestroyTime = 0;
+
+		for (int round = 0; round < ROUNDS; ++round) {
+			long startTime = System.nanoTime();
+			for (int a = 0; a < bufferSizes.length; ++a) {
+				buffers[a] = createBuffer(vkLogicalDevice, bufferSizes[a]);
+				if (memoryAllocator != null) {
+					bufferAllocations[a] = memoryAllocator.allocateForBuffer(buffers[a], VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+				} else {
+					bufferMemories[a] = allocateRaw(vkDeviceInstance, buffers[a], true);
+				}
+			}
+			final long bufferCreated = System.nanoTime();
+			for (int a = 0; a < imageSizes.length; ++a) {
+				images[a] = createImage(vkLogicalDevice, imageSizes[a]);
+				if (memoryAllocator != null) {
+					imageAllocations[a] = memoryAllocator.allocateForImage(images[a], VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+				} else {
+					imageMemories[a] = allocateRaw(vkDeviceInstance, images[a], false);
+				}
+			}
+			final long imageCreated = System.nanoTime();
+			for (int a = 0; a < bufferSizes.length; ++a) {
+				vkDestroyBuffer(vkLogicalDevice, buffers[a], null);
+				if (memoryAllocator != null) {
+					memoryAllocator.free(bufferAllocations[a]);
+				} else {
+					vkFreeMemory(vkLogicalDevice, bufferMemories[a], null);
+				}
+			}
+			final long bufferDestroyed = System.nanoTime();
+			for (int a = 0; a < imageSizes.length; ++a) {
+				vkDestroyImage(vkLogicalDevice, images[a], null);
+				if (memoryAllocator != null) {
+					memoryAllocator.free(imageAllocations[a]);
+				} else {
+					vkFreeMemory(vkLogicalDevice, imageMemories[a], null);
+				}
+			}
+			final long imageDestroyed = System.nanoTime();
+
+			if (round > 0) {
+				bufferCreateTime += bufferCreated - startTime;
+				imageCreateTime += imageCreated - bufferCreated;
+				bufferDestroyTime += bufferDestroyed - imageCreated;
+				imageDestroyTime += imageDestroyed - bufferDestroyed;
+			}
+		}
+
+		final int rounds = ROUNDS - 1;
+		System.out.printf("%-16s | buffers: create %9.0f/s destroy %9.0f/s | images: create %9.0f/s destroy %9.0f/s\n", name,
+				perSecond(bufferSizes.length * rounds, bufferCreateTime), perSecond(bufferSizes.length * rounds, bufferDestroyTime),
+				perSecond(imageSizes.length * rounds, imageCreateTime), perSecond(imageSizes.length * rounds, imageDestroyTime));
+	}
+
+	private static double perSecond(int count, long nanos) {
+		return count / (nanos / 1_000_000_000.0);
+	}
+
+	private static long createBuffer(VkDevice vkLogicalDevice, int size) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkBufferCreateInfo bufferInfo = VkBufferCreateInfo.calloc(stack)
+					.sType$Default()
+					.size(size)
+					.usage(VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT)
+					.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+			final LongBuffer pBuffer = stack.mallocLong(1);
+			final int result = vkCreateBuffer(vkLogicalDevice, bufferInfo, null, pBuffer);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create buffer! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			return pBuffer.get(0);
+		}
+	}
+
+	private static long createImage(VkDevice vkLogicalDevice, int size) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkImageCreateInfo imageInfo = VkImageCreateInfo.calloc(stack)
+					.sType$Default()
+					.imageType(VK_IMAGE_TYPE_2D)
+					.mipLevels(1)
+					.arrayLayers(1)
+					.format(VK_FORMAT_R8G8B8A8_UNORM)
+					.tiling(VK_IMAGE_TILING_OPTIMAL)
+					.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED)
+					.usage(VK_IMAGE_USAGE_TRANSFER_DST_BIT | VK_IMAGE_USAGE_SAMPLED_BIT)
+					.sharingMode(VK_SHARING_MODE_EXCLUSIVE)
+					.samples(VK_SAMPLE_COUNT_1_BIT);
+			imageInfo.extent().set(size, size, 1);
+			final LongBuffer pImage = stack.mallocLong(1);
+			final int result = vkCreateImage(vkLogicalDevice, imageInfo, null, pImage);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create an image! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			return pImage.get(0);
+		}
+	}
+
+	// one VkDeviceMemory for one resource, like it was done before memory allocators
+	private static long allocateRaw(VkDeviceInstance vkDeviceInstance, long handle, boolean buffer) {
+		final VkDevice vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkMemoryRequirements memRequirements = VkMemoryRequirements.malloc(stack);
+			if (buffer) {
+				vkGetBufferMemoryRequirements(vkLogicalDevice, handle, memRequirements);
+			} else {
+				vkGetImageMemoryRequirements(vkLogicalDevice, handle, memRequirements);
+			}
+			final VkMemoryAllocateInfo allocInfo = VkMemoryAllocateInfo.calloc(stack)
+					.sType$Default()
+					.allocationSize(memRequirements.size())
+					.memoryTypeIndex(VkHelper.findMemoryType(vkDeviceInstance.getVkPhysicalDevice(), memRequirements.memoryTypeBits(), VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, stack));
+			final LongBuffer pMemory = stack.mallocLong(1);
+			int result = vkAllocateMemory(vkLogicalDevice, allocInfo, null, pMemory);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to allocate memory! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			final long vkDeviceMemory = pMemory.get(0);
+			result = buffer ?
+					vkBindBufferMemory(vkLogicalDevice, handle, vkDeviceMemory, 0) :
+					vkBindImageMemory(vkLogicalDevice, handle, vkDeviceMemory, 0);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to bind memory! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			return vkDeviceMemory;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package ua.rawfish2d.vklib.test;
+
+import org.lwjgl.vulkan.VK13;
+import ua.rawfish2d.vklib.GpuCuller;
+import ua.rawfish2d.vklib.VkBuffer;
+import ua.rawfish2d.vklib.WindowVK;
+import ua.rawfish2d.vklib.init.VkDeviceInstance;
+import ua.rawfish2d.vklib.init.VkGraphicsPipeline;
+import ua.rawfish2d.vklib.utils.SpirvCache;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Measures how long it takes to build demo pipelines (VKLIB_TEST graphics pipeline, GpuCuller and GpuBulletSimulation)
+ * with SpirvCache disabled (every shader is compiled by shaderc) and enabled (SPIR-V is loaded from disk),
+ * then with SpirvCache enabled and pipelineCacheFile(null) against pipeline cache saved into pipeline_cache.bin.
+ * Every measurement uses new VkDeviceInstance, pipeline cache file is saved when it's destroyed.
+ * Run it with main(), needs Vulkan device (window is hidden)
+ */
+public class PipelineStartupBenchmark {
+	private static final int BULLETS_COUNT = 20000;
+	private static final String PIPELINE_CACHE_FILE = "pipeline_cache.bin";
+
+	public static void main(String[] args) {
+		final WindowVK windowVK = new WindowVK();
+		windowVK.init();
+		windowVK.setVisible(false);
+		windowVK.create(1024, 768, "Pipeline startup benchmark");
+
+		SpirvCache.setEnabled(false);
+		final double coldTime = measure(windowVK, null);
+		SpirvCache.setEnabled(true);
+		// fills SPIR-V cache if it's empty
+		measure(windowVK, null);
+		final double warmTime = measure(windowVK, null);
+
+		// saves pipeline_cache.bin for this device and driver
+		measure(windowVK, PIPELINE_CACHE_FILE);
+		final double pipelineCacheTime = measure(windowVK, PIPELINE_CACHE_FILE);
+
+		System.out.printf("Pipeline startup | SPIR-V cache disabled: %.3f ms | SPIR-V cache enabled: %.3f ms\n", coldTime, warmTime);
+		System.out.printf("Pipeline startup | pipelineCacheFile(null): %.3f ms | %s: %.3f ms\n", warmTime, PIPELINE_CACHE_FILE, pipelineCacheTime);
+		windowVK.terminate();
+	}
+
+	/**
+	 * @param pipelineCacheFile null to start with empty pipeline cache
+	 * @return time of building all demo pipelines in ms
+	 */
+	private static double measure(WindowVK windowVK, String pipelineCacheFile) {
+		final VkDeviceInstance vkDeviceInstance = new VkDeviceInstance()
+				.applicationName("Pipeline startup benchmark")
+				.apiVersion(VK13.VK_API_VERSION_1_3)
+				.pipelineCacheFile(pipelineCacheFile)
+				.create(windowVK);
+		final VkBuffer positions = new VkBuffer();
+		positions.createBuffer(vkDeviceInstance, BULLETS_COUNT * 2 * Float.BYTES, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT);
+		positions.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+
+		final long startTime = System.nanoTime();
+		final VkGraphicsPipeline vkGraphicsPipeline = VKLIB_TEST.createBulletPipeline(vkDeviceInstance, VKLIB_TEST.getVertexAttrib(BULLETS_COUNT));
+		final GpuCuller gpuCuller = new GpuCuller(vkDeviceInstance, positions, BULLETS_COUNT, 10);
+		final GpuBulletSimulation gpuBulletSimulation = new GpuBulletSimulation(vkDeviceInstance, positions, BULLETS_COUNT, new SimulationTimings());
+		final double time = (System.nanoTime() - startTime) / 1_000_000.0;
+
+		gpuBulletSimulation.destroy();
+		gpuCuller.destroy();
+		vkGraphicsPipeline.destroy(vkDeviceInstance);
+		positions.destroyAndFreeMemory(vkDeviceInstance);
+		vkDeviceInstance.destroy();
+		return time;
+	}
+}
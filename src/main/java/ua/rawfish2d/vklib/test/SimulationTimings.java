@@ -0,0 +1,59 @@
+package ua.rawfish2d.vklib.test;
+
+import ua.rawfish2d.vklib.utils.TimeHelper;
+
+/**
+ * Average time of bullet simulation tick, printed once per second to compare CPU and GPU simulation.
+ * Host time is time spent on render thread (simulation, staging writes and recording),
+ * GPU time is measured with timestamp queries (compute dispatch only).
+ */
+public class SimulationTimings {
+	private final TimeHelper printTimer = new TimeHelper();
+	private long hostTimeNanos = 0;
+	private int hostSamples = 0;
+	private long gpuTimeNanos = 0;
+	private int gpuSamples = 0;
+
+	public void addHostTime(long nanos) {
+		hostTimeNanos += nanos;
+		hostSamples++;
+	}
+
+	public void addGpuTime(long nanos) {
+		gpuTimeNanos += nanos;
+		gpuSamples++;
+	}
+
+	public void print(String mode, int bulletsCount) {
+		if (!printTimer.hasReachedMilli(1000)) {
+			return;
+		}
+		printTimer.reset();
+		printAndReset(mode, bulletsCount);
+	}
+
+	/**
+	 * Prints averages of ticks added since last reset and resets them
+	 */
+	public void printAndReset(String mode, int bulletsCount) {
+		if (hostSamples == 0) {
+			return;
+		}
+		if (gpuSamples == 0) {
+			System.out.printf("[%s simulation] bullets: %d | ticks: %d | host: %.3f ms\n",
+					mode, bulletsCount, hostSamples, hostTimeNanos / (double) hostSamples / 1_000_000.0);
+		} else {
+			System.out.printf("[%s simulation] bullets: %d | ticks: %d | host: %.3f ms | gpu: %.3f ms\n",
+					mode, bulletsCount, hostSamples, hostTimeNanos / (double) hostSamples / 1_000_000.0,
+					gpuTimeNanos / (double) gpuSamples / 1_000_000.0);
+		}
+		reset();
+	}
+
+	public void reset() {
+		hostTimeNanos = 0;
+		hostSamples = 0;
+		gpuTimeNanos = 0;
+		gpuSamples = 0;
+	}
+}
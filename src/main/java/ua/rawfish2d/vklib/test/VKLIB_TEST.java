@@ -1,26 +1,24 @@
 package ua.rawfish2d.vklib.test;
 
+import org.joml.Vector2f;
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.glfw.GLFWFramebufferSizeCallback;
 import org.lwjgl.glfw.GLFWKeyCallback;
 import org.lwjgl.vulkan.VK13;
 import org.lwjgl.vulkan.VkCommandBuffer;
-import org.lwjgl.vulkan.VkDevice;
 import ua.rawfish2d.vklib.*;
 import ua.rawfish2d.vklib.attrib.AttribFormat;
 import ua.rawfish2d.vklib.attrib.BufferLayout;
 import ua.rawfish2d.vklib.init.VkDeviceInstance;
 import ua.rawfish2d.vklib.init.VkGraphicsPipeline;
 import ua.rawfish2d.vklib.init.data.FrameInFlight;
-import ua.rawfish2d.vklib.init.data.VkQueueInfo;
+import ua.rawfish2d.vklib.init.data.SpecializationConstants;
 import ua.rawfish2d.vklib.init.descriptor.DescriptorSetUpdate;
 import ua.rawfish2d.vklib.init.descriptor.SetLayoutBindingsBuffer;
 import ua.rawfish2d.vklib.init.descriptor.VkDescriptorSetLayout;
 import ua.rawfish2d.vklib.utils.FPSCounter;
 import ua.rawfish2d.vklib.utils.TimeHelper;
-import ua.rawfish2d.vklib.utils.VkHelper;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,8 +33,12 @@ public class VKLIB_TEST {
 	private VkBuffer vkSSBO;
 	private VkBuffer vkVertexBuffer;
 	private VkBuffer vkIndexBuffer;
-	private IndirectBuffer vkIndirectBuffer;
+	private GpuCuller gpuCuller;
 	private BulletScene bulletScene;
+	private GpuBulletSimulation gpuBulletSimulation;
+	private final SimulationTimings simulationTimings = new SimulationTimings();
+	// G key switches between CPU and GPU simulation
+	private boolean gpuSimulation = false;
 	private int bulletsCount = 20000;
 	private int screenWidth = 1024;
 	private int screenHeight = 768;
@@ -75,7 +77,24 @@ public class VKLIB_TEST {
 					}
 					if (key == GLFW.GLFW_KEY_R && inputTimer.hasReachedMilli(250)) {
 						inputTimer.reset();
-						bulletScene.resetBullets(vkVertexBuffer, vkIndexBuffer, vkSSBO);
+						bulletScene.resetBullets(vkVertexBuffer, vkIndexBuffer);
+						if (gpuSimulation) {
+							gpuBulletSimulation.upload(bulletScene.bullets, vkDeviceInstance.getUploadService());
+						}
+					}
+					if (key == GLFW.GLFW_KEY_P && inputTimer.hasReachedMilli(250)) {
+						inputTimer.reset();
+						bulletScene.parallel = !bulletScene.parallel;
+						System.out.printf("Parallel CPU simulation: %b\n", bulletScene.parallel);
+					}
+					if (key == GLFW.GLFW_KEY_G && inputTimer.hasReachedMilli(250)) {
+						inputTimer.reset();
+						gpuSimulation = !gpuSimulation;
+						if (gpuSimulation) {
+							// GPU continues from current CPU state, CPU continues from its own state when switched back
+							gpuBulletSimulation.upload(bulletScene.bullets, vkDeviceInstance.getUploadService());
+						}
+						System.out.printf("Simulation: %s\n", gpuSimulation ? "GPU" : "CPU");
 					}
 					if (key == GLFW.GLFW_KEY_Q && inputTimer.hasReachedMilli(250)) {
 						inputTimer.reset();
@@ -100,21 +119,21 @@ public class VKLIB_TEST {
 				}
 			});
 
-			Bullet.BulletSceneConfig.size.set(24f, 24f);
-			Bullet.BulletSceneConfig.windowWidth = screenWidth;
-			Bullet.BulletSceneConfig.windowHeight = screenHeight;
+			BulletSceneConfig.size.set(24f, 24f);
+			BulletSceneConfig.windowWidth = screenWidth;
+			BulletSceneConfig.windowHeight = screenHeight;
 
 			createVulkanContext();
 			createGraphicsPipeline();
 
 			loadTextures();
-			createUniformBuffers();
 			createSSBO();
+			gpuCuller = new GpuCuller(vkDeviceInstance, vkSSBO, bulletsCount, 10);
+			gpuBulletSimulation = new GpuBulletSimulation(vkDeviceInstance, vkSSBO, bulletsCount, simulationTimings);
 			updateDescriptors();
 
 			createVertexBuffer();
 			createIndexBuffer();
-			vkIndirectBuffer = IndirectBuffer.createIndirectBuffer(vkDeviceInstance, 10, true);
 			createBulletScene();
 
 			windowVK.showWindow();
@@ -125,7 +144,8 @@ public class VKLIB_TEST {
 
 			vkVertexBuffer.destroyAndFreeMemory(vkDeviceInstance);
 			vkIndexBuffer.destroyAndFreeMemory(vkDeviceInstance);
-			vkIndirectBuffer.destroy(vkDeviceInstance);
+			gpuCuller.destroy();
+			gpuBulletSimulation.destroy();
 			vkTexture.destroy(vkDeviceInstance);
 			vkSSBO.destroyAndFreeMemory(vkDeviceInstance);
 			vkGraphicsPipeline.destroy(vkDeviceInstance);
@@ -151,28 +171,24 @@ public class VKLIB_TEST {
 		System.out.printf("[updateWindowSize] %d %d\n", width, height);
 		this.screenWidth = width;
 		this.screenHeight = height;
-		Bullet.BulletSceneConfig.windowWidth = screenWidth;
-		Bullet.BulletSceneConfig.windowHeight = screenHeight;
+		BulletSceneConfig.windowWidth = screenWidth;
+		BulletSceneConfig.windowHeight = screenHeight;
 	}
 
 	private void createBulletScene() {
-		final VkDevice vkLogicalDevice = vkDeviceInstance.getVkLogicalDevice();
-		final VkQueueInfo vkTransferQueueInfo = vkDeviceInstance.getVkTransferQueue();
-		final long commandPool = VkHelper.createCommandPool(vkLogicalDevice, vkTransferQueueInfo.getIndexInfo().queueIndex());
-		final VkCommandBuffer commandBuffer = VkHelper.beginSingleTimeCommands(vkLogicalDevice, commandPool);
-		bulletScene = new BulletScene(vkDeviceInstance, bulletsCount, getVertexAttrib());
-		bulletScene.updateAll(vkVertexBuffer, vkIndexBuffer, vkSSBO);
-		bulletScene.uploadBuffers(vkVertexBuffer, vkIndexBuffer, commandBuffer);
-
-		vkIndirectBuffer.reset();
+		final UploadService uploadService = vkDeviceInstance.getUploadService();
+		bulletScene = new BulletScene(vkDeviceInstance, bulletsCount, getVertexAttrib(bulletsCount));
+		bulletScene.updateAll(vkVertexBuffer, vkIndexBuffer);
+		bulletScene.uploadBuffers(vkVertexBuffer, vkIndexBuffer, uploadService);
+
+		gpuCuller.reset();
 		for (int a = 0; a < 10; ++a) {
 			final int step = 2000;
-			vkIndirectBuffer.addIndirectCommand(vkDeviceInstance, 6, step, a * 6, 0, step * a);
+			gpuCuller.addDraw(6, step, a * 6, 0, step * a);
 		}
-		vkIndirectBuffer.upload(commandBuffer);
-
-		VkHelper.endSingleTimeCommands(vkLogicalDevice, commandPool, commandBuffer, vkTransferQueueInfo.getQueue());
-		vkDestroyCommandPool(vkLogicalDevice, commandPool, null);
+		gpuCuller.upload(uploadService);
+		// submitted without waiting, first frame waits for it on GPU
+		uploadService.flush();
 	}
 
 	private void createIndexBuffer() {
@@ -181,11 +197,11 @@ public class VKLIB_TEST {
 		System.out.printf("Creating index buffer:\n");
 		vkIndexBuffer.createBuffer(vkDeviceInstance, bulletsCount * 6 * 4, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_INDEX_BUFFER_BIT);
 		vkIndexBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
-		vkIndexBuffer.makeStagingBuffer(vkDeviceInstance, VK_BUFFER_USAGE_TRANSFER_SRC_BIT);
+		vkIndexBuffer.makeStagingBuffer(vkDeviceInstance);
 	}
 
 	private void createVertexBuffer() {
-		final AttribFormat vertexAttribFormat = getVertexAttrib();
+		final AttribFormat vertexAttribFormat = getVertexAttrib(bulletsCount);
 		final int vertexBufferSize = vertexAttribFormat.getBufferSize();
 		System.out.printf("Vertex buffer size: %d\n", vertexBufferSize);
 
@@ -194,7 +210,7 @@ public class VKLIB_TEST {
 		System.out.printf("Creating vertex buffer:\n");
 		vkVertexBuffer.createBuffer(vkDeviceInstance, vertexBufferSize, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT);
 		vkVertexBuffer.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
-		vkVertexBuffer.makeStagingBuffer(vkDeviceInstance, VK_BUFFER_USAGE_TRANSFER_SRC_BIT);
+		vkVertexBuffer.makeStagingBuffer(vkDeviceInstance);
 	}
 
 	private void loadTextures() {
@@ -222,30 +238,37 @@ public class VKLIB_TEST {
 
 		final boolean shouldUpdate = bulletScene.shouldUpdate();
 		if (shouldUpdate) {
-			bulletScene.updateSSBO(vkSSBO);
-			bulletScene.uploadBulletPos(vkSSBO, vkCommandBuffer);
-
-			final FrameInFlight frameInFlight = vkDeviceInstance.getCurrentFrameInFlight();
-			final VkBuffer uniformBuffer = frameInFlight.getUniformBuffer();
-			final ByteBuffer buffer = uniformBuffer.getStagingBuffer(vkDeviceInstance);
-			buffer.putFloat(0, screenWidth);
-			buffer.putFloat(4, screenHeight);
-			uniformBuffer.uploadFromStagingBuffer(vkCommandBuffer);
-			uniformBuffer.uniformBarrier(vkCommandBuffer);
+			final long startTime = System.nanoTime();
+			if (gpuSimulation) {
+				gpuBulletSimulation.tick(vkCommandBuffer);
+			} else {
+				bulletScene.uploadBulletPos(vkSSBO, vkCommandBuffer, true);
+			}
+			simulationTimings.addHostTime(System.nanoTime() - startTime);
+		} else if (!gpuSimulation) {
+			// positions after start or reset while paused
+			bulletScene.uploadBulletPos(vkSSBO, vkCommandBuffer, false);
 		}
+		simulationTimings.print(gpuSimulation ? "GPU" : (bulletScene.parallel ? "CPU parallel" : "CPU"), bulletsCount);
+
+		// bullets which are outside of the window are not drawn
+		final Vector2f size = BulletSceneConfig.size;
+		gpuCuller.cull(vkCommandBuffer, -size.x, -size.y, screenWidth + size.x, screenHeight + size.y);
 
 		vkDeviceInstance.beginRendering(vkCommandBuffer);
 		vkDeviceInstance.setViewport(vkCommandBuffer);
 		vkDeviceInstance.setScissor(vkCommandBuffer);
 
 		vkGraphicsPipeline.bindPipeline(vkCommandBuffer);
+		// resolution, no uniform buffer copy and barrier needed
+		vkGraphicsPipeline.pushConstants(vkCommandBuffer, 0, (float) screenWidth, (float) screenHeight);
 
 		vkVertexBuffer.bindVertexBuffer(vkCommandBuffer);
 		vkIndexBuffer.bindIndexBuffer(vkCommandBuffer);
 
 		vkDeviceInstance.bindDescriptorSet(vkCommandBuffer, vkGraphicsPipeline);
 
-		vkCmdDrawIndexedIndirect(vkCommandBuffer, vkIndirectBuffer.getBufferHandle(), 0, 10, 5 * 4);
+		gpuCuller.draw(vkCommandBuffer);
 
 		vkDeviceInstance.endRendering(vkCommandBuffer);
 		vkDeviceInstance.stopRecording();
@@ -256,7 +279,7 @@ public class VKLIB_TEST {
 		vkDeviceInstance.presentImage();
 	}
 
-	private AttribFormat getVertexAttrib() {
+	static AttribFormat getVertexAttrib(int bulletsCount) {
 		return new AttribFormat()
 				.add(0, 0, VK_FORMAT_R32G32_SFLOAT)
 				.add(0, 1, VK_FORMAT_R32G32_SFLOAT)
@@ -266,15 +289,19 @@ public class VKLIB_TEST {
 	}
 
 	private void createGraphicsPipeline() {
-		final AttribFormat attribFormat = getVertexAttrib();
+		vkGraphicsPipeline = createBulletPipeline(vkDeviceInstance, getVertexAttrib(bulletsCount));
+		vkDeviceInstance.createDescriptorStuff(vkGraphicsPipeline.getVkDescriptorSetLayout());
+	}
 
+	// also used by PipelineStartupBenchmark
+	static VkGraphicsPipeline createBulletPipeline(VkDeviceInstance vkDeviceInstance, AttribFormat attribFormat) {
 		// TODO improve descriptor set layout stuff
 		final VkDescriptorSetLayout descriptorSetLayout = new VkDescriptorSetLayout();
-		final SetLayoutBindingsBuffer uniformBufferLayout = descriptorSetLayout.addLayout()
-				.add(0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, VK_SHADER_STAGE_VERTEX_BIT)
+		final SetLayoutBindingsBuffer textureLayout = descriptorSetLayout.addLayout()
 				.add(1, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER, VK_SHADER_STAGE_FRAGMENT_BIT);
 		final SetLayoutBindingsBuffer ssboLayout = descriptorSetLayout.addLayout()
-				.add(2, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_VERTEX_BIT);
+				.add(2, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_VERTEX_BIT)
+				.add(3, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_SHADER_STAGE_VERTEX_BIT);
 		descriptorSetLayout.createDescriptorSetLayout(vkDeviceInstance);
 
 		// vkGraphicsPipeline needs DescriptorSetLayout {binding, descriptorType, stageFlags}
@@ -287,9 +314,10 @@ public class VKLIB_TEST {
 		//      for buffers {buffer handle, buffer offset, buffer range, binding, descriptorType} or
 		//      for textures {image view, image sampler, binding, descriptorType}
 
-		vkGraphicsPipeline = new VkGraphicsPipeline()
+		return new VkGraphicsPipeline()
 				.addVertexShader("assets/shaders/indirect_ssbo/shader.vert")
-				.addFragmentShader("assets/shaders/indirect_ssbo/shader.frag")
+				// constant_id = 0 is ALPHA_DISCARD
+				.addFragmentShader("assets/shaders/indirect_ssbo/shader.frag", new SpecializationConstants().setBool(0, true))
 				.attribFormat(attribFormat)
 				.topology(VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST) // optional
 				.primitiveRestart(false) // optional
@@ -301,9 +329,9 @@ public class VKLIB_TEST {
 				.blendFunc(VK_BLEND_FACTOR_SRC_ALPHA, VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA) // optional
 				// depth is not supported yet
 				.setDescriptorSetLayout(descriptorSetLayout)
+				// vec2 resolution
+				.addPushConstantRange(VK_SHADER_STAGE_VERTEX_BIT, 0, Float.BYTES * 2)
 				.create(vkDeviceInstance);
-
-		vkDeviceInstance.createDescriptorStuff(vkGraphicsPipeline.getVkDescriptorSetLayout());
 	}
 
 	private void createVulkanContext() {
@@ -316,15 +344,6 @@ public class VKLIB_TEST {
 				.create(windowVK);
 	}
 
-	private void createUniformBuffers() {
-		final int fifCount = vkDeviceInstance.getSwapChainImageCount();
-		final BufferSizeInfo bufferSizeInfo = new BufferSizeInfo()
-				.add(VK_FORMAT_R32G32_SFLOAT, 1)
-				.add(VK_FORMAT_R32G32_SFLOAT, 1);
-		final int bufferSize = bufferSizeInfo.getBufferSize() * fifCount;
-		vkDeviceInstance.createUniformBuffers(bufferSize);
-	}
-
 	private void createSSBO() {
 		final BufferSizeInfo bufferSizeInfo = new BufferSizeInfo()
 				.add(VK_FORMAT_R32G32_SFLOAT, 20000);
@@ -332,19 +351,14 @@ public class VKLIB_TEST {
 
 		vkSSBO = new VkBuffer();
 		vkSSBO.createBuffer(vkDeviceInstance, bufferSize, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT);
+		// positions are written straight into StagingArena by BulletScene.uploadBulletPos
 		vkSSBO.allocateMemory(vkDeviceInstance, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
-		vkSSBO.makeStagingBuffer(vkDeviceInstance, VK_BUFFER_USAGE_TRANSFER_SRC_BIT);
 	}
 
 	private void updateDescriptors() {
 		for (FrameInFlight frameInFlight : vkDeviceInstance.getFrameInFlights()) {
 			final List<DescriptorSetUpdate> descriptorSetUpdateList = new ArrayList<>();
 
-			final long bufferHandle = frameInFlight.getUniformBuffer().getHandle();
-			descriptorSetUpdateList.add(DescriptorSetUpdate.buffer(
-					0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER,
-					bufferHandle, 0, Float.BYTES * 4));
-
 			descriptorSetUpdateList.add(DescriptorSetUpdate.image(
 					1, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER,
 					vkTexture.getVkTextureImageView(), vkTexture.getVkTextureSampler()));
@@ -353,6 +367,10 @@ public class VKLIB_TEST {
 					2, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER,
 					vkSSBO.getHandle(), 0, Float.BYTES * (2 * 20000)));
 
+			descriptorSetUpdateList.add(DescriptorSetUpdate.buffer(
+					3, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER,
+					gpuCuller.getVisibleInstancesBuffer().getHandle(), 0, Integer.BYTES * bulletsCount));
+
 			frameInFlight.updateDescriptorSet(vkDeviceInstance, descriptorSetUpdateList);
 		}
 	}
@@ -0,0 +1,160 @@
+package ua.rawfish2d.vklib.utils;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.util.shaderc.ShadercIncludeResolve;
+import org.lwjgl.util.shaderc.ShadercIncludeResult;
+import org.lwjgl.util.shaderc.ShadercIncludeResultRelease;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.lwjgl.BufferUtils.createByteBuffer;
+import static org.lwjgl.system.MemoryUtil.memUTF8;
+import static org.lwjgl.util.shaderc.Shaderc.*;
+
+/**
+ * Compiles GLSL into SPIR-V on a ForkJoinPool.
+ * shaderc compilers and compile options are created once and kept in a pool, every compilation borrows one
+ * so a compiler is only used by one thread at a time. Results go through SpirvCache.
+ */
+public class ShaderCompiler {
+	// part of SPIR-V cache key, must be changed together with compile options in Compiler
+	private static final String SHADERC_OPTIONS = "env=vulkan1.3;spirv=1.3;opt=performance;entry=main";
+	private static final ConcurrentLinkedDeque<Compiler> compilers = new ConcurrentLinkedDeque<>();
+	private static ForkJoinPool pool = null;
+
+	/**
+	 * @return compiler threads, also used for background pipeline creation
+	 */
+	public static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return pool;
+	}
+
+	/**
+	 * Starts compilation of shader on compiler threads
+	 */
+	public static CompletableFuture<ByteBuffer> compileAsync(String classPath, int vulkanStage) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return compile(classPath, vulkanStage);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, getPool());
+	}
+
+	/**
+	 * Compiles shader on calling thread, or loads it from SpirvCache
+	 */
+	public static ByteBuffer compile(String classPath, int vulkanStage) throws IOException {
+		// ByteBuffer src = IOUtils.ioResourceToByteBuffer(classPath, 1024);
+		final ByteBuffer src = IOUtils.ioFileToByteBuffer(classPath, 4096);
+		final long startTime = System.nanoTime();
+		final byte[] cacheKey = SpirvCache.computeKey(classPath, src, vulkanStage, SHADERC_OPTIONS);
+		final ByteBuffer cached = SpirvCache.load(cacheKey);
+		if (cached != null) {
+			System.out.printf("🔷 Shader %s loaded from SPIR-V cache in %.3f ms\n", classPath, (System.nanoTime() - startTime) / 1_000_000.0);
+			return cached;
+		}
+
+		Compiler compiler = compilers.poll();
+		if (compiler == null) {
+			compiler = new Compiler();
+		}
+		final ByteBuffer spirv;
+		try {
+			spirv = compiler.compile(classPath, src, vulkanStage);
+		} finally {
+			compilers.push(compiler);
+		}
+		SpirvCache.store(cacheKey, spirv);
+		System.out.printf("🔷 Shader %s compiled in %.3f ms [%s]\n", classPath, (System.nanoTime() - startTime) / 1_000_000.0, Thread.currentThread().getName());
+		return spirv;
+	}
+
+	/**
+	 * Stops compiler threads and releases all shaderc compilers. Must not be called while compilation is in progress
+	 */
+	public static synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+		Compiler compiler;
+		while ((compiler = compilers.poll()) != null) {
+			compiler.release();
+		}
+	}
+
+	private static class Compiler {
+		private final long compiler;
+		private final long options;
+		private final ShadercIncludeResolve resolver;
+		private final ShadercIncludeResultRelease releaser;
+
+		private Compiler() {
+			compiler = shaderc_compiler_initialize();
+			options = shaderc_compile_options_initialize();
+			shaderc_compile_options_set_target_env(options, shaderc_target_env_vulkan, shaderc_env_version_vulkan_1_3);
+			shaderc_compile_options_set_target_spirv(options, shaderc_spirv_version_1_3);
+			shaderc_compile_options_set_optimization_level(options, shaderc_optimization_level_performance);
+			// includes are resolved relative to the file which includes them
+			shaderc_compile_options_set_include_callbacks(options, resolver = new ShadercIncludeResolve() {
+				public long invoke(long user_data, long requested_source, int type, long requesting_source, long include_depth) {
+					ShadercIncludeResult res = ShadercIncludeResult.calloc();
+					final String requestingSource = memUTF8(requesting_source);
+					String src = requestingSource.substring(0, requestingSource.lastIndexOf('/')) + "/" + memUTF8(requested_source);
+					try {
+						res.content(IOUtils.ioResourceToByteBuffer(src, 1024));
+						res.source_name(memUTF8(src));
+						return res.address();
+					} catch (IOException e) {
+						throw new AssertionError("Failed to resolve include: " + src);
+					}
+				}
+			}, releaser = new ShadercIncludeResultRelease() {
+				public void invoke(long user_data, long include_result) {
+					ShadercIncludeResult result = ShadercIncludeResult.create(include_result);
+					MemoryUtil.memFree(result.source_name());
+					result.free();
+				}
+			}, 0L);
+		}
+
+		private ByteBuffer compile(String classPath, ByteBuffer src, int vulkanStage) {
+			long res;
+			try (MemoryStack stack = MemoryStack.stackPush()) {
+				res = shaderc_compile_into_spv(compiler, src, VkTranslate.vulkanStageToShadercKind(vulkanStage), stack.UTF8(classPath), stack.UTF8("main"), options);
+				if (res == 0L)
+					throw new AssertionError("Internal error during compilation!");
+			}
+			try {
+				if (shaderc_result_get_compilation_status(res) != shaderc_compilation_status_success) {
+					throw new AssertionError("Shader compilation failed: " + shaderc_result_get_error_message(res));
+				}
+				int size = (int) shaderc_result_get_length(res);
+				ByteBuffer resultBytes = createByteBuffer(size);
+				resultBytes.put(shaderc_result_get_bytes(res));
+				resultBytes.flip();
+				return resultBytes;
+			} finally {
+				shaderc_result_release(res);
+			}
+		}
+
+		private void release() {
+			shaderc_compile_options_release(options);
+			shaderc_compiler_release(compiler);
+			releaser.free();
+			resolver.free();
+		}
+	}
+}
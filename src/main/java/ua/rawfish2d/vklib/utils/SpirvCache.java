@@ -0,0 +1,192 @@
+package ua.rawfish2d.vklib.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Content addressed on-disk cache of compiled SPIR-V.
+ * Key is SHA-256 of shader source, all (recursively) included files, shader stage and compile options,
+ * so changing any of them just produces a new file. Files are memory mapped and validated on load,
+ * broken or foreign files are treated as a cache miss.
+ */
+public class SpirvCache {
+	// bump when file layout changes
+	private static final int FORMAT_VERSION = 1;
+	private static final int FILE_MAGIC = 0x53505643; // SPVC
+	private static final int SPIRV_MAGIC = 0x07230203;
+	private static final int KEY_SIZE = 32;
+	// magic, version, key, spirv size, crc32
+	private static final int HEADER_SIZE = 4 + 4 + KEY_SIZE + 4 + 4;
+	private static final Pattern INCLUDE_PATTERN = Pattern.compile("^\\s*#\\s*include\\s*[\"<]([^\">]+)[\">]", Pattern.MULTILINE);
+	private static Path directory = Paths.get("shader_cache");
+	private static boolean enabled = true;
+
+	public static void setDirectory(String directory) {
+		SpirvCache.directory = Paths.get(directory);
+	}
+
+	public static void setEnabled(boolean enabled) {
+		SpirvCache.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param classPath path of shader file, includes are resolved relative to it the same way as glslToSpirv does
+	 * @param options   string which describes every compile option (target env, spirv version, optimization level, entry point)
+	 */
+	public static byte[] computeKey(String classPath, ByteBuffer source, int vulkanStage, String options) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Failed to create SHA-256 digest!", e);
+		}
+		digest.update(String.format("v%d|%s|stage=%d|%s|", FORMAT_VERSION, options, vulkanStage, classPath).getBytes(StandardCharsets.UTF_8));
+		digest.update(source.duplicate());
+		hashIncludes(digest, classPath, source, new HashSet<>());
+		return digest.digest();
+	}
+
+	private static void hashIncludes(MessageDigest digest, String classPath, ByteBuffer source, Set<String> visited) {
+		final String directory = classPath.substring(0, classPath.lastIndexOf('/'));
+		final Matcher matcher = INCLUDE_PATTERN.matcher(StandardCharsets.UTF_8.decode(source.duplicate()));
+		while (matcher.find()) {
+			final String includePath = directory + "/" + matcher.group(1);
+			digest.update(includePath.getBytes(StandardCharsets.UTF_8));
+			if (!visited.add(includePath)) {
+				continue;
+			}
+			try {
+				final ByteBuffer include = IOUtils.ioResourceToByteBuffer(includePath, 1024);
+				digest.update(include.duplicate());
+				hashIncludes(digest, includePath, include, visited);
+			} catch (IOException e) {
+				// compilation will report missing include
+				digest.update((byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * @return memory mapped SPIR-V or null if there is no valid cache entry for this key
+	 */
+	public static ByteBuffer load(byte[] key) {
+		if (!enabled) {
+			return null;
+		}
+		final Path file = getFile(key);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			final ByteBuffer spirv = validate(mapped, key);
+			if (spirv == null) {
+				System.out.printf("🔷 Discarding invalid SPIR-V cache file: %s\n", file);
+				Files.deleteIfExists(file);
+			}
+			return spirv;
+		} catch (IOException e) {
+			System.out.printf("🔷 Failed to read SPIR-V cache file: %s | %s\n", file, e.getMessage());
+			return null;
+		}
+	}
+
+	private static ByteBuffer validate(ByteBuffer mapped, byte[] key) {
+		if (mapped.remaining() < HEADER_SIZE ||
+				mapped.getInt(0) != FILE_MAGIC ||
+				mapped.getInt(4) != FORMAT_VERSION) {
+			return null;
+		}
+		final byte[] storedKey = new byte[KEY_SIZE];
+		mapped.get(8, storedKey);
+		if (!MessageDigest.isEqual(storedKey, key)) {
+			return null;
+		}
+		final int size = mapped.getInt(8 + KEY_SIZE);
+		final int crc = mapped.getInt(8 + KEY_SIZE + 4);
+		if (size <= 0 || size % 4 != 0 || size != mapped.remaining() - HEADER_SIZE) {
+			return null;
+		}
+		final ByteBuffer spirv = mapped.slice(HEADER_SIZE, size).order(ByteOrder.LITTLE_ENDIAN);
+		if (spirv.getInt(0) != SPIRV_MAGIC || crc32(spirv) != crc) {
+			return null;
+		}
+		return spirv;
+	}
+
+	/**
+	 * Writes SPIR-V into temporary file and atomically renames it, so readers never see partially written file
+	 */
+	public static void store(byte[] key, ByteBuffer spirv) {
+		if (!enabled) {
+			return;
+		}
+		final Path file = getFile(key);
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+				.putInt(FILE_MAGIC)
+				.putInt(FORMAT_VERSION)
+				.put(key)
+				.putInt(spirv.remaining())
+				.putInt(crc32(spirv))
+				.flip();
+		try {
+			Files.createDirectories(directory);
+			final Path tempFile = Files.createTempFile(directory, "spirv", ".tmp");
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+				final ByteBuffer payload = spirv.duplicate();
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+				while (payload.hasRemaining()) {
+					channel.write(payload);
+				}
+			}
+			try {
+				Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			System.out.printf("🔷 Failed to write SPIR-V cache file: %s | %s\n", file, e.getMessage());
+		}
+	}
+
+	/**
+	 * @return SHA-256 of SPIR-V as hex string
+	 */
+	public static String hash(ByteBuffer spirv) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(spirv.duplicate());
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Failed to create SHA-256 digest!", e);
+		}
+	}
+
+	private static int crc32(ByteBuffer buffer) {
+		final CRC32 crc32 = new CRC32();
+		crc32.update(buffer.duplicate());
+		return (int) crc32.getValue();
+	}
+
+	private static Path getFile(byte[] key) {
+		return directory.resolve(HexFormat.of().formatHex(key) + ".spv");
+	}
+}
@@ -3,14 +3,12 @@ package ua.rawfish2d.vklib.utils;
 import lombok.NonNull;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
-import org.lwjgl.system.MemoryUtil;
-import org.lwjgl.util.shaderc.ShadercIncludeResolve;
-import org.lwjgl.util.shaderc.ShadercIncludeResult;
-import org.lwjgl.util.shaderc.ShadercIncludeResultRelease;
 import org.lwjgl.vulkan.*;
 import ua.rawfish2d.vklib.VkBuffer;
 import ua.rawfish2d.vklib.init.enums.TextureFiltering;
 import ua.rawfish2d.vklib.init.enums.TextureWrap;
+import ua.rawfish2d.vklib.memory.MemoryAllocation;
+import ua.rawfish2d.vklib.memory.MemoryAllocator;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -21,15 +19,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.stream.IntStream;
 
-import static org.lwjgl.BufferUtils.createByteBuffer;
-import static org.lwjgl.system.MemoryUtil.memUTF8;
-import static org.lwjgl.util.shaderc.Shaderc.*;
 import static org.lwjgl.vulkan.KHRDynamicRendering.vkCmdBeginRenderingKHR;
 import static org.lwjgl.vulkan.KHRDynamicRendering.vkCmdEndRenderingKHR;
 import static org.lwjgl.vulkan.KHRSwapchain.VK_IMAGE_LAYOUT_PRESENT_SRC_KHR;
 import static org.lwjgl.vulkan.KHRSynchronization2.VK_IMAGE_LAYOUT_ATTACHMENT_OPTIMAL_KHR;
 import static org.lwjgl.vulkan.KHRSynchronization2.vkCmdPipelineBarrier2KHR;
 import static org.lwjgl.vulkan.VK10.*;
+import static org.lwjgl.vulkan.VK12.VK_SEMAPHORE_TYPE_TIMELINE;
 import static org.lwjgl.vulkan.VK13.VK_ACCESS_NONE;
 
 public class VkHelper {
@@ -41,28 +37,32 @@ public class VkHelper {
 		System.out.printf("🔷 Searching for memory:" +
 				"\n\tbits: %d %s" +
 				"\n\ttype: %d %s\n", typeBits, VkTranslate.vkTranslateMemoryProperty(typeBits), properties, VkTranslate.vkTranslateMemoryProperty(properties));
-		int memoryIndex = 0;
-		int flags = 0;
 		for (int index = 0; index < memProperties.memoryTypeCount(); index++) {
 			final VkMemoryType memoryType = memProperties.memoryTypes().get(index);
 			final int propertyFlags = memoryType.propertyFlags();
 
-			if ((typeBits & 1) == 1) {
-				if ((propertyFlags & properties) == properties) {
-					memoryIndex = memoryType.heapIndex();
-					flags = propertyFlags;
-					break;
+			if ((typeBits & (1 << index)) != 0 && (propertyFlags & properties) == properties) {
+				System.out.printf("❇️ Chose memory type index: %d heap: %d with flags: %d %s\n", index, memoryType.heapIndex(), propertyFlags, VkTranslate.vkTranslateMemoryProperty(propertyFlags));
+				return index;
+			}
+		}
+		throw new RuntimeException("Failed to find suitable memory type!");
+	}
+
+	/**
+	 * same as findMemoryType but doesn't throw and doesn't care about memory requirements of particular resource
+	 */
+	public static boolean hasMemoryType(VkPhysicalDevice vkPhysicalDevice, int properties) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkPhysicalDeviceMemoryProperties memProperties = VkPhysicalDeviceMemoryProperties.malloc(stack);
+			vkGetPhysicalDeviceMemoryProperties(vkPhysicalDevice, memProperties);
+			for (int index = 0; index < memProperties.memoryTypeCount(); index++) {
+				if ((memProperties.memoryTypes().get(index).propertyFlags() & properties) == properties) {
+					return true;
 				}
 			}
-//			if ((typeBits & (1 << index)) >= 1 && (memoryPropertyFlags & properties) == properties) {
-//				memoryIndex = memoryType.heapIndex();
-//				flags = memoryPropertyFlags;
-//			}
-			typeBits = typeBits >> 1;
+			return false;
 		}
-		System.out.printf("❇️ Chose memory type index: %d with flags: %d %s\n", memoryIndex, flags, VkTranslate.vkTranslateMemoryProperty(flags));
-		return memoryIndex;
-//		throw new RuntimeException("Failed to find suitable memory type!");
 	}
 
 	public static void printMemoryTypes(VkPhysicalDevice vkPhysicalDevice) {
@@ -122,10 +122,17 @@ public class VkHelper {
 	}
 
 	public static long createCommandPool(VkDevice vkLogicalDevice, int queueIndex) {
+		return createCommandPool(vkLogicalDevice, queueIndex, VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT);
+	}
+
+	/**
+	 * @param flags VK_COMMAND_POOL_CREATE_TRANSIENT_BIT for pools which are reset every frame with vkResetCommandPool
+	 */
+	public static long createCommandPool(VkDevice vkLogicalDevice, int queueIndex, int flags) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			final VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.calloc(stack)
 					.sType$Default()
-					.flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT)
+					.flags(flags)
 					.queueFamilyIndex(queueIndex);
 
 			final LongBuffer pCommandPool = stack.mallocLong(1);
@@ -136,6 +143,25 @@ public class VkHelper {
 		}
 	}
 
+	public static long createTimelineSemaphore(VkDevice vkLogicalDevice) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkSemaphoreTypeCreateInfo semaphoreTypeCreateInfo = VkSemaphoreTypeCreateInfo.calloc(stack)
+					.sType$Default()
+					.semaphoreType(VK_SEMAPHORE_TYPE_TIMELINE)
+					.initialValue(0);
+			final VkSemaphoreCreateInfo semaphoreCreateInfo = VkSemaphoreCreateInfo.calloc(stack)
+					.sType$Default()
+					.pNext(semaphoreTypeCreateInfo.address());
+
+			final LongBuffer pSemaphore = stack.mallocLong(1);
+			final int result = vkCreateSemaphore(vkLogicalDevice, semaphoreCreateInfo, null, pSemaphore);
+			if (result != VK_SUCCESS) {
+				throw new RuntimeException("Failed to create timeline semaphore! Error: " + VkTranslate.translateVulkanResult(result));
+			}
+			return pSemaphore.get(0);
+		}
+	}
+
 	public static VkCommandBuffer createCommandBuffer(VkDevice vkLogicalDevice, long vkCommandPool) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			final VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
@@ -168,6 +194,13 @@ public class VkHelper {
 	}
 
 	public static void beginRendering(MemoryStack stack, VkCommandBuffer commandBuffer, long vkSwapChainImage, long vkSwapChainImageView, VkClearValue clearValue, int extentWidth, int extentHeight) {
+		beginRendering(stack, commandBuffer, vkSwapChainImage, vkSwapChainImageView, clearValue, extentWidth, extentHeight, 0);
+	}
+
+	/**
+	 * @param renderingFlags VK_RENDERING_CONTENTS_SECONDARY_COMMAND_BUFFERS_BIT_KHR if draw commands come from secondary command buffers
+	 */
+	public static void beginRendering(MemoryStack stack, VkCommandBuffer commandBuffer, long vkSwapChainImage, long vkSwapChainImageView, VkClearValue clearValue, int extentWidth, int extentHeight, int renderingFlags) {
 		final VkImageMemoryBarrier.Buffer vkImageMemoryBarriers = VkImageMemoryBarrier.calloc(1, stack);
 		final VkImageMemoryBarrier vkImageMemoryBarrier = VkImageMemoryBarrier.calloc(stack)
 				.sType$Default()
@@ -206,6 +239,7 @@ public class VkHelper {
 
 		final VkRenderingInfoKHR vkRenderingInfo = VkRenderingInfoKHR.calloc(stack)
 				.sType$Default()
+				.flags(renderingFlags)
 				.layerCount(1)
 				.pColorAttachments(vkRenderingAttachmentInfoBuffer);
 		vkRenderingInfo.renderArea().offset().set(0, 0);
@@ -259,56 +293,14 @@ public class VkHelper {
 		vkCmdSetScissor(commandBuffer, 0, scissor);
 	}
 
+	/**
+	 * Compiles GLSL into SPIR-V on calling thread, result is stored in SpirvCache and next launches load it from disk without shaderc
+	 */
 	public static ByteBuffer glslToSpirv(String classPath, int vulkanStage) throws IOException {
-		// ByteBuffer src = IOUtils.ioResourceToByteBuffer(classPath, 1024);
-		ByteBuffer src = IOUtils.ioFileToByteBuffer(classPath, 4096);
-		long compiler = shaderc_compiler_initialize();
-		long options = shaderc_compile_options_initialize();
-		ShadercIncludeResolve resolver;
-		ShadercIncludeResultRelease releaser;
-		shaderc_compile_options_set_target_env(options, shaderc_target_env_vulkan, shaderc_env_version_vulkan_1_3);
-		shaderc_compile_options_set_target_spirv(options, shaderc_spirv_version_1_3);
-		shaderc_compile_options_set_optimization_level(options, shaderc_optimization_level_performance);
-		shaderc_compile_options_set_include_callbacks(options, resolver = new ShadercIncludeResolve() {
-			public long invoke(long user_data, long requested_source, int type, long requesting_source, long include_depth) {
-				ShadercIncludeResult res = ShadercIncludeResult.calloc();
-				try {
-					String src = classPath.substring(0, classPath.lastIndexOf('/')) + "/" + memUTF8(requested_source);
-					res.content(IOUtils.ioResourceToByteBuffer(src, 1024));
-					res.source_name(memUTF8(src));
-					return res.address();
-				} catch (IOException e) {
-					throw new AssertionError("Failed to resolve include: " + src);
-				}
-			}
-		}, releaser = new ShadercIncludeResultRelease() {
-			public void invoke(long user_data, long include_result) {
-				ShadercIncludeResult result = ShadercIncludeResult.create(include_result);
-				MemoryUtil.memFree(result.source_name());
-				result.free();
-			}
-		}, 0L);
-		long res;
-		try (MemoryStack stack = MemoryStack.stackPush()) {
-			res = shaderc_compile_into_spv(compiler, src, VkTranslate.vulkanStageToShadercKind(vulkanStage), stack.UTF8(classPath), stack.UTF8("main"), options);
-			if (res == 0L)
-				throw new AssertionError("Internal error during compilation!");
-		}
-		if (shaderc_result_get_compilation_status(res) != shaderc_compilation_status_success) {
-			throw new AssertionError("Shader compilation failed: " + shaderc_result_get_error_message(res));
-		}
-		int size = (int) shaderc_result_get_length(res);
-		ByteBuffer resultBytes = createByteBuffer(size);
-		resultBytes.put(shaderc_result_get_bytes(res));
-		resultBytes.flip();
-		shaderc_result_release(res);
-		shaderc_compiler_release(compiler);
-		releaser.free();
-		resolver.free();
-		return resultBytes;
+		return ShaderCompiler.compile(classPath, vulkanStage);
 	}
 
-	public static void createImage(VkDevice vkLogicalDevice, VkPhysicalDevice vkPhysicalDevice, int format, int width, int height, @NonNull LongBuffer out_vkTextureImage, @NonNull LongBuffer out_vkTextureImageMemory) {
+	public static MemoryAllocation createImage(VkDevice vkLogicalDevice, MemoryAllocator memoryAllocator, int format, int width, int height, @NonNull LongBuffer out_vkTextureImage) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			final VkImageCreateInfo imageInfo = VkImageCreateInfo.calloc(stack)
 					.sType$Default()
@@ -336,25 +328,9 @@ public class VkHelper {
 			out_vkTextureImage.put(0, pImage.get(0));
 		}
 
-		try (MemoryStack stack = MemoryStack.stackPush()) {
-			final VkMemoryRequirements memRequirements = VkMemoryRequirements.malloc(stack);
-			vkGetImageMemoryRequirements(vkLogicalDevice, out_vkTextureImage.get(0), memRequirements);
-
-			final int memoryType = findMemoryType(vkPhysicalDevice, memRequirements.memoryTypeBits(), VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, stack);
-			final VkMemoryAllocateInfo allocInfo = VkMemoryAllocateInfo.calloc(stack)
-					.sType$Default()
-					.allocationSize(memRequirements.size())
-					.memoryTypeIndex(memoryType);
-
-			System.out.printf("🔷 Allocating %d bytes (%s) of memory\n", memRequirements.size(), humanReadableByteCountBin(memRequirements.size()));
-			final LongBuffer pTextureImageMemory = stack.mallocLong(1);
-			final int result = vkAllocateMemory(vkLogicalDevice, allocInfo, null, pTextureImageMemory);
-			if (result != VK_SUCCESS) {
-				throw new RuntimeException("failed to allocate image memory! Error: " + VkTranslate.translateVulkanResult(result));
-			}
-			out_vkTextureImageMemory.put(0, pTextureImageMemory.get(0));
-			vkBindImageMemory(vkLogicalDevice, out_vkTextureImage.get(0), out_vkTextureImageMemory.get(0), 0);
-		}
+		final MemoryAllocation memoryAllocation = memoryAllocator.allocateForImage(out_vkTextureImage.get(0), VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+		System.out.printf("🔷 Allocated %d bytes (%s) of image memory\n", memoryAllocation.getSize(), humanReadableByteCountBin(memoryAllocation.getSize()));
+		return memoryAllocation;
 	}
 
 	public static String humanReadableByteCountBin(long bytes) {
@@ -372,6 +348,7 @@ public class VkHelper {
 		return String.format(Locale.US, "%.1f %ciB", value / 1024.0, ci.current());
 	}
 
+	// allocates and frees command buffer on every call, use ImmediateContext for repeated commands
 	public static VkCommandBuffer beginSingleTimeCommands(VkDevice vkLogicalDevice, long vkCommandPool) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			final VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
@@ -408,9 +385,20 @@ public class VkHelper {
 		}
 	}
 
+	/**
+	 * @deprecated submits and waits for queue idle on every call, record into ImmediateContext (or UploadService) instead
+	 */
+	@Deprecated
 	public static void transitionImageLayout(VkDevice vkLogicalDevice, long vkCommandPool, VkQueue graphicsQueue, long vkImage, int vkOldLayout, int vkNewLayout) {
 		final VkCommandBuffer commandBuffer = beginSingleTimeCommands(vkLogicalDevice, vkCommandPool);
+		transitionImageLayout(commandBuffer, vkImage, vkOldLayout, vkNewLayout);
+		endSingleTimeCommands(vkLogicalDevice, vkCommandPool, commandBuffer, graphicsQueue);
+	}
 
+	/**
+	 * records layout transition into commandBuffer without submitting it
+	 */
+	public static void transitionImageLayout(VkCommandBuffer commandBuffer, long vkImage, int vkOldLayout, int vkNewLayout) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 
 			int sourceStage;
@@ -464,13 +452,22 @@ public class VkHelper {
 					null,
 					vkImageMemoryBarrier);
 		}
-
-		endSingleTimeCommands(vkLogicalDevice, vkCommandPool, commandBuffer, graphicsQueue);
 	}
 
+	/**
+	 * @deprecated submits and waits for queue idle on every call, record into ImmediateContext (or UploadService) instead
+	 */
+	@Deprecated
 	public static void copyBufferToImage(VkDevice vkLogicalDevice, long vkCommandPool, VkQueue graphicsQueue, VkBuffer buffer, long image, int width, int height) {
 		final VkCommandBuffer commandBuffer = beginSingleTimeCommands(vkLogicalDevice, vkCommandPool);
+		copyBufferToImage(commandBuffer, buffer, image, width, height);
+		endSingleTimeCommands(vkLogicalDevice, vkCommandPool, commandBuffer, graphicsQueue);
+	}
 
+	/**
+	 * records copy into commandBuffer without submitting it
+	 */
+	public static void copyBufferToImage(VkCommandBuffer commandBuffer, VkBuffer buffer, long image, int width, int height) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			final VkBufferImageCopy.Buffer vkBufferImageCopy = VkBufferImageCopy.calloc(1, stack)
 					.bufferOffset(0)
@@ -491,8 +488,6 @@ public class VkHelper {
 					VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
 					vkBufferImageCopy);
 		}
-
-		endSingleTimeCommands(vkLogicalDevice, vkCommandPool, commandBuffer, graphicsQueue);
 	}
 
 	public static VkSamplerCreateInfo makeSamplerCreateInfo(MemoryStack stack, float maxAnisotropy, TextureFiltering minFilter, TextureFiltering magFilter, TextureFiltering mipmapFilter, TextureWrap textureWrapU, TextureWrap textureWrapV) {
@@ -539,7 +534,35 @@ public class VkHelper {
 //				null);
 //	}
 
-	public static void bufferMemoryBarrier2(VkCommandBuffer commandBuffer, long vkBuffer, long bufferSize, int srcAccess, int srcStage, int dstAccess, int dstStage) {
+	/**
+	 * Global memory barrier, covers every buffer written by src stages
+	 */
+	public static void memoryBarrier2(VkCommandBuffer commandBuffer, long srcAccess, long srcStage, long dstAccess, long dstStage) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			final VkMemoryBarrier2KHR.Buffer memoryBarriers = VkMemoryBarrier2KHR.calloc(1, stack);
+			memoryBarriers.get(0)
+					.sType$Default()
+					.srcAccessMask(srcAccess)
+					.srcStageMask(srcStage)
+					.dstAccessMask(dstAccess)
+					.dstStageMask(dstStage);
+
+			final VkDependencyInfoKHR dependencyInfo = VkDependencyInfoKHR.calloc(stack)
+					.sType$Default()
+					.dependencyFlags(0)
+					.pMemoryBarriers(memoryBarriers)
+					.pBufferMemoryBarriers(null)
+					.pImageMemoryBarriers(null);
+
+			vkCmdPipelineBarrier2KHR(commandBuffer, dependencyInfo);
+		}
+	}
+
+	public static void bufferMemoryBarrier2(VkCommandBuffer commandBuffer, long vkBuffer, long bufferSize, long srcAccess, long srcStage, long dstAccess, long dstStage) {
+		bufferMemoryBarrier2(commandBuffer, vkBuffer, 0, bufferSize, srcAccess, srcStage, dstAccess, dstStage);
+	}
+
+	public static void bufferMemoryBarrier2(VkCommandBuffer commandBuffer, long vkBuffer, long offset, long size, long srcAccess, long srcStage, long dstAccess, long dstStage) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			final VkBufferMemoryBarrier2KHR.Buffer bufferMemoryBarriers = VkBufferMemoryBarrier2KHR.calloc(1, stack).sType$Default();
 			final VkBufferMemoryBarrier2KHR vkBufferMemoryBarrier = VkBufferMemoryBarrier2KHR.calloc(stack)
@@ -550,8 +573,8 @@ public class VkHelper {
 					.dstAccessMask(dstAccess)
 					.dstStageMask(dstStage)
 					.buffer(vkBuffer)
-					.offset(0)
-					.size(bufferSize)
+					.offset(offset)
+					.size(size)
 					.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
 					.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
 			bufferMemoryBarriers.put(0, vkBufferMemoryBarrier);
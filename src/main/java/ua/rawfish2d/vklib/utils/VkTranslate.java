@@ -275,6 +275,7 @@ public class VkTranslate {
 		return switch (stage) {
 			case VK_SHADER_STAGE_VERTEX_BIT -> shaderc_vertex_shader;
 			case VK_SHADER_STAGE_FRAGMENT_BIT -> shaderc_fragment_shader;
+			case VK_SHADER_STAGE_COMPUTE_BIT -> shaderc_compute_shader;
 			case VK_SHADER_STAGE_RAYGEN_BIT_NV -> shaderc_raygen_shader;
 			case VK_SHADER_STAGE_CLOSEST_HIT_BIT_NV -> shaderc_closesthit_shader;
 			case VK_SHADER_STAGE_MISS_BIT_NV -> shaderc_miss_shader;